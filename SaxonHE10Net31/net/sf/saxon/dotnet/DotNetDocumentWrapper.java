@@ -7,12 +7,24 @@
 
 package net.sf.saxon.dotnet;
 
-import cli.System.Xml.XmlDocument;
-import cli.System.Xml.XmlNode;
-import cli.System.Xml.XmlNodeType;
+import cli.System.Xml.*;
 import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.om.GenericTreeInfo;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NamespaceMap;
 import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.Whitespace;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The document node of a tree implemented as a wrapper around a DOM Document.
@@ -20,6 +32,26 @@ import net.sf.saxon.om.NodeInfo;
 
 public class DotNetDocumentWrapper extends GenericTreeInfo {
 
+    private int nodeCacheSize = 0;
+    private Map<XmlNode, DotNetNodeWrapper> nodeCache = null;
+    private boolean orderIndexing = false;
+    private Map<XmlNode, OrderEntry> orderIndex = null;
+    private boolean siblingIndexing = false;
+    private Map<XmlNode, ChildTable> childTables = null;
+    private Map<XmlNode, Integer> siblingPositions = null;
+    private boolean namespaceCaching = false;
+    private Map<XmlNode, NamespaceMap> inScopeNamespaces = null;
+    private Map<XmlNode, NamespaceBinding[]> declaredNamespaces = null;
+    private Set<String> idAttributeNames = Collections.emptySet();
+    private Map<String, XmlNode> idIndex = null;
+    private XmlNodeChangedEventHandler changeHandler = null;
+    private int modificationCount = 0;
+    private int promotionThreshold = 0;
+    private int axisSteps = 0;
+    private DotNetTreeSnapshot snapshot = null;
+    private boolean snapshotFailed = false;
+    private volatile boolean frozen = false;
+    private XmlNodeChangedEventHandler freezeHandler = null;
 
     /**
      * Wrap a DOM Document or DocumentFragment node
@@ -64,7 +96,708 @@ public class DotNetDocumentWrapper extends GenericTreeInfo {
     }
 
     /**
-     * Get the element with a given ID, if any
+     * Set the maximum number of node wrappers to be retained for reuse. When the cache is enabled,
+     * navigating repeatedly to the same DOM node delivers the same wrapper object, so that
+     * information computed lazily by the wrapper (its parent, its sibling position, and the
+     * number of adjacent text nodes it spans) is not recomputed. When the cache is full, the least
+     * recently used wrapper is discarded.
+     * <p>If the wrapped node is an <code>XmlDocument</code>, the cache is discarded automatically
+     * when the DOM is modified, and wrappers that remain in use recompute their information. Otherwise
+     * an application that modifies the DOM while the cache is enabled must call
+     * {@link #clearNodeCache()} after the modification.</p>
+     *
+     * @param size the maximum number of wrappers to cache; zero (the default) disables caching
+     */
+
+    public void setNodeCacheSize(int size) {
+        checkNotFrozen();
+        if (size < 0) {
+            throw new IllegalArgumentException("Node cache size must not be negative");
+        }
+        nodeCacheSize = size;
+        if (size == 0) {
+            nodeCache = null;
+        } else {
+            final int limit = size;
+            Map<XmlNode, DotNetNodeWrapper> oldCache = nodeCache;
+            nodeCache = new LinkedHashMap<XmlNode, DotNetNodeWrapper>(Math.min(limit, 1024), 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<XmlNode, DotNetNodeWrapper> eldest) {
+                    return size() > limit;
+                }
+            };
+            if (oldCache != null) {
+                nodeCache.putAll(oldCache);
+            }
+            watchForChanges();
+        }
+    }
+
+    /**
+     * Get the maximum number of node wrappers retained for reuse
+     *
+     * @return the size of the node cache; zero if caching is disabled
+     */
+
+    public int getNodeCacheSize() {
+        return nodeCacheSize;
+    }
+
+    /**
+     * Discard all cached node wrappers. This must be called if the DOM is modified while
+     * node caching is enabled.
+     */
+
+    public void clearNodeCache() {
+        if (nodeCache != null) {
+            nodeCache.clear();
+        }
+    }
+
+    /**
+     * Get the cached wrapper for a DOM node, if there is one
+     *
+     * @param node the DOM node
+     * @return the cached wrapper, or null if the node has no cached wrapper or caching is disabled
+     */
+
+    DotNetNodeWrapper getCachedWrapper(XmlNode node) {
+        return nodeCache == null ? null : nodeCache.get(node);
+    }
+
+    /**
+     * Add a newly created wrapper to the node cache, if caching is enabled
+     *
+     * @param wrapper the new wrapper
+     */
+
+    void cacheWrapper(DotNetNodeWrapper wrapper) {
+        if (nodeCache != null) {
+            watchForChanges();
+            nodeCache.put(wrapper.node, wrapper);
+        }
+    }
+
+    /**
+     * Say whether a document order index is to be maintained for this document. When enabled,
+     * every node in the DOM is given a pre-order number and a sibling position, in a single pass
+     * over the tree performed the first time the information is needed. Comparing two nodes in
+     * document order and obtaining the sibling position of a node then become constant-time operations. This is worthwhile
+     * when large node-sets are sorted or deduplicated, for example by union expressions.
+     * <p>The index is discarded automatically if the DOM is subsequently modified, and is rebuilt
+     * when next needed.</p>
+     *
+     * @param indexing true if the document order index is to be used. The default is false.
+     */
+
+    public void setOrderIndexing(boolean indexing) {
+        checkNotFrozen();
+        orderIndexing = indexing;
+        if (!indexing) {
+            orderIndex = null;
+        }
+    }
+
+    /**
+     * Ask whether a document order index is maintained for this document
+     *
+     * @return true if the document order index is enabled
+     */
+
+    public boolean isOrderIndexing() {
+        return orderIndexing;
+    }
+
+    /**
+     * Get the entry in the document order index for a given node, building the index if necessary
+     *
+     * @param node the DOM node
+     * @return the entry for the node, or null if indexing is disabled or the node is not
+     * part of this document (for example, a namespace declaration attribute)
+     */
+
+    OrderEntry getOrderEntry(XmlNode node) {
+        if (!orderIndexing) {
+            return null;
+        }
+        if (orderIndex == null) {
+            orderIndex = buildOrderIndex(((DotNetNodeWrapper) getRootNode()).node);
+            watchForChanges();
+        }
+        return orderIndex.get(node);
+    }
+
+    /**
+     * Number the nodes of the tree in a single pre-order traversal. Attributes (other than
+     * namespace declarations) are numbered after their owning element and before its children,
+     * which is the position they occupy in XPath document order.
+     *
+     * @param root the document node
+     * @return a map from each DOM node to its entry in the index
+     */
+
+    private static Map<XmlNode, OrderEntry> buildOrderIndex(XmlNode root) {
+        Map<XmlNode, OrderEntry> index = new HashMap<>();
+        ArrayList<OrderEntry> ancestors = new ArrayList<>(50);
+        int counter = 0;
+        int position = 0;
+        XmlNode node = root;
+        walk:
+        while (true) {
+            OrderEntry entry = new OrderEntry(counter++, position);
+            index.put(node, entry);
+            XmlNamedNodeMap atts = node.get_Attributes();
+            if (atts != null) {
+                int a = 0;
+                for (int i = 0; i < atts.get_Count(); i++) {
+                    XmlNode att = atts.Item(i);
+                    if (!isNamespaceDeclaration(att)) {
+                        OrderEntry attEntry = new OrderEntry(counter++, a++);
+                        index.put(att, attEntry);
+                    }
+                }
+            }
+            XmlNode child = node.get_FirstChild();
+            if (child != null) {
+                ancestors.add(entry);
+                node = child;
+                position = 0;
+                continue;
+            }
+            while (!ancestors.isEmpty()) {
+                XmlNode sibling = node.get_NextSibling();
+                if (sibling != null) {
+                    node = sibling;
+                    position++;
+                    continue walk;
+                }
+                OrderEntry parentEntry = ancestors.remove(ancestors.size() - 1);
+                node = node.get_ParentNode();
+                position = parentEntry.siblingPosition;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Say whether tables of child nodes are to be maintained for this document. When enabled,
+     * the children of a DOM node are copied into an array the first time they are enumerated, or
+     * the first time the sibling position of one of them is needed. Subsequent access to the
+     * children by position, determination of the sibling position of a node, and measuring the
+     * runs of adjacent text nodes that form a single XPath text node, then take constant time.
+     * This is worthwhile for stylesheets that make heavy use of the sibling axes or
+     * <code>xsl:number</code> over elements with many children.
+     * <p>The tables are discarded automatically if the DOM is subsequently modified.</p>
+     *
+     * @param indexing true if child tables are to be used. The default is false.
+     */
+
+    public void setSiblingIndexing(boolean indexing) {
+        checkNotFrozen();
+        siblingIndexing = indexing;
+        if (!indexing) {
+            childTables = null;
+            siblingPositions = null;
+        }
+    }
+
+    /**
+     * Ask whether tables of child nodes are maintained for this document
+     *
+     * @return true if child tables are enabled
+     */
+
+    public boolean isSiblingIndexing() {
+        return siblingIndexing;
+    }
+
+    /**
+     * Get the table of children of a given DOM node, building it if necessary
+     *
+     * @param parent the parent DOM node
+     * @return the table of children, or null if child tables are not enabled
+     */
+
+    ChildTable getChildTable(XmlNode parent) {
+        if (!siblingIndexing) {
+            return null;
+        }
+        if (childTables == null) {
+            childTables = new HashMap<>();
+            siblingPositions = new HashMap<>();
+            watchForChanges();
+        }
+        ChildTable table = childTables.get(parent);
+        if (table == null) {
+            table = new ChildTable(parent);
+            if (frozen) {
+                // all tables for nodes with children were built when the document was frozen
+                return table;
+            }
+            childTables.put(parent, table);
+            XmlNode[] children = table.children;
+            for (int i = 0; i < children.length; i++) {
+                siblingPositions.put(children[i], i);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Get the position of a DOM node among its siblings, using the table of children of its parent
+     *
+     * @param node the DOM node, which must not be an attribute
+     * @return the position of the node among all the DOM children of its parent (starting at zero),
+     * or -1 if child tables are not enabled or the node has no parent
+     */
+
+    int getSiblingPosition(XmlNode node) {
+        if (!siblingIndexing) {
+            return -1;
+        }
+        XmlNode parent = node.get_ParentNode();
+        if (parent == null) {
+            return -1;
+        }
+        getChildTable(parent);
+        Integer position = siblingPositions.get(node);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Say whether the namespaces of elements are to be cached. When enabled, the in-scope
+     * namespaces of an element are computed once, by adding the namespaces declared or used on the
+     * element to the cached in-scope namespaces of its parent, and the namespace declarations of
+     * an element are also retained. This avoids repeated searching of namespace declarations
+     * when resolving the names of nodes in a DOM that was constructed programmatically, where
+     * the DOM does not always record the namespace URI of a node.
+     * <p>The cached information is discarded automatically if the DOM is subsequently modified.</p>
+     *
+     * @param caching true if namespace information is to be cached. The default is false.
+     */
+
+    public void setNamespaceCaching(boolean caching) {
+        checkNotFrozen();
+        namespaceCaching = caching;
+        if (!caching) {
+            inScopeNamespaces = null;
+            declaredNamespaces = null;
+        }
+    }
+
+    /**
+     * Ask whether the namespaces of elements are cached
+     *
+     * @return true if namespace caching is enabled
+     */
+
+    public boolean isNamespaceCaching() {
+        return namespaceCaching;
+    }
+
+    /**
+     * Get the namespaces in scope for a DOM element
+     *
+     * @param element the DOM element
+     * @return the in-scope namespaces, taken from the cache if namespace caching is enabled
+     */
+
+    NamespaceMap getInScopeNamespaces(XmlNode element) {
+        if (namespaceCaching && inScopeNamespaces == null) {
+            inScopeNamespaces = new HashMap<>();
+            watchForChanges();
+        }
+        // collect the ancestors up to the outermost element, or to the nearest one whose namespaces are
+        // cached, and then add the namespaces of each from the top down
+        ArrayList<XmlNode> ancestry = new ArrayList<>();
+        NamespaceMap result = NamespaceMap.emptyMap();
+        XmlNode node = element;
+        while (node != null && node.get_NodeType().Value == XmlNodeType.Element) {
+            if (namespaceCaching) {
+                NamespaceMap cached = inScopeNamespaces.get(node);
+                if (cached != null) {
+                    result = cached;
+                    break;
+                }
+            }
+            ancestry.add(node);
+            node = getParentElement(node);
+        }
+        for (int i = ancestry.size() - 1; i >= 0; i--) {
+            result = DotNetNodeWrapper.addLocalNamespaces(ancestry.get(i), result);
+            if (namespaceCaching && !frozen) {
+                inScopeNamespaces.put(ancestry.get(i), result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the namespace URI bound to a prefix in the scope of a DOM element. If namespaces are cached
+     * this uses the cached in-scope namespaces; otherwise the element and its ancestors are searched
+     * for the nearest binding of the prefix, without computing their other namespaces.
+     *
+     * @param element the DOM element
+     * @param prefix  the prefix, or "" for the default namespace
+     * @return the namespace URI, or null if the prefix is not bound
+     */
+
+    String getURIForPrefix(XmlNode element, String prefix) {
+        if (namespaceCaching) {
+            return getInScopeNamespaces(element).getURI(prefix);
+        }
+        for (XmlNode node = element; node != null && node.get_NodeType().Value == XmlNodeType.Element;
+             node = getParentElement(node)) {
+            // the same precedence as DotNetNodeWrapper.addLocalNamespaces(): the namespace of the element
+            // itself, then its attributes and namespace declarations, the last one winning
+            if (node.get_Prefix().equals(prefix) && !node.get_NamespaceURI().isEmpty()) {
+                return node.get_NamespaceURI();
+            }
+            XmlNamedNodeMap atts = node.get_Attributes();
+            for (int i = atts.get_Count() - 1; i >= 0; i--) {
+                XmlNode att = atts.Item(i);
+                String attName = att.get_Name();
+                if (attName.equals("xmlns") || attName.startsWith("xmlns:")) {
+                    if (attName.length() == 5 ? prefix.isEmpty() : attName.substring(6).equals(prefix)) {
+                        String declared = att.get_Value();
+                        return declared.isEmpty() ? null : declared;
+                    }
+                } else if (att.get_Prefix().equals(prefix) && !att.get_NamespaceURI().isEmpty()) {
+                    return att.get_NamespaceURI();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static XmlNode getParentElement(XmlNode node) {
+        XmlNode parent = node.get_ParentNode();
+        while (parent != null && parent.get_NodeType().Value == XmlNodeType.EntityReference) {
+            parent = parent.get_ParentNode();
+        }
+        return parent;
+    }
+
+    /**
+     * Get the cached namespace declarations of a DOM element
+     *
+     * @param element the DOM element
+     * @return the namespace bindings declared on the element, or null if they are not cached
+     */
+
+    NamespaceBinding[] getCachedDeclaredNamespaces(XmlNode element) {
+        return declaredNamespaces == null ? null : declaredNamespaces.get(element);
+    }
+
+    /**
+     * Retain the namespace declarations of a DOM element, if namespace caching is enabled
+     *
+     * @param element  the DOM element
+     * @param bindings the namespace bindings declared on the element
+     */
+
+    void cacheDeclaredNamespaces(XmlNode element, NamespaceBinding[] bindings) {
+        if (namespaceCaching && !frozen) {
+            if (declaredNamespaces == null) {
+                declaredNamespaces = new HashMap<>();
+                watchForChanges();
+            }
+            declaredNamespaces.put(element, bindings);
+        }
+    }
+
+    /**
+     * Test whether an attribute node is a namespace declaration
+     *
+     * @param att the attribute node
+     * @return true if the attribute is named xmlns or has the prefix xmlns
+     */
+
+    static boolean isNamespaceDeclaration(XmlNode att) {
+        String name = att.get_Name();
+        return name.startsWith("xmlns") && (name.length() == 5 || name.charAt(5) == ':');
+    }
+
+    /**
+     * Set the number of axis steps after which navigation of this document switches to a
+     * TinyTree snapshot of the DOM. Navigating a DOM through wrappers is slower than navigating
+     * a TinyTree; for a document that is queried heavily, it is worth taking a copy. Once the
+     * given number of axis steps have been started from nodes in this document, the DOM is copied
+     * to a TinyTree, and subsequent steps along the descendant, following, preceding, and sibling
+     * axes are evaluated against the copy. The results are still delivered as wrappers for the
+     * corresponding DOM nodes, so the switch is invisible to the application.
+     * <p>If the DOM is modified, the snapshot is discarded and navigation reverts to the DOM, until
+     * the threshold is reached again. A snapshot is only used if the wrapped node is an
+     * <code>XmlDocument</code>, and is not taken if the DOM has adjacent text nodes that a TinyTree
+     * would merge (see {@link DotNetTreeSnapshot}).</p>
+     *
+     * @param threshold the number of axis steps after which a snapshot is taken; zero (the default)
+     *                  means that no snapshot is ever taken
+     */
+
+    public void setPromotionThreshold(int threshold) {
+        checkNotFrozen();
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Promotion threshold must not be negative");
+        }
+        promotionThreshold = threshold;
+        if (threshold == 0) {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Get the number of axis steps after which navigation of this document switches to a
+     * TinyTree snapshot of the DOM
+     *
+     * @return the promotion threshold; zero if no snapshot is ever taken
+     */
+
+    public int getPromotionThreshold() {
+        return promotionThreshold;
+    }
+
+    /**
+     * Register the start of an axis step from a node in this document, and get the TinyTree
+     * snapshot of the document if one is available. The snapshot is built when the number of
+     * steps reaches the promotion threshold.
+     *
+     * @return the snapshot, or null if navigation is to use the DOM
+     */
+
+    DotNetTreeSnapshot noteAxisStep() {
+        if (promotionThreshold == 0 || frozen) {
+            return snapshot;
+        }
+        if (snapshot == null && !snapshotFailed && ++axisSteps >= promotionThreshold) {
+            XmlNode root = ((DotNetNodeWrapper) getRootNode()).node;
+            if (root instanceof XmlDocument) {
+                try {
+                    snapshot = DotNetTreeSnapshot.build(this);
+                    watchForChanges();
+                } catch (XPathException e) {
+                    // carry on navigating the DOM
+                    snapshotFailed = true;
+                }
+            } else {
+                snapshotFailed = true;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Freeze the document, so that it can be navigated by many threads at once. XmlDocument gives
+     * no guarantees about concurrent access, and the wrapper normally computes information about
+     * the DOM lazily, as it is needed. Freezing the document computes in advance everything that
+     * navigation needs (the document order index, the tables of child nodes, the in-scope
+     * namespaces of every element, the ID index, and if a promotion threshold has been set, the
+     * TinyTree snapshot), after which navigation only reads shared data. The node cache is not
+     * used for a frozen document, because it is reorganized on every access.
+     * <p>Once frozen, the document cannot be unfrozen, the options of this document wrapper cannot
+     * be changed, and any attempt to modify the DOM fails with an exception. The document should be
+     * frozen before it is made available to other threads.</p>
+     *
+     * @throws IllegalArgumentException if the wrapped node is not an <code>XmlDocument</code>, in
+     *                                  which case changes to it cannot be prevented
+     */
+
+    public synchronized void freeze() {
+        if (frozen) {
+            return;
+        }
+        XmlNode root = ((DotNetNodeWrapper) getRootNode()).node;
+        if (!(root instanceof XmlDocument)) {
+            throw new IllegalArgumentException("Only an XmlDocument can be frozen");
+        }
+        XmlDocument doc = (XmlDocument) root;
+        freezeHandler = new XmlNodeChangedEventHandler(new XmlNodeChangedEventHandler.Method() {
+            @Override
+            public void Invoke(Object sender, XmlNodeChangedEventArgs e) {
+                throw new IllegalStateException("The DOM document has been frozen and cannot be modified");
+            }
+        });
+        doc.add_NodeInserting(freezeHandler);
+        doc.add_NodeRemoving(freezeHandler);
+        doc.add_NodeChanging(freezeHandler);
+
+        nodeCacheSize = 0;
+        nodeCache = null;
+        orderIndexing = true;
+        siblingIndexing = true;
+        namespaceCaching = true;
+        getOrderEntry(root);
+        getIdIndex();
+        XmlNode node = root;
+        while (node != null) {
+            if (node.get_HasChildNodes()) {
+                getChildTable(node);
+            }
+            if (node.get_NodeType().Value == XmlNodeType.Element) {
+                getInScopeNamespaces(node);
+            }
+            // move to the next node in document order
+            XmlNode next = node.get_FirstChild();
+            while (next == null && node != root) {
+                next = node.get_NextSibling();
+                if (next == null) {
+                    node = node.get_ParentNode();
+                }
+            }
+            node = next;
+        }
+        if (promotionThreshold > 0 && snapshot == null) {
+            try {
+                snapshot = DotNetTreeSnapshot.build(this);
+            } catch (XPathException e) {
+                // navigate the DOM instead
+            }
+        }
+        frozen = true;
+    }
+
+    /**
+     * Ask whether the document has been frozen
+     *
+     * @return true if {@link #freeze()} has been called
+     */
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The options of a frozen document cannot be changed");
+        }
+    }
+
+    /**
+     * Register for notification of changes to the DOM, so that information derived from
+     * the DOM can be discarded when it is modified. Once registered, the document wrapper counts
+     * the modifications made to the DOM for as long as it exists, so that node wrappers held by the
+     * application always notice later changes. The handler refers to the document wrapper weakly,
+     * so the XmlDocument does not keep it alive; the handler removes itself once the document
+     * wrapper has been garbage collected.
+     */
+
+    private void watchForChanges() {
+        if (changeHandler == null) {
+            XmlNode root = ((DotNetNodeWrapper) getRootNode()).node;
+            if (root instanceof XmlDocument) {
+                changeHandler = makeChangeHandler((XmlDocument) root, new WeakReference<>(this));
+                // the DOM may have changed while it was not being tracked, so existing node wrappers
+                // must recompute their information
+                modificationCount++;
+            }
+        }
+    }
+
+    /**
+     * Create and register a handler for changes to an XmlDocument. This is a static method so that
+     * the handler refers to the document wrapper only through the weak reference.
+     */
+
+    private static XmlNodeChangedEventHandler makeChangeHandler(final XmlDocument doc,
+                                                                final WeakReference<DotNetDocumentWrapper> ref) {
+        final XmlNodeChangedEventHandler[] handler = new XmlNodeChangedEventHandler[1];
+        handler[0] = new XmlNodeChangedEventHandler(new XmlNodeChangedEventHandler.Method() {
+            @Override
+            public void Invoke(Object sender, XmlNodeChangedEventArgs e) {
+                DotNetDocumentWrapper wrapper = ref.get();
+                if (wrapper != null) {
+                    wrapper.domChanged();
+                } else {
+                    doc.remove_NodeInserted(handler[0]);
+                    doc.remove_NodeRemoved(handler[0]);
+                    doc.remove_NodeChanged(handler[0]);
+                }
+            }
+        });
+        doc.add_NodeInserted(handler[0]);
+        doc.add_NodeRemoved(handler[0]);
+        doc.add_NodeChanged(handler[0]);
+        return handler[0];
+    }
+
+    /**
+     * Ask whether modifications to the DOM are being tracked. Tracking starts automatically
+     * when any information derived from the DOM is retained by this document wrapper,
+     * for example when a node wrapper is cached or an index is built, then continues for the
+     * life of the document wrapper, and only applies when the wrapped node is an
+     * <code>XmlDocument</code>.
+     *
+     * @return true if changes to the DOM are being tracked
+     */
+
+    public boolean isTrackingChanges() {
+        return changeHandler != null;
+    }
+
+    /**
+     * Get a count of the modifications made to the DOM. Node wrappers compare this with the value
+     * observed when they computed information about their node, to decide whether that information
+     * is still valid.
+     *
+     * @return the number of insertions, removals, and changes to nodes observed while changes were
+     * tracked, plus the number of times tracking has started; zero if changes have never been tracked
+     */
+
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Discard all information derived from the DOM, following a change to the DOM. The
+     * information is rebuilt when next needed.
+     */
+
+    private void domChanged() {
+        modificationCount++;
+        orderIndex = null;
+        childTables = null;
+        siblingPositions = null;
+        inScopeNamespaces = null;
+        declaredNamespaces = null;
+        idIndex = null;
+        snapshot = null;
+        snapshotFailed = false;
+        axisSteps = 0;
+        clearNodeCache();
+    }
+
+    /**
+     * Set the names of attributes, in addition to <code>xml:id</code>, that are to be treated as ID
+     * attributes by the {@link #selectID} method, and hence by the <code>id()</code> and
+     * <code>element-with-id()</code> functions. The DOM only recognizes attributes as IDs if they
+     * are declared as such in a DTD; this method allows documents without a DTD to be searched by ID.
+     *
+     * @param names the local names of attributes in no namespace that are to be treated as ID
+     *              attributes, for example <code>id</code>. May be empty.
+     */
+
+    public void setIdAttributeNames(Set<String> names) {
+        checkNotFrozen();
+        idAttributeNames = new HashSet<>(names);
+        idIndex = null;
+    }
+
+    /**
+     * Get the names of attributes, in addition to <code>xml:id</code>, that are treated as ID attributes
+     *
+     * @return the local names of attributes in no namespace that are treated as ID attributes
+     */
+
+    public Set<String> getIdAttributeNames() {
+        return Collections.unmodifiableSet(idAttributeNames);
+    }
+
+    /**
+     * Get the element with a given ID, if any. An ID declared in the DTD is found using the
+     * DOM method <code>GetElementById</code>. Failing that, the element is found using an index
+     * of <code>xml:id</code> attributes and of the attributes nominated using
+     * {@link #setIdAttributeNames(Set)}. The index is built the first time it is needed, and is
+     * discarded if the DOM is modified.
      *
      * @param id        the required ID value
      * @param getParent true if running the element-with-id() function rather than the id()
@@ -82,7 +815,10 @@ public class DotNetDocumentWrapper extends GenericTreeInfo {
         if (node instanceof XmlDocument) {
             XmlNode el = ((XmlDocument) node).GetElementById(id);
             if (el == null) {
-                return null;
+                el = getIdIndex().get(id);
+                if (el == null) {
+                    return null;
+                }
             }
             return wrap(el);
         } else {
@@ -90,6 +826,113 @@ public class DotNetDocumentWrapper extends GenericTreeInfo {
         }
     }
 
+    /**
+     * Get the index of elements by the values of their ID attributes, building it if necessary
+     *
+     * @return a map from ID values to elements
+     */
 
-}
+    private Map<String, XmlNode> getIdIndex() {
+        if (idIndex == null) {
+            idIndex = buildIdIndex(((DotNetNodeWrapper) getRootNode()).node, idAttributeNames);
+            watchForChanges();
+        }
+        return idIndex;
+    }
+
+    /**
+     * Build an index of the elements in a DOM tree by the values of their ID attributes. Where
+     * two elements have the same ID, the first one is indexed.
+     *
+     * @param root           the root of the DOM tree
+     * @param attributeNames the local names of attributes in no namespace that are treated as ID
+     *                       attributes, in addition to <code>xml:id</code>
+     * @return a map from ID values to elements
+     */
 
+    private static Map<String, XmlNode> buildIdIndex(XmlNode root, Set<String> attributeNames) {
+        Map<String, XmlNode> index = new HashMap<>();
+        XmlNode node = root;
+        while (node != null) {
+            if (node.get_NodeType().Value == XmlNodeType.Element) {
+                XmlNamedNodeMap atts = node.get_Attributes();
+                for (int i = 0; i < atts.get_Count(); i++) {
+                    XmlNode att = atts.Item(i);
+                    String uri = att.get_NamespaceURI();
+                    boolean isId = uri.isEmpty()
+                            ? attributeNames.contains(att.get_LocalName())
+                            : uri.equals(NamespaceConstant.XML) && att.get_LocalName().equals("id");
+                    if (isId) {
+                        String value = Whitespace.collapseWhitespace(att.get_Value()).toString();
+                        if (!index.containsKey(value)) {
+                            index.put(value, node);
+                        }
+                    }
+                }
+            }
+            // move to the next node in document order
+            XmlNode next = node.get_FirstChild();
+            while (next == null && node != root) {
+                next = node.get_NextSibling();
+                if (next == null) {
+                    node = node.get_ParentNode();
+                    if (node == null) {
+                        break;
+                    }
+                }
+            }
+            node = next;
+        }
+        return index;
+    }
+
+    /**
+     * Entry in the document order index for one node
+     */
+
+    static final class OrderEntry {
+        final int number;           // position of the node in a pre-order traversal
+        final int siblingPosition;  // position of the node among its siblings (or among the attributes)
+
+        OrderEntry(int number, int siblingPosition) {
+            this.number = number;
+            this.siblingPosition = siblingPosition;
+        }
+    }
+
+    /**
+     * The children of a DOM node held in an array, together with the lengths of the runs of
+     * adjacent text nodes, which are presented as a single text node in the XPath data model
+     */
+
+    static final class ChildTable {
+        final XmlNode[] children;
+        final int[] followingText;  // number of adjacent text nodes starting at this position
+        final int[] precedingText;  // number of adjacent text nodes ending at this position
+
+        ChildTable(XmlNode parent) {
+            int count = 0;
+            for (XmlNode child = parent.get_FirstChild(); child != null; child = child.get_NextSibling()) {
+                count++;
+            }
+            children = new XmlNode[count];
+            followingText = new int[count];
+            precedingText = new int[count];
+            int i = 0;
+            for (XmlNode child = parent.get_FirstChild(); child != null; child = child.get_NextSibling()) {
+                children[i] = child;
+                if (DotNetNodeWrapper.isTextNode(child)) {
+                    precedingText[i] = i == 0 ? 1 : precedingText[i - 1] + 1;
+                }
+                i++;
+            }
+            for (i = count - 1; i >= 0; i--) {
+                if (precedingText[i] != 0) {
+                    followingText[i] = i == count - 1 ? 1 : followingText[i + 1] + 1;
+                }
+            }
+        }
+    }
+
+
+}
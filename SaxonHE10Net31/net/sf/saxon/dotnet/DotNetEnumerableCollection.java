@@ -27,6 +27,8 @@ import java.util.Iterator;
 public class DotNetEnumerableCollection extends AbstractResourceCollection {
 
     IEnumerable list;
+    private int parallelism = 1;
+    private int readAhead = 0;
 
     /**
      * Create a DotNetEnumerableCollection.
@@ -40,8 +42,49 @@ public class DotNetEnumerableCollection extends AbstractResourceCollection {
         this.list = list;
     }
 
+    /**
+     * Set the number of threads used to fetch and parse the resources in the collection. When this is
+     * greater than one, resources are fetched and parsed by worker threads ahead of the point reached by
+     * the query, and delivered in collection order. This is worthwhile for collections of many small documents.
+     *
+     * @param parallelism the number of worker threads. The default is 1, meaning that each resource is
+     *                    fetched and parsed by the query thread, at the time it is needed
+     * @param readAhead   the maximum number of resources fetched and parsed ahead of the query. Zero means
+     *                    twice the number of worker threads
+     */
+
+    public void setParallelism(int parallelism, int readAhead) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("Read-ahead must not be negative");
+        }
+        this.parallelism = parallelism;
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Get the number of threads used to fetch and parse the resources in the collection
+     *
+     * @return the number of worker threads; 1 if resources are fetched by the query thread
+     */
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
     @Override
     public Iterator<? extends Resource> getResources(XPathContext context) throws XPathException {
+        Iterator<Resource> resources = getSerialResources(context);
+        if (parallelism > 1) {
+            return new DotNetParallelResourceIterator(resources, context, parallelism,
+                                                      readAhead == 0 ? 2 * parallelism : readAhead);
+        }
+        return resources;
+    }
+
+    private Iterator<Resource> getSerialResources(XPathContext context) {
         final Configuration config = context.getConfiguration();
         return new DotNetIterator<Resource>(list.GetEnumerator(), new DotNetIterator.Mapper<Resource>() {
             @Override
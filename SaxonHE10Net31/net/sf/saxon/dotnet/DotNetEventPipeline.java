@@ -0,0 +1,421 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.IXmlLineInfo;
+import cli.System.Xml.XmlNodeType;
+import cli.System.Xml.XmlReader;
+import cli.System.Xml.XmlSpace;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.om.*;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Untyped;
+import net.sf.saxon.value.Whitespace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads a document using a .NET XmlReader on a background thread, while the calling thread
+ * sends the events to a Receiver. The two threads communicate through a fixed ring of event
+ * batches: the reader thread fills a free batch with the events it reads and passes it to the
+ * calling thread, which replays the events and hands the batch back for reuse. A batch is only
+ * allocated when the reader thread finds no free batch, so a small document uses a single batch.
+ * The batches hold their events in arrays that are reused, so once the ring has reached its working
+ * size no further allocation takes place other than the strings supplied by the XmlReader. Because the
+ * ring is bounded, the reader thread is never more than a fixed number of events ahead of the tree builder.
+ * <p>This is worthwhile only for large documents on machines with more than one processor; for small
+ * documents the cost of starting the thread exceeds the gain.</p>
+ */
+
+public class DotNetEventPipeline {
+
+    private static final int BATCH_SIZE = 4096;   // events per batch
+    private static final int RING_SIZE = 8;       // number of batches
+
+    private static final int START_ELEMENT = 1;
+    private static final int END_ELEMENT = 2;
+    private static final int TEXT = 3;
+    private static final int COMMENT = 4;
+    private static final int PROCESSING_INSTRUCTION = 5;
+    private static final int WHITESPACE = 6;             // whitespace-only text, only used when there is a
+                                                         // space stripping rule
+    private static final int PRESERVED_WHITESPACE = 7;   // whitespace-only text within xml:space="preserve"
+
+    private final XmlReader parser;
+    private final String systemId;
+    private final boolean expandDefaults;
+    private final boolean lineNumbering;
+    private final ArrayBlockingQueue<Batch> free = new ArrayBlockingQueue<>(RING_SIZE);
+    private final ArrayBlockingQueue<Batch> full = new ArrayBlockingQueue<>(RING_SIZE);
+    private volatile boolean cancelled = false;
+    private int allocated = 0;                    // number of batches created, used by the reader thread
+    private SpaceStrippingRule stripRule = null;
+
+    // state of the calling thread
+    private final ArrayList<NamespaceMap> namespaceStack = new ArrayList<>(50);
+    private NamespaceMap namespaces = NamespaceMap.emptyMap();
+
+    /**
+     * Create a pipeline to read a document
+     *
+     * @param parser         the XmlReader, positioned at the start of the document. It is closed when
+     *                       reading finishes
+     * @param systemId       the system identifier of the document, used in locations
+     * @param expandDefaults true if attributes supplied by default from the DTD are to be reported
+     * @param lineNumbering  true if elements are to be given line and column numbers
+     */
+
+    public DotNetEventPipeline(XmlReader parser, String systemId, boolean expandDefaults, boolean lineNumbering) {
+        this.parser = parser;
+        this.systemId = systemId;
+        this.expandDefaults = expandDefaults;
+        this.lineNumbering = lineNumbering && parser instanceof IXmlLineInfo;
+    }
+
+    /**
+     * Supply a rule for stripping whitespace text nodes. The reader thread marks the whitespace text
+     * nodes, and the rule is applied to them on the calling thread, where the element names are known.
+     * This must be called before {@link #send}.
+     *
+     * @param rule the space stripping rule, or null if whitespace text nodes are to be passed on
+     */
+
+    public void setSpaceStrippingRule(SpaceStrippingRule rule) {
+        stripRule = rule;
+    }
+
+    /**
+     * Read the content of the document, sending the events to a Receiver. The caller is responsible
+     * for the startDocument and endDocument events.
+     *
+     * @param out   the Receiver
+     * @param names the cache used to construct element and attribute names
+     * @throws XPathException if the XML parser reports an error, or if the Receiver fails
+     */
+
+    public void send(Receiver out, DotNetNameCache names) throws XPathException {
+        DotNetSpaceStripper stripper = stripRule == null ? null : new DotNetSpaceStripper(stripRule);
+        Thread reader = new Thread(this::read, "Saxon XmlReader");
+        reader.setDaemon(true);
+        reader.start();
+        boolean finished = false;
+        try {
+            while (true) {
+                Batch batch = full.take();
+                replay(batch, out, names, stripper);
+                if (batch.last) {
+                    finished = true;
+                    if (batch.error != null) {
+                        throw DotNetEventSource.makeParserException(batch.error, systemId);
+                    }
+                    return;
+                }
+                batch.clear();
+                free.put(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for the XML parser");
+        } finally {
+            if (!finished) {
+                // the Receiver failed: stop the reader thread
+                cancelled = true;
+                reader.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read the document, filling batches of events. This runs on the background thread.
+     */
+
+    private void read() {
+        Batch batch = null;
+        Throwable error = null;
+        boolean abandoned = false;
+        boolean markWhitespace = stripRule != null;
+        try {
+            try {
+                batch = nextBatch();
+                while (!cancelled && parser.Read()) {
+                    switch (parser.get_NodeType().Value) {
+                        case XmlNodeType.Element:
+                            batch.addStartElement(parser, expandDefaults, lineNumbering);
+                            if (parser.get_IsEmptyElement()) {
+                                batch.addEvent(END_ELEMENT, null, null);
+                            }
+                            break;
+                        case XmlNodeType.EndElement:
+                            batch.addEvent(END_ELEMENT, null, null);
+                            break;
+                        case XmlNodeType.Whitespace:
+                        case XmlNodeType.SignificantWhitespace:
+                        case XmlNodeType.Text:
+                        case XmlNodeType.CDATA:
+                            if (parser.get_Depth() > 0) {
+                                String value = parser.get_Value();
+                                int kind = TEXT;
+                                if (markWhitespace && Whitespace.isWhite(value)) {
+                                    kind = parser.get_XmlSpace().Value == XmlSpace.Preserve
+                                            ? PRESERVED_WHITESPACE : WHITESPACE;
+                                }
+                                batch.addEvent(kind, null, value);
+                            }
+                            break;
+                        case XmlNodeType.Comment:
+                            batch.addEvent(COMMENT, null, parser.get_Value());
+                            break;
+                        case XmlNodeType.ProcessingInstruction:
+                            batch.addEvent(PROCESSING_INSTRUCTION, parser.get_Name(), parser.get_Value());
+                            break;
+                        case XmlNodeType.EntityReference:
+                            if (parser.get_CanResolveEntity()) {
+                                parser.ResolveEntity();
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    // an element can add two events, so keep room for them
+                    if (batch.size >= BATCH_SIZE - 1) {
+                        full.put(batch);
+                        batch = nextBatch();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the calling thread has abandoned the parse
+                abandoned = true;
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                try {
+                    parser.Close();
+                } catch (Throwable e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        } finally {
+            // always post the final batch, so that the calling thread is not left waiting
+            if (batch != null && !abandoned && !cancelled) {
+                batch.last = true;
+                batch.error = error;
+                try {
+                    full.put(batch);
+                } catch (InterruptedException e) {
+                    // the calling thread has abandoned the parse
+                }
+            }
+        }
+    }
+
+    /**
+     * Get an empty batch to be filled, reusing one that the calling thread has finished with if there is
+     * one, and otherwise creating a new one until the ring is complete. This runs on the background thread.
+     */
+
+    private Batch nextBatch() throws InterruptedException {
+        Batch batch = free.poll();
+        if (batch == null) {
+            if (allocated < RING_SIZE) {
+                allocated++;
+                return new Batch();
+            }
+            batch = free.take();
+        }
+        return batch;
+    }
+
+    /**
+     * Send the events in a batch to the Receiver. This runs on the calling thread.
+     */
+
+    private void replay(Batch batch, Receiver out, DotNetNameCache names, DotNetSpaceStripper stripper)
+            throws XPathException {
+        for (int i = 0; i < batch.size; i++) {
+            switch (batch.kinds[i]) {
+                case START_ELEMENT: {
+                    NamespaceMap inScope = namespaces;
+                    int ns = batch.firstNamespace[i];
+                    for (int j = 0; j < batch.namespaceCount[i]; j++, ns++) {
+                        inScope = inScope.bind(batch.nsPrefixes[ns], batch.nsUris[ns]);
+                    }
+                    AttributeMap atts;
+                    int count = batch.attributeCount[i];
+                    if (count == 0) {
+                        atts = EmptyAttributeMap.getInstance();
+                    } else {
+                        ArrayList<AttributeInfo> list = new ArrayList<>(count);
+                        int a = batch.firstAttribute[i];
+                        for (int j = 0; j < count; j++, a++) {
+                            list.add(new AttributeInfo(
+                                    names.getNodeName(batch.attPrefixes[a], batch.attUris[a], batch.attLocals[a]),
+                                    BuiltInAtomicType.UNTYPED_ATOMIC, batch.attValues[a], Loc.NONE, ReceiverOption.NONE));
+                        }
+                        atts = AttributeMap.fromList(list);
+                    }
+                    Location loc = batch.lines[i] > 0
+                            ? new Loc(systemId, batch.lines[i], batch.columns[i])
+                            : Loc.NONE;
+                    NodeName name = names.getNodeName(batch.prefixes[i], batch.uris[i], batch.locals[i]);
+                    out.startElement(name, Untyped.getInstance(), atts, inScope, loc, ReceiverOption.NONE);
+                    namespaceStack.add(namespaces);
+                    namespaces = inScope;
+                    if (stripper != null) {
+                        stripper.startElement(name);
+                    }
+                    break;
+                }
+                case END_ELEMENT:
+                    out.endElement();
+                    namespaces = namespaceStack.remove(namespaceStack.size() - 1);
+                    if (stripper != null) {
+                        stripper.endElement();
+                    }
+                    break;
+                case WHITESPACE:
+                case PRESERVED_WHITESPACE:
+                    if (stripper.isStripped(batch.kinds[i] == PRESERVED_WHITESPACE)) {
+                        // strip it unless more text follows in the same text node
+                        stripper.holdWhitespace(batch.values[i]);
+                        break;
+                    }
+                    // otherwise treat it like any other text
+                case TEXT:
+                    if (stripper != null) {
+                        String held = stripper.releaseWhitespace();
+                        if (held != null) {
+                            out.characters(held, Loc.NONE, ReceiverOption.NONE);
+                        }
+                    }
+                    out.characters(batch.values[i], Loc.NONE, ReceiverOption.NONE);
+                    break;
+                case COMMENT:
+                    if (stripper != null) {
+                        stripper.endText();
+                    }
+                    out.comment(batch.values[i], Loc.NONE, ReceiverOption.NONE);
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    if (stripper != null) {
+                        stripper.endText();
+                    }
+                    out.processingInstruction(batch.locals[i], batch.values[i], Loc.NONE, ReceiverOption.NONE);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A batch of events. Each event occupies one position in the per-event arrays; the attributes
+     * and namespace declarations of elements are held in separate arrays, which grow as needed
+     * and are then reused.
+     */
+
+    private static final class Batch {
+        int size = 0;
+        boolean last = false;
+        Throwable error = null;
+
+        final int[] kinds = new int[BATCH_SIZE];
+        final String[] prefixes = new String[BATCH_SIZE];
+        final String[] uris = new String[BATCH_SIZE];
+        final String[] locals = new String[BATCH_SIZE];
+        final String[] values = new String[BATCH_SIZE];
+        final int[] lines = new int[BATCH_SIZE];
+        final int[] columns = new int[BATCH_SIZE];
+        final int[] firstAttribute = new int[BATCH_SIZE];
+        final int[] attributeCount = new int[BATCH_SIZE];
+        final int[] firstNamespace = new int[BATCH_SIZE];
+        final int[] namespaceCount = new int[BATCH_SIZE];
+
+        int attributesUsed = 0;
+        String[] attPrefixes = new String[BATCH_SIZE];
+        String[] attUris = new String[BATCH_SIZE];
+        String[] attLocals = new String[BATCH_SIZE];
+        String[] attValues = new String[BATCH_SIZE];
+
+        int namespacesUsed = 0;
+        String[] nsPrefixes = new String[64];
+        String[] nsUris = new String[64];
+
+        void addEvent(int kind, String name, String value) {
+            kinds[size] = kind;
+            locals[size] = name;
+            values[size] = value;
+            size++;
+        }
+
+        void addStartElement(XmlReader parser, boolean expandDefaults, boolean lineNumbering) {
+            int k = size++;
+            kinds[k] = START_ELEMENT;
+            prefixes[k] = parser.get_Prefix();
+            uris[k] = parser.get_NamespaceURI();
+            locals[k] = parser.get_LocalName();
+            if (lineNumbering && ((IXmlLineInfo) parser).HasLineInfo()) {
+                lines[k] = ((IXmlLineInfo) parser).get_LineNumber();
+                columns[k] = ((IXmlLineInfo) parser).get_LinePosition();
+            } else {
+                lines[k] = -1;
+            }
+            firstAttribute[k] = attributesUsed;
+            firstNamespace[k] = namespacesUsed;
+            if (parser.MoveToFirstAttribute()) {
+                do {
+                    String prefix = parser.get_Prefix();
+                    String localName = parser.get_LocalName();
+                    if ("xmlns".equals(prefix)) {
+                        addNamespace(localName, parser.get_Value());
+                    } else if (prefix.isEmpty() && "xmlns".equals(localName)) {
+                        addNamespace("", parser.get_Value());
+                    } else if (expandDefaults || !parser.get_IsDefault()) {
+                        if (attributesUsed == attValues.length) {
+                            int n = attributesUsed * 2;
+                            attPrefixes = Arrays.copyOf(attPrefixes, n);
+                            attUris = Arrays.copyOf(attUris, n);
+                            attLocals = Arrays.copyOf(attLocals, n);
+                            attValues = Arrays.copyOf(attValues, n);
+                        }
+                        attPrefixes[attributesUsed] = prefix;
+                        attUris[attributesUsed] = parser.get_NamespaceURI();
+                        attLocals[attributesUsed] = localName;
+                        attValues[attributesUsed] = parser.get_Value();
+                        attributesUsed++;
+                    }
+                } while (parser.MoveToNextAttribute());
+                parser.MoveToElement();
+            }
+            attributeCount[k] = attributesUsed - firstAttribute[k];
+            namespaceCount[k] = namespacesUsed - firstNamespace[k];
+        }
+
+        private void addNamespace(String prefix, String uri) {
+            if (namespacesUsed == nsUris.length) {
+                int n = namespacesUsed * 2;
+                nsPrefixes = Arrays.copyOf(nsPrefixes, n);
+                nsUris = Arrays.copyOf(nsUris, n);
+            }
+            nsPrefixes[namespacesUsed] = prefix;
+            nsUris[namespacesUsed] = uri;
+            namespacesUsed++;
+        }
+
+        void clear() {
+            size = 0;
+            attributesUsed = 0;
+            namespacesUsed = 0;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.*;
+import cli.System.Xml.Schema.XmlSchemaException;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.EventSource;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.Validation;
+import net.sf.saxon.om.*;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Untyped;
+import net.sf.saxon.value.Whitespace;
+
+import java.util.ArrayList;
+
+/**
+ * An EventSource that reads a document using a .NET XmlReader and sends it directly to a Receiver.
+ * This does the same job as a {@link net.sf.saxon.pull.PullSource} wrapping a {@link DotNetPullProvider},
+ * but without the generic bridge that turns pull events into push events. The reader is drained in a
+ * single loop; the attributes of each element are collected into a list and turned into an AttributeMap
+ * in one operation, and the NamespaceMap of the parent element is reused unchanged for every element
+ * that has no namespace declarations of its own.
+ */
+
+public class DotNetEventSource extends EventSource {
+
+    private final XmlReader parser;
+    private DotNetNameCache nameCache;
+    private boolean pipelined = false;
+    private DotNetProjection projection = null;
+    private NamespaceMap inheritedNamespaces = NamespaceMap.emptyMap();
+    private SpaceStrippingRule stripRule = null;
+
+    /**
+     * Create an EventSource that reads a document using a .NET XmlReader
+     *
+     * @param parser the .NET XmlReader, positioned at the start of the document
+     */
+
+    public DotNetEventSource(XmlReader parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Supply the cache to be used for the names of elements and attributes. If none is supplied,
+     * the cache shared by all documents parsed under the same Configuration is used.
+     *
+     * @param cache the name cache
+     */
+
+    public void setNameCache(DotNetNameCache cache) {
+        nameCache = cache;
+    }
+
+    /**
+     * Say whether the document is to be read on a separate thread from the one that builds the tree.
+     * See {@link DotNetEventPipeline}. This is worthwhile only for large documents.
+     *
+     * @param pipelined true if reading and tree building are to run on separate threads. The default is false.
+     */
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Ask whether the document is to be read on a separate thread from the one that builds the tree
+     *
+     * @return true if reading and tree building run on separate threads
+     */
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Supply a projection, so that only the parts of the document that can be used by a particular
+     * query are passed to the Receiver. Subtrees that are not needed are skipped by the XmlReader
+     * without being reported. A document that is projected is always read on the calling thread,
+     * whether or not pipelining has been requested.
+     *
+     * @param projection the projection to be applied, or null if the whole document is to be delivered
+     */
+
+    public void setProjection(DotNetProjection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Supply a rule for stripping whitespace text nodes. The rule is applied as the document is read, so
+     * that stripped text nodes are never passed to the Receiver. See {@link DotNetSpaceStripper}.
+     *
+     * @param rule the space stripping rule, or null if whitespace text nodes are to be passed on
+     */
+
+    public void setSpaceStrippingRule(SpaceStrippingRule rule) {
+        stripRule = rule;
+    }
+
+    /**
+     * Supply the namespaces that are in scope for the first element read, in addition to those it declares
+     * itself. This is needed when the XmlReader delivers a subtree of a larger document (see
+     * <code>XmlReader.ReadSubtree()</code>), whose element names may use prefixes declared on ancestors
+     * outside the subtree. A document with inherited namespaces is always read on the calling thread.
+     *
+     * @param namespaces the namespaces in scope for the parent of the first element
+     */
+
+    public void setInheritedNamespaces(NamespaceMap namespaces) {
+        inheritedNamespaces = namespaces;
+    }
+
+    /**
+     * Read the document and send it to a Receiver
+     *
+     * @param out the Receiver to which the events are to be sent
+     * @throws XPathException if the XML parser reports an error, or if the Receiver fails
+     */
+
+    @Override
+    public void send(Receiver out) throws XPathException {
+        Configuration config = out.getPipelineConfiguration().getConfiguration();
+        DotNetNameCache names = nameCache == null ? new DotNetNameCache(config, true) : nameCache;
+        boolean expandDefaults = config.isExpandAttributeDefaults();
+        String systemId = getSystemId();
+        // the Sender does not add a validator for an EventSource, as it does for a PullSource
+        ParseOptions options = out.getPipelineConfiguration().getParseOptions();
+        int validation = options.getSchemaValidationMode();
+        if (validation != Validation.PRESERVE && validation != Validation.DEFAULT) {
+            out = config.getDocumentValidator(out, systemId, options, null);
+        }
+        if (systemId != null) {
+            out.setSystemId(systemId);
+        }
+        out.open();
+        out.startDocument(ReceiverOption.NONE);
+        if (pipelined && projection == null && inheritedNamespaces.isEmpty()) {
+            // line numbers are always reported, as by the pull parser: whether they are kept is decided by the Builder
+            DotNetEventPipeline pipeline = new DotNetEventPipeline(parser, systemId, expandDefaults, true);
+            pipeline.setSpaceStrippingRule(stripRule);
+            pipeline.send(out, names);
+        } else {
+            IXmlLineInfo lineInfo = parser instanceof IXmlLineInfo ? (IXmlLineInfo) parser : null;
+            read(out, names, expandDefaults, lineInfo, systemId);
+        }
+        out.endDocument();
+        out.close();
+    }
+
+    private void read(Receiver out, DotNetNameCache names, boolean expandDefaults, IXmlLineInfo lineInfo,
+                      String systemId) throws XPathException {
+        ArrayList<NamespaceMap> namespaceStack = new ArrayList<>(50);
+        NamespaceMap namespaces = inheritedNamespaces;
+        ArrayList<AttributeInfo> attributes = new ArrayList<>();
+        DotNetProjection.Projector projector = projection == null ? null : projection.makeProjector();
+        DotNetSpaceStripper stripper = stripRule == null ? null : new DotNetSpaceStripper(stripRule);
+        try {
+            boolean more = parser.Read();
+            while (more) {
+                boolean skipped = false;
+                int nodeType = parser.get_NodeType().Value;
+                if (stripper != null && (nodeType == XmlNodeType.Element || nodeType == XmlNodeType.Comment ||
+                        nodeType == XmlNodeType.ProcessingInstruction)) {
+                    // the end of a text node: any whitespace held back is stripped
+                    stripper.endText();
+                }
+                switch (nodeType) {
+                    case XmlNodeType.Element: {
+                        NodeName name = names.getNodeName(
+                                parser.get_Prefix(), parser.get_NamespaceURI(), parser.get_LocalName());
+                        if (projector != null && !projector.startElement(name)) {
+                            // Skip() leaves the reader positioned at the node after the element
+                            parser.Skip();
+                            skipped = true;
+                            break;
+                        }
+                        NamespaceMap inScope = namespaces;
+                        attributes.clear();
+                        if (parser.MoveToFirstAttribute()) {
+                            do {
+                                String prefix = parser.get_Prefix();
+                                String localName = parser.get_LocalName();
+                                if ("xmlns".equals(prefix)) {
+                                    inScope = inScope.bind(localName, parser.get_Value());
+                                } else if (prefix.isEmpty() && "xmlns".equals(localName)) {
+                                    inScope = inScope.bind("", parser.get_Value());
+                                } else if (expandDefaults || !parser.get_IsDefault()) {
+                                    // .NET does not report the attribute type
+                                    attributes.add(new AttributeInfo(
+                                            names.getNodeName(prefix, parser.get_NamespaceURI(), localName),
+                                            BuiltInAtomicType.UNTYPED_ATOMIC, parser.get_Value(),
+                                            Loc.NONE, ReceiverOption.NONE));
+                                }
+                            } while (parser.MoveToNextAttribute());
+                            parser.MoveToElement();
+                        }
+                        AttributeMap atts = attributes.isEmpty()
+                                ? EmptyAttributeMap.getInstance()
+                                : AttributeMap.fromList(new ArrayList<>(attributes));
+                        Location loc = lineInfo != null && lineInfo.HasLineInfo()
+                                ? new Loc(systemId, lineInfo.get_LineNumber(), lineInfo.get_LinePosition())
+                                : Loc.NONE;
+                        out.startElement(name, Untyped.getInstance(), atts, inScope, loc, ReceiverOption.NONE);
+                        if (parser.get_IsEmptyElement()) {
+                            out.endElement();
+                            if (projector != null) {
+                                projector.endElement();
+                            }
+                        } else {
+                            namespaceStack.add(namespaces);
+                            namespaces = inScope;
+                            if (stripper != null) {
+                                stripper.startElement(name);
+                            }
+                        }
+                        break;
+                    }
+                    case XmlNodeType.EndElement:
+                        out.endElement();
+                        namespaces = namespaceStack.remove(namespaceStack.size() - 1);
+                        if (projector != null) {
+                            projector.endElement();
+                        }
+                        if (stripper != null) {
+                            stripper.endElement();
+                        }
+                        break;
+                    case XmlNodeType.Whitespace:
+                    case XmlNodeType.SignificantWhitespace:
+                    case XmlNodeType.Text:
+                    case XmlNodeType.CDATA:
+                        if (parser.get_Depth() > 0 && (projector == null || projector.keepText())) {
+                            String value = parser.get_Value();
+                            if (stripper != null) {
+                                if ((nodeType == XmlNodeType.Whitespace || nodeType == XmlNodeType.SignificantWhitespace ||
+                                        Whitespace.isWhite(value)) &&
+                                        stripper.isStripped(parser.get_XmlSpace().Value == XmlSpace.Preserve)) {
+                                    // strip it unless more text follows in the same text node
+                                    stripper.holdWhitespace(value);
+                                    break;
+                                }
+                                String held = stripper.releaseWhitespace();
+                                if (held != null) {
+                                    out.characters(held, Loc.NONE, ReceiverOption.NONE);
+                                }
+                            }
+                            out.characters(value, Loc.NONE, ReceiverOption.NONE);
+                        }
+                        break;
+                    case XmlNodeType.Comment:
+                        if (projector == null || projector.keepComment()) {
+                            out.comment(parser.get_Value(), Loc.NONE, ReceiverOption.NONE);
+                        }
+                        break;
+                    case XmlNodeType.ProcessingInstruction:
+                        if (projector == null || projector.keepProcessingInstruction()) {
+                            out.processingInstruction(parser.get_Name(), parser.get_Value(), Loc.NONE, ReceiverOption.NONE);
+                        }
+                        break;
+                    case XmlNodeType.EntityReference:
+                        // only reported if the reader does not expand entities itself
+                        if (parser.get_CanResolveEntity()) {
+                            parser.ResolveEntity();
+                        }
+                        break;
+                    default:
+                        // for example the XML declaration, the document type declaration, and EndEntity
+                        break;
+                }
+                more = skipped ? !parser.get_EOF() : parser.Read();
+            }
+            //noinspection ConstantIfStatement
+            if (false) throw new XmlException("dummy"); // keeps the compiler happy
+            //noinspection ConstantIfStatement
+            if (false) throw new XmlSchemaException("dummy", new XmlException("dummy")); // keeps the compiler happy
+        } catch (XPathException e) {
+            throw e;
+        } catch (XmlException e) {
+            throw makeParserException(e, systemId);
+        } catch (XmlSchemaException e) {
+            throw makeParserException(e, systemId);
+        } catch (Exception e) {
+            throw makeParserException(e, systemId);
+        } finally {
+            parser.Close();
+        }
+    }
+
+    /**
+     * Make an XPathException to report an error thrown by the XmlReader
+     *
+     * @param e        the exception thrown by the XmlReader
+     * @param systemId the system identifier of the document being read
+     * @return the exception to be thrown
+     */
+
+    static XPathException makeParserException(Throwable e, String systemId) {
+        XPathException de;
+        if (e instanceof XmlException) {
+            de = new XPathException("Error reported by XML parser: " + e.getMessage(), e);
+            de.setLocator(new Loc(systemId, ((XmlException) e).get_LineNumber(), ((XmlException) e).get_LinePosition()));
+        } else if (e instanceof XmlSchemaException) {
+            de = new XPathException("Validation error reported by XML parser: " + e.getMessage(), e);
+            de.setLocator(new Loc(systemId, ((XmlSchemaException) e).get_LineNumber(),
+                                  ((XmlSchemaException) e).get_LinePosition()));
+        } else {
+            // for example System.IO.FileNotFoundException when the DTD can't be located
+            de = new XPathException("Error reported by XML parser: " + e.getMessage(), e);
+            de.setLocator(new Loc(systemId, -1, -1));
+        }
+        return de;
+    }
+}
@@ -0,0 +1,243 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.Linq.*;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.GenericTreeInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.value.Whitespace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The document node of a tree implemented as a wrapper around a LINQ to XML tree: that is, an
+ * <code>XDocument</code>, or an <code>XElement</code> that has no parent.
+ * <p>The information derived from the tree (the document order index, the ID index, and the positions
+ * held by node wrappers) is discarded by {@link #clearIndexes()}. The <code>DocumentBuilder</code> in the
+ * .NET API calls this from a handler for the <code>Changed</code> event of the root of the tree, so that
+ * the tree may be modified while it is wrapped.</p>
+ */
+
+public class DotNetLinqDocumentWrapper extends GenericTreeInfo {
+
+    private final XContainer root;
+    private Map<XObject, DotNetDocumentWrapper.OrderEntry> orderIndex = null;
+    private Map<String, XElement> idIndex = null;
+    private Map<String, String> generatedPrefixes = null;
+    private Set<String> declaredPrefixes = null;
+    private int modificationCount = 0;
+
+    /**
+     * Wrap a LINQ to XML document or element
+     *
+     * @param root    an <code>XDocument</code>, or an <code>XElement</code> that is to be treated as the root
+     *                of the tree
+     * @param baseURI the base URI of the document
+     * @param config  the Saxon configuration
+     */
+
+    public DotNetLinqDocumentWrapper(XContainer root, String baseURI, Configuration config) {
+        super(config);
+        this.root = root;
+        setRootNode(wrap(root));
+        setSystemId(baseURI);
+    }
+
+    /**
+     * Get the LINQ container at the root of the wrapped tree
+     *
+     * @return the <code>XDocument</code> or <code>XElement</code> at the root of the tree
+     */
+
+    public XContainer getRootContainer() {
+        return root;
+    }
+
+    /**
+     * Create a wrapper for a node in this document
+     *
+     * @param node the LINQ object to be wrapped: an <code>XNode</code> or <code>XAttribute</code> within the
+     *             tree wrapped by this DocumentWrapper
+     * @return a NodeInfo that wraps the supplied node
+     */
+
+    public DotNetLinqNodeWrapper wrap(XObject node) {
+        return DotNetLinqNodeWrapper.makeWrapper(node, this, null, -1);
+    }
+
+    /**
+     * Discard the information derived from the tree (the document order index, the ID index, and the
+     * parent, sibling position and text span held by existing node wrappers). This must be called
+     * whenever the tree is modified while it is wrapped.
+     */
+
+    public void clearIndexes() {
+        modificationCount++;
+        orderIndex = null;
+        idIndex = null;
+        declaredPrefixes = null;
+    }
+
+    /**
+     * Get a count of the calls on {@link #clearIndexes()}. Node wrappers compare this with the value
+     * observed when they computed information about their node, to decide whether that information
+     * is still valid.
+     *
+     * @return the number of times the derived information has been discarded
+     */
+
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Get the entry in the document order index for a node, building the index if necessary.
+     * The index records the position of every node in document order, so that the order of two
+     * nodes can be compared, and the sibling position of a node found, in constant time.
+     *
+     * @param node the LINQ object representing the node
+     * @return the order entry for the node, or null if the node is not part of this tree
+     */
+
+    DotNetDocumentWrapper.OrderEntry getOrderEntry(XObject node) {
+        if (orderIndex == null) {
+            orderIndex = buildOrderIndex(root);
+        }
+        return orderIndex.get(node);
+    }
+
+    private static Map<XObject, DotNetDocumentWrapper.OrderEntry> buildOrderIndex(XContainer root) {
+        Map<XObject, DotNetDocumentWrapper.OrderEntry> index = new HashMap<>();
+        ArrayList<DotNetDocumentWrapper.OrderEntry> ancestors = new ArrayList<>(50);
+        int counter = 0;
+        int position = 0;
+        XNode node = root;
+        walk:
+        while (true) {
+            DotNetDocumentWrapper.OrderEntry entry = new DotNetDocumentWrapper.OrderEntry(counter++, position);
+            index.put(node, entry);
+            if (node instanceof XElement) {
+                int a = 0;
+                for (XAttribute att = ((XElement) node).get_FirstAttribute(); att != null; att = att.get_NextAttribute()) {
+                    if (!att.get_IsNamespaceDeclaration()) {
+                        DotNetDocumentWrapper.OrderEntry attEntry = new DotNetDocumentWrapper.OrderEntry(counter++, a++);
+                        index.put(att, attEntry);
+                    }
+                }
+            }
+            XNode child = node instanceof XContainer ? ((XContainer) node).get_FirstNode() : null;
+            if (child != null) {
+                ancestors.add(entry);
+                node = child;
+                position = 0;
+                continue;
+            }
+            while (!ancestors.isEmpty()) {
+                XNode sibling = node.get_NextNode();
+                if (sibling != null) {
+                    node = sibling;
+                    position++;
+                    continue walk;
+                }
+                DotNetDocumentWrapper.OrderEntry parentEntry = ancestors.remove(ancestors.size() - 1);
+                node = DotNetLinqNodeWrapper.getParentContainer(node);
+                position = parentEntry.siblingPosition;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Get a prefix to be used for a namespace that is used in the tree without a namespace
+     * declaration. LINQ to XML allows such names to be constructed; the XDM requires every
+     * attribute in a namespace to have a prefix. The prefix is chosen so that it is not declared
+     * anywhere in the tree, and so cannot conflict with the declared namespaces in scope.
+     *
+     * @param uri the namespace URI
+     * @return a prefix for the namespace, the same each time the method is called for the same URI
+     */
+
+    String getGeneratedPrefix(String uri) {
+        if (NamespaceConstant.XML.equals(uri)) {
+            return "xml";
+        }
+        if (generatedPrefixes == null) {
+            generatedPrefixes = new HashMap<>();
+        }
+        String prefix = generatedPrefixes.get(uri);
+        if (prefix == null) {
+            if (declaredPrefixes == null) {
+                declaredPrefixes = getDeclaredPrefixes(root);
+            }
+            int n = generatedPrefixes.size();
+            do {
+                prefix = "ns" + n++;
+            } while (declaredPrefixes.contains(prefix) || generatedPrefixes.containsValue(prefix));
+            generatedPrefixes.put(uri, prefix);
+        }
+        return prefix;
+    }
+
+    private static Set<String> getDeclaredPrefixes(XContainer root) {
+        Set<String> prefixes = new HashSet<>();
+        XNode node = root;
+        while (node != null) {
+            if (node instanceof XElement) {
+                for (XAttribute att = ((XElement) node).get_FirstAttribute(); att != null; att = att.get_NextAttribute()) {
+                    if (att.get_IsNamespaceDeclaration()) {
+                        prefixes.add(att.get_Name().get_LocalName());
+                    }
+                }
+            }
+            node = DotNetLinqNodeWrapper.getSuccessorNode(node, root);
+        }
+        return prefixes;
+    }
+
+    /**
+     * Get the element with a given ID, if any. LINQ to XML has no knowledge of DTD-declared IDs,
+     * so only <code>xml:id</code> attributes are recognized. The index is built the first time it is needed.
+     *
+     * @param id        the required ID value
+     * @param getParent true if running the element-with-id() function rather than the id()
+     *                  function; the difference is that in the case of an element of type xs:ID, the parent of
+     *                  the element should be returned, not the element itself.
+     * @return a NodeInfo representing the element with the given ID, or null if there
+     *         is no such element.
+     */
+
+    @Override
+    public NodeInfo selectID(String id, boolean getParent) {
+        if (idIndex == null) {
+            Map<String, XElement> index = new HashMap<>();
+            XName xmlId = XName.Get("id", NamespaceConstant.XML);
+            XNode node = root;
+            while (node != null) {
+                if (node instanceof XElement) {
+                    XAttribute att = ((XElement) node).Attribute(xmlId);
+                    if (att != null) {
+                        String value = Whitespace.collapseWhitespace(att.get_Value()).toString();
+                        if (!index.containsKey(value)) {
+                            index.put(value, (XElement) node);
+                        }
+                    }
+                }
+                node = DotNetLinqNodeWrapper.getSuccessorNode(node, root);
+            }
+            idIndex = index;
+        }
+        XElement element = idIndex.get(id);
+        return element == null ? null : wrap(element);
+    }
+}
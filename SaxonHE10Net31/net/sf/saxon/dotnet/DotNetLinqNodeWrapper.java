@@ -0,0 +1,790 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.Linq.*;
+import net.sf.saxon.event.NamespaceReducer;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.*;
+import net.sf.saxon.pattern.AnyNodeTest;
+import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.tree.iter.EmptyIterator;
+import net.sf.saxon.tree.util.FastStringBuffer;
+import net.sf.saxon.tree.util.Navigator;
+import net.sf.saxon.tree.wrapper.AbstractNodeWrapper;
+import net.sf.saxon.tree.wrapper.SiblingCountingNode;
+import net.sf.saxon.type.Type;
+
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/**
+ * A node in the XML parse tree representing an XML element, character content, or attribute.
+ * <p>This is the implementation of the NodeInfo interface used as a wrapper for LINQ to XML
+ * objects (<code>XDocument</code>, <code>XElement</code>, <code>XAttribute</code>, and so on).
+ * As with the DOM wrapper, a run of adjacent <code>XText</code> objects is presented as a single
+ * text node, represented by the first of them.</p>
+ */
+
+public class DotNetLinqNodeWrapper extends AbstractNodeWrapper implements SiblingCountingNode {
+
+    protected XObject node;
+    protected short nodeKind;
+    protected DotNetLinqNodeWrapper parent;     // null means unknown
+    protected DotNetLinqDocumentWrapper docWrapper;
+    protected int index;                        // -1 means unknown
+    protected int span = 1;                     // the number of adjacent XText objects wrapped by this NodeWrapper
+    private int stamp;                          // modification count of the tree when parent, index and span were known
+
+    /**
+     * This constructor is protected: nodes should be created using the makeWrapper
+     * factory method
+     *
+     * @param node   The LINQ object to be wrapped
+     * @param parent The NodeWrapper that wraps the parent of this node
+     * @param index  Position of this node among its siblings
+     */
+
+    protected DotNetLinqNodeWrapper(XObject node, DotNetLinqNodeWrapper parent, int index) {
+        this.node = node;
+        this.parent = parent;
+        this.index = index;
+    }
+
+    /**
+     * Factory method to wrap a LINQ object with a wrapper that implements the Saxon
+     * NodeInfo interface.
+     *
+     * @param node       The LINQ object
+     * @param docWrapper The wrapper for the containing Document node
+     * @param parent     The wrapper for the parent of the node, if known, or null
+     * @param index      The position of this node relative to its siblings, or -1 if not known
+     * @return The new wrapper for the supplied node
+     */
+
+    protected static DotNetLinqNodeWrapper makeWrapper(XObject node, DotNetLinqDocumentWrapper docWrapper,
+                                                       DotNetLinqNodeWrapper parent, int index) {
+        DotNetLinqNodeWrapper wrapper;
+        if (node == docWrapper.getRootContainer()) {
+            wrapper = (DotNetLinqNodeWrapper) docWrapper.getRootNode();
+            if (wrapper != null) {
+                return wrapper;
+            }
+        }
+        wrapper = new DotNetLinqNodeWrapper(node, parent, index);
+        if (node instanceof XDocument) {
+            wrapper.nodeKind = Type.DOCUMENT;
+        } else if (node instanceof XElement) {
+            wrapper.nodeKind = Type.ELEMENT;
+        } else if (node instanceof XAttribute) {
+            wrapper.nodeKind = Type.ATTRIBUTE;
+        } else if (node instanceof XText) {
+            wrapper.nodeKind = Type.TEXT;
+            wrapper.span = getTextSpan((XText) node);
+        } else if (node instanceof XComment) {
+            wrapper.nodeKind = Type.COMMENT;
+        } else if (node instanceof XProcessingInstruction) {
+            wrapper.nodeKind = Type.PROCESSING_INSTRUCTION;
+        } else {
+            throw new IllegalArgumentException("Unsupported node type in LINQ tree: " + node.get_NodeType());
+        }
+        wrapper.docWrapper = docWrapper;
+        wrapper.treeInfo = docWrapper;
+        wrapper.stamp = docWrapper.getModificationCount();
+        return wrapper;
+    }
+
+    /**
+     * Discard the information held about the position of this node in the tree (its parent,
+     * its sibling position, and the number of adjacent XText objects it spans) if the tree has been
+     * modified since the information was computed.
+     */
+
+    private void checkCurrent() {
+        int count = docWrapper.getModificationCount();
+        if (stamp != count) {
+            stamp = count;
+            if (node != docWrapper.getRootContainer()) {
+                parent = null;
+            }
+            index = -1;
+            if (node instanceof XText) {
+                span = getTextSpan((XText) node);
+            }
+        }
+    }
+
+    /**
+     * Get the number of adjacent XText objects starting at a given one
+     */
+
+    private static int getTextSpan(XText text) {
+        int count = 1;
+        XNode next = text.get_NextNode();
+        while (next instanceof XText) {
+            count++;
+            next = next.get_NextNode();
+        }
+        return count;
+    }
+
+    /**
+     * Get the container (element or document) that is the parent of a LINQ object
+     *
+     * @param node the LINQ object
+     * @return the containing element or document, or null if there is none
+     */
+
+    static XContainer getParentContainer(XObject node) {
+        XElement p = node.get_Parent();
+        if (p != null) {
+            return p;
+        }
+        XDocument doc = node.get_Document();
+        return doc == node ? null : doc;
+    }
+
+    /**
+     * Get the following LINQ node in an iteration of a subtree
+     *
+     * @param start  the start node
+     * @param anchor the node marking the root of the subtree within which navigation takes place
+     * @return the next node in document order after the start node, excluding attributes
+     */
+
+    static XNode getSuccessorNode(XNode start, XNode anchor) {
+        if (start instanceof XContainer) {
+            XNode first = ((XContainer) start).get_FirstNode();
+            if (first != null) {
+                return first;
+            }
+        }
+        if (start == anchor) {
+            return null;
+        }
+        XNode p = start;
+        while (true) {
+            XNode s = p.get_NextNode();
+            if (s != null) {
+                return s;
+            }
+            p = getParentContainer(p);
+            if (p == null || p == anchor) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the underlying LINQ object, to implement the VirtualNode interface
+     */
+
+    @Override
+    public XObject getUnderlyingNode() {
+        return node;
+    }
+
+    /**
+     * Return the type of node.
+     *
+     * @return one of the values Type.ELEMENT, Type.TEXT, Type.ATTRIBUTE, etc.
+     */
+
+    @Override
+    public int getNodeKind() {
+        return nodeKind;
+    }
+
+    /**
+     * Determine whether this is the same node as another node.
+     *
+     * @return true if this Node object and the supplied Node object represent the
+     *         same node in the tree.
+     */
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DotNetLinqNodeWrapper && node == ((DotNetLinqNodeWrapper) other).node;
+    }
+
+    /**
+     * The hashCode() method obeys the contract for hashCode(): that is, if two objects are equal
+     * (represent the same node) then they must have the same hashCode()
+     */
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(node);
+    }
+
+    /**
+     * Determine the relative position of this node and another node, in document order,
+     * using the document order index held by the document wrapper
+     *
+     * @param other The other node, whose position is to be compared with this node
+     * @return -1 if this node precedes the other node, +1 if it follows the other
+     *         node, or 0 if they are the same node.
+     */
+
+    @Override
+    public int compareOrder(NodeInfo other) {
+        if (other instanceof DotNetLinqNodeWrapper && ((DotNetLinqNodeWrapper) other).docWrapper == docWrapper) {
+            DotNetDocumentWrapper.OrderEntry a = docWrapper.getOrderEntry(node);
+            DotNetDocumentWrapper.OrderEntry b = docWrapper.getOrderEntry(((DotNetLinqNodeWrapper) other).node);
+            if (a != null && b != null) {
+                return Integer.compare(a.number, b.number);
+            }
+        }
+        if (other instanceof SiblingCountingNode) {
+            return Navigator.compareOrder(this, (SiblingCountingNode) other);
+        } else {
+            // it's presumably a Namespace Node
+            return -other.compareOrder(this);
+        }
+    }
+
+    /**
+     * Get the value of the item as a CharSequence. This is in some cases more efficient than
+     * the version of the method that returns a String.
+     */
+
+    @Override
+    public CharSequence getStringValueCS() {
+        switch (nodeKind) {
+            case Type.DOCUMENT: {
+                FastStringBuffer fsb = new FastStringBuffer(FastStringBuffer.C256);
+                XNode n = (XNode) node;
+                while ((n = getSuccessorNode(n, (XNode) node)) != null) {
+                    if (n instanceof XText) {
+                        fsb.append(((XText) n).get_Value());
+                    }
+                }
+                return fsb.condense();
+            }
+            case Type.ELEMENT:
+                return ((XElement) node).get_Value();
+            case Type.ATTRIBUTE:
+                return ((XAttribute) node).get_Value();
+            case Type.TEXT:
+                checkCurrent();
+                if (span == 1) {
+                    return ((XText) node).get_Value();
+                } else {
+                    FastStringBuffer fsb = new FastStringBuffer(FastStringBuffer.C64);
+                    XNode textNode = (XNode) node;
+                    for (int i = 0; i < span; i++) {
+                        fsb.append(((XText) textNode).get_Value());
+                        textNode = textNode.get_NextNode();
+                    }
+                    return fsb.condense();
+                }
+            case Type.COMMENT:
+                return ((XComment) node).get_Value();
+            case Type.PROCESSING_INSTRUCTION:
+                return ((XProcessingInstruction) node).get_Data();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the local part of the name of this node. This is the name after the ":" if any.
+     *
+     * @return the local part of the name. For an unnamed node, returns "".
+     */
+
+    @Override
+    public String getLocalPart() {
+        switch (nodeKind) {
+            case Type.ELEMENT:
+                return ((XElement) node).get_Name().get_LocalName();
+            case Type.ATTRIBUTE:
+                return ((XAttribute) node).get_Name().get_LocalName();
+            case Type.PROCESSING_INSTRUCTION:
+                return ((XProcessingInstruction) node).get_Target();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the URI part of the name of this node. This is the URI corresponding to the
+     * prefix, or the URI of the default namespace if appropriate.
+     *
+     * @return The URI of the namespace of this node. For an unnamed node,
+     *         or for a node with an empty prefix, return an empty
+     *         string.
+     */
+
+    @Override
+    public String getURI() {
+        switch (nodeKind) {
+            case Type.ELEMENT:
+                return ((XElement) node).get_Name().get_NamespaceName();
+            case Type.ATTRIBUTE:
+                return ((XAttribute) node).get_Name().get_NamespaceName();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the prefix of the name of the node. This is defined only for elements and attributes.
+     * LINQ to XML does not record prefixes in names, so the prefix is found from the namespace
+     * declarations in scope. If the namespace is not declared, a prefix is invented.
+     *
+     * @return The prefix of the name of the node.
+     */
+
+    @Override
+    public String getPrefix() {
+        switch (nodeKind) {
+            case Type.ELEMENT:
+                return getPrefix((XElement) node, getURI(), false, docWrapper);
+            case Type.ATTRIBUTE: {
+                XElement owner = ((XAttribute) node).get_Parent();
+                String uri = getURI();
+                if (owner == null) {
+                    return uri.isEmpty() ? "" : docWrapper.getGeneratedPrefix(uri);
+                }
+                return getPrefix(owner, uri, true, docWrapper);
+            }
+            default:
+                return "";
+        }
+    }
+
+    private static String getPrefix(XElement element, String uri, boolean isAttribute, DotNetLinqDocumentWrapper docWrapper) {
+        if (uri.isEmpty()) {
+            return "";
+        }
+        String prefix = element.GetPrefixOfNamespace(XNamespace.Get(uri));
+        if (prefix != null && !prefix.isEmpty()) {
+            return prefix;
+        }
+        if (!isAttribute && uri.equals(element.GetDefaultNamespace().get_NamespaceName())) {
+            return "";
+        }
+        return docWrapper.getGeneratedPrefix(uri);
+    }
+
+    /**
+     * Get the NodeInfo object representing the parent of this node
+     */
+
+    @Override
+    public DotNetLinqNodeWrapper getParent() {
+        checkCurrent();
+        if (parent == null && node != docWrapper.getRootContainer()) {
+            XContainer p = getParentContainer(node);
+            if (p != null) {
+                parent = makeWrapper(p, docWrapper, null, -1);
+            }
+        }
+        return parent;
+    }
+
+    /**
+     * Get the index position of this node among its siblings (starting from 0). As with the DOM
+     * wrapper, the numbering refers to the underlying LINQ objects, so the positions of
+     * successive XPath nodes are not necessarily consecutive.
+     */
+
+    @Override
+    public int getSiblingPosition() {
+        checkCurrent();
+        if (index == -1) {
+            DotNetDocumentWrapper.OrderEntry entry = docWrapper.getOrderEntry(node);
+            index = entry == null ? 0 : entry.siblingPosition;
+        }
+        return index;
+    }
+
+    @Override
+    protected AxisIterator iterateAttributes(Predicate<? super NodeInfo> nodeTest) {
+        if (nodeKind != Type.ELEMENT) {
+            return EmptyIterator.ofNodes();
+        }
+        AxisIterator iter = new AttributeEnumeration(this);
+        if (nodeTest != AnyNodeTest.getInstance()) {
+            iter = new Navigator.AxisFilter(iter, nodeTest);
+        }
+        return iter;
+    }
+
+    @Override
+    protected AxisIterator iterateChildren(Predicate<? super NodeInfo> nodeTest) {
+        if (!(node instanceof XContainer)) {
+            return EmptyIterator.ofNodes();
+        }
+        AxisIterator iter = new ForwardsEnumeration(docWrapper, this, ((XContainer) node).get_FirstNode());
+        if (nodeTest != AnyNodeTest.getInstance()) {
+            iter = new Navigator.AxisFilter(iter, nodeTest);
+        }
+        return iter;
+    }
+
+    @Override
+    protected AxisIterator iterateSiblings(Predicate<? super NodeInfo> nodeTest, boolean forwards) {
+        if (nodeKind == Type.ATTRIBUTE || node == docWrapper.getRootContainer()) {
+            return EmptyIterator.ofNodes();
+        }
+        checkCurrent();
+        AxisIterator iter;
+        if (forwards) {
+            XNode next = (XNode) node;
+            for (int i = 0; i < span; i++) {
+                next = next.get_NextNode();
+            }
+            iter = new ForwardsEnumeration(docWrapper, getParent(), next);
+        } else {
+            iter = new BackwardsEnumeration(this);
+        }
+        if (nodeTest != AnyNodeTest.getInstance()) {
+            iter = new Navigator.AxisFilter(iter, nodeTest);
+        }
+        return iter;
+    }
+
+    @Override
+    protected AxisIterator iterateDescendants(Predicate<? super NodeInfo> nodeTest, boolean includeSelf) {
+        XName name = null;
+        boolean elementsOnly = false;
+        if (nodeTest instanceof NameTest && ((NameTest) nodeTest).getNodeKind() == Type.ELEMENT) {
+            NameTest test = (NameTest) nodeTest;
+            // names are atomized, so they can be compared by reference
+            name = XName.Get(test.getLocalPart(), test.getNamespaceURI());
+            elementsOnly = true;
+        } else if (nodeTest instanceof NodeKindTest && ((NodeKindTest) nodeTest).getNodeKind() == Type.ELEMENT) {
+            elementsOnly = true;
+        }
+        return new DescendantEnumeration(this, includeSelf, nodeTest, elementsOnly, name);
+    }
+
+    /**
+     * Add the namespace bindings used or declared on an element to the namespaces in scope for its parent
+     */
+
+    private NamespaceMap addLocalNamespaces(XElement element, NamespaceMap inherited) {
+        NamespaceMap codes = inherited;
+        for (XAttribute att = element.get_FirstAttribute(); att != null; att = att.get_NextAttribute()) {
+            if (att.get_IsNamespaceDeclaration()) {
+                XName name = att.get_Name();
+                String prefix = name.get_NamespaceName().equals(NamespaceConstant.XMLNS) ? name.get_LocalName() : "";
+                codes = codes.bind(prefix, att.get_Value());
+            }
+        }
+        for (XAttribute att = element.get_FirstAttribute(); att != null; att = att.get_NextAttribute()) {
+            String uri = att.get_Name().get_NamespaceName();
+            if (!att.get_IsNamespaceDeclaration() && !uri.isEmpty()) {
+                codes = codes.put(getPrefix(element, uri, true, docWrapper), uri);
+            }
+        }
+        String uri = element.get_Name().get_NamespaceName();
+        String prefix = getPrefix(element, uri, false, docWrapper);
+        if (!uri.isEmpty()) {
+            codes = codes.put(prefix, uri);
+        } else if (codes.getURI("") != null) {
+            // an element in no namespace undeclares any default namespace
+            codes = codes.remove("");
+        }
+        return codes;
+    }
+
+    /**
+     * Get all the namespace bindings that are in-scope for this element.
+     *
+     * @return the in-scope namespaces for an element, or null for any other kind of node.
+     */
+
+    @Override
+    public NamespaceMap getAllNamespaces() {
+        if (nodeKind != Type.ELEMENT) {
+            return null;
+        }
+        ArrayList<XElement> ancestry = new ArrayList<>();
+        XObject n = node;
+        while (n instanceof XElement) {
+            ancestry.add((XElement) n);
+            if (n == docWrapper.getRootContainer()) {
+                break;
+            }
+            n = n.get_Parent();
+        }
+        NamespaceMap codes = NamespaceMap.emptyMap();
+        for (int i = ancestry.size() - 1; i >= 0; i--) {
+            codes = addLocalNamespaces(ancestry.get(i), codes);
+        }
+        return codes;
+    }
+
+    /**
+     * Get all namespace declarations and undeclarations defined on this element, that is, the
+     * differences between its in-scope namespaces and those of its parent.
+     *
+     * @param buffer If this is non-null, and the result array fits in this buffer, then the result
+     *               may overwrite the contents of this array, to avoid the cost of allocating a new array on the heap.
+     * @return An array of namespace bindings. For a node other than an element, return null.
+     */
+
+    @Override
+    public NamespaceBinding[] getDeclaredNamespaces(NamespaceBinding[] buffer) {
+        if (nodeKind != Type.ELEMENT) {
+            return null;
+        }
+        DotNetLinqNodeWrapper p = getParent();
+        NamespaceMap inherited = p != null && p.getNodeKind() == Type.ELEMENT ? p.getAllNamespaces() : NamespaceMap.emptyMap();
+        NamespaceMap local = addLocalNamespaces((XElement) node, inherited);
+        ArrayList<NamespaceBinding> codes = new ArrayList<>();
+        for (NamespaceBinding b : local) {
+            if (!b.getURI().equals(inherited.getURI(b.getPrefix()))) {
+                codes.add(b);
+            }
+        }
+        for (NamespaceBinding b : inherited) {
+            if (local.getURI(b.getPrefix()) == null) {
+                codes.add(new NamespaceBinding(b.getPrefix(), ""));
+            }
+        }
+        return codes.toArray(new NamespaceBinding[0]);
+    }
+
+    /**
+     * Get the string value of a given attribute of this node
+     *
+     * @param uri   the namespace URI of the attribute name. Supply the empty string for an attribute
+     *              that is in no namespace
+     * @param local the local part of the attribute name.
+     * @return the attribute value if it exists, or null if it does not exist. Always returns null
+     *         if this node is not an element.
+     */
+
+    @Override
+    public String getAttributeValue(String uri, String local) {
+        if (nodeKind != Type.ELEMENT) {
+            return null;
+        }
+        XAttribute att = ((XElement) node).Attribute(XName.Get(local, uri));
+        return att == null || att.get_IsNamespaceDeclaration() ? null : att.get_Value();
+    }
+
+    /**
+     * Determine whether the node has any children.
+     */
+
+    @Override
+    public boolean hasChildNodes() {
+        return node instanceof XContainer && ((XContainer) node).get_FirstNode() != null;
+    }
+
+    /**
+     * Get a character string that uniquely identifies this node.
+     *
+     * @param buffer a buffer to contain a string that uniquely identifies this node, across all
+     *               documents
+     */
+
+    @Override
+    public void generateId(FastStringBuffer buffer) {
+        Navigator.appendSequentialKey(this, buffer, true);
+    }
+
+    /**
+     * Copy this node to a given outputter (deep copy)
+     */
+
+    @Override
+    public void copy(Receiver out, int copyOptions, Location locationId) throws XPathException {
+        Receiver r = new NamespaceReducer(out);
+        Navigator.copy(this, r, copyOptions, locationId);
+    }
+
+    /**
+     * Wrap a LINQ node reached during an iteration, or return null if it is not represented in the XDM
+     */
+
+    private static DotNetLinqNodeWrapper wrapChild(XNode child, DotNetLinqDocumentWrapper docWrapper, DotNetLinqNodeWrapper parent) {
+        if (child instanceof XDocumentType) {
+            return null;
+        }
+        return makeWrapper(child, docWrapper, parent, -1);
+    }
+
+    /**
+     * Iterator over the attributes of an element
+     */
+
+    private static final class AttributeEnumeration implements AxisIterator {
+
+        private final DotNetLinqNodeWrapper start;
+        private XAttribute next;
+        private int ix = 0;
+
+        AttributeEnumeration(DotNetLinqNodeWrapper start) {
+            this.start = start;
+            next = skipNamespaceDeclarations(((XElement) start.node).get_FirstAttribute());
+        }
+
+        private static XAttribute skipNamespaceDeclarations(XAttribute att) {
+            while (att != null && att.get_IsNamespaceDeclaration()) {
+                att = att.get_NextAttribute();
+            }
+            return att;
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (next == null) {
+                return null;
+            }
+            DotNetLinqNodeWrapper wrapper = makeWrapper(next, start.docWrapper, start, ix++);
+            next = skipNamespaceDeclarations(next.get_NextAttribute());
+            return wrapper;
+        }
+    }
+
+    /**
+     * Iterator over a sequence of sibling nodes in document order, used for the child and
+     * following-sibling axes
+     */
+
+    private static final class ForwardsEnumeration implements AxisIterator {
+
+        private final DotNetLinqDocumentWrapper docWrapper;
+        private final DotNetLinqNodeWrapper commonParent;
+        private XNode next;
+
+        ForwardsEnumeration(DotNetLinqDocumentWrapper docWrapper, DotNetLinqNodeWrapper commonParent, XNode first) {
+            this.docWrapper = docWrapper;
+            this.commonParent = commonParent;
+            this.next = first;
+        }
+
+        @Override
+        public NodeInfo next() {
+            while (next != null) {
+                DotNetLinqNodeWrapper wrapper = wrapChild(next, docWrapper, commonParent);
+                next = next.get_NextNode();
+                if (wrapper != null) {
+                    for (int i = 1; i < wrapper.span; i++) {
+                        next = next.get_NextNode();
+                    }
+                    return wrapper;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Iterator over the preceding siblings of a node, in reverse document order. LINQ to XML
+     * finds the previous sibling of a node by searching from the first child of the parent,
+     * so the children are collected once, in a forwards scan.
+     */
+
+    private static final class BackwardsEnumeration implements AxisIterator {
+
+        private final DotNetLinqDocumentWrapper docWrapper;
+        private final DotNetLinqNodeWrapper commonParent;
+        private final ArrayList<XNode> siblings = new ArrayList<>();
+        private int ix;
+
+        BackwardsEnumeration(DotNetLinqNodeWrapper start) {
+            docWrapper = start.docWrapper;
+            commonParent = start.getParent();
+            XContainer container = getParentContainer(start.node);
+            if (container != null) {
+                for (XNode n = container.get_FirstNode(); n != null && n != start.node; n = n.get_NextNode()) {
+                    siblings.add(n);
+                }
+            }
+            ix = siblings.size() - 1;
+        }
+
+        @Override
+        public NodeInfo next() {
+            while (ix >= 0) {
+                XNode n = siblings.get(ix--);
+                if (n instanceof XText) {
+                    // find the first of the run of adjacent text nodes
+                    while (ix >= 0 && siblings.get(ix) instanceof XText) {
+                        n = siblings.get(ix--);
+                    }
+                }
+                DotNetLinqNodeWrapper wrapper = wrapChild(n, docWrapper, commonParent);
+                if (wrapper != null) {
+                    return wrapper;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Iterator over the descendant or descendant-or-self axis, which only wraps the nodes that
+     * are selected. Element names are compared as atomized <code>XName</code> objects.
+     */
+
+    private static final class DescendantEnumeration implements AxisIterator {
+
+        private final DotNetLinqNodeWrapper start;
+        private final Predicate<? super NodeInfo> nodeTest;
+        private final boolean elementsOnly;
+        private final XName name;
+        private boolean includeSelf;
+        private XNode current;
+
+        DescendantEnumeration(DotNetLinqNodeWrapper start, boolean includeSelf, Predicate<? super NodeInfo> nodeTest,
+                              boolean elementsOnly, XName name) {
+            this.start = start;
+            this.includeSelf = includeSelf;
+            this.nodeTest = nodeTest;
+            this.elementsOnly = elementsOnly;
+            this.name = name;
+            current = start.node instanceof XContainer ? (XNode) start.node : null;
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (includeSelf) {
+                includeSelf = false;
+                if (nodeTest.test(start)) {
+                    return start;
+                }
+            }
+            while (current != null) {
+                current = getSuccessorNode(current, (XNode) start.node);
+                if (current == null) {
+                    return null;
+                }
+                if (elementsOnly) {
+                    if (current instanceof XElement &&
+                            (name == null || ((XElement) current).get_Name() == name)) {
+                        return makeWrapper(current, start.docWrapper, null, -1);
+                    }
+                    continue;
+                }
+                DotNetLinqNodeWrapper wrapper = wrapChild(current, start.docWrapper, null);
+                if (wrapper != null) {
+                    for (int i = 1; i < wrapper.span; i++) {
+                        current = current.get_NextNode();
+                    }
+                    if (nodeTest.test(wrapper)) {
+                        return wrapper;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
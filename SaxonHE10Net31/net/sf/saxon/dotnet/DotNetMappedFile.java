@@ -0,0 +1,81 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.IO.File;
+import cli.System.IO.FileInfo;
+import cli.System.IO.FileMode;
+import cli.System.IO.MemoryMappedFiles.MemoryMappedFile;
+import cli.System.IO.MemoryMappedFiles.MemoryMappedFileAccess;
+import cli.System.IO.Stream;
+import cli.System.Uri;
+
+/**
+ * Opens local files for parsing as memory-mapped views. The XmlReader then reads the file straight from the
+ * operating system's page cache, rather than through a FileStream and its buffer, and repeated reads of the
+ * same large file cost no disk I/O while it remains in the cache.
+ * <p>Mapping has a fixed cost in setting up the view, so it is only worthwhile for large files; the methods
+ * that take a threshold fall back to an ordinary FileStream for smaller ones.</p>
+ */
+
+public final class DotNetMappedFile {
+
+    private DotNetMappedFile() {
+    }
+
+    /**
+     * Open a file as a read-only memory-mapped stream
+     *
+     * @param path the local file name
+     * @return a stream that reads the mapped view of the file. Closing the stream releases the view.
+     * A file of zero length cannot be mapped, and is opened as an ordinary FileStream
+     */
+
+    public static Stream open(String path) {
+        long length = new FileInfo(path).get_Length();
+        if (length == 0) {
+            return File.OpenRead(path);
+        }
+        MemoryMappedFile file = MemoryMappedFile.CreateFromFile(
+                path, FileMode.wrap(FileMode.Open), null, 0L, MemoryMappedFileAccess.wrap(MemoryMappedFileAccess.Read));
+        try {
+            // the size is given explicitly: a view of the whole file is rounded up to a whole number of
+            // pages, and the XML parser would see the padding as trailing content
+            return file.CreateViewStream(0L, length, MemoryMappedFileAccess.wrap(MemoryMappedFileAccess.Read));
+        } finally {
+            // the view holds its own reference to the mapping, which stays in existence until the view is closed
+            file.Dispose();
+        }
+    }
+
+    /**
+     * Open a file identified by a <code>file:</code> URI, mapping it into memory if it is large enough
+     *
+     * @param uri       the absolute URI of the file
+     * @param threshold the size in bytes from which files are mapped; a negative value means that files
+     *                  are never mapped
+     * @return a stream that reads the mapped view of the file, or null if the URI is not a <code>file:</code>
+     * URI, or the file is smaller than the threshold, or mapping is disabled
+     */
+
+    public static Stream openIfLarge(String uri, long threshold) {
+        if (threshold < 0 || !uri.startsWith("file:")) {
+            return null;
+        }
+        Uri abs = new Uri(uri);
+        if (!abs.get_IsFile()) {
+            return null;
+        }
+        String path = abs.get_LocalPath();
+        FileInfo info = new FileInfo(path);
+        if (!info.get_Exists() || info.get_Length() < threshold || info.get_Length() == 0) {
+            return null;
+        }
+        return open(path);
+    }
+}
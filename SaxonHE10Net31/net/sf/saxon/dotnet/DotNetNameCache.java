@@ -0,0 +1,132 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.FingerprintedQName;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NodeName;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of the element and attribute names reported by a .NET XmlReader, used by the
+ * {@link DotNetPullProvider} to avoid creating a new NodeName, and allocating its fingerprint
+ * from the NamePool, for every element and attribute in the document.
+ * <p>The XmlReader atomizes names using its <code>XmlNameTable</code>, so repeated occurrences of
+ * the same name are reported as the same string instances. The first level of the cache exploits
+ * this: it is keyed on the identity of the prefix, URI and local name, and a hit costs no more
+ * than three reference comparisons. The first level belongs to a single reader, and is not
+ * thread-safe. Names that miss the first level are looked up in a second level that compares the
+ * strings by value; this can be private to the reader, or shared by all readers using the same
+ * Configuration, in which case a name is given its fingerprint only once however many documents
+ * it appears in. The second level is cleared when it reaches a fixed number of names, so a long-running
+ * process that reads documents with ever-changing names does not hold on to all of them.</p>
+ */
+
+public class DotNetNameCache {
+
+    private static final int SIZE = 1024;              // must be a power of two
+    private static final int MAX_SHARED_NAMES = 50000;
+
+    private static final Map<Configuration, Map<NameKey, NodeName>> sharedCaches =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final NamePool pool;
+    private final Map<NameKey, NodeName> names;
+    private final String[] prefixes = new String[SIZE];
+    private final String[] uris = new String[SIZE];
+    private final String[] locals = new String[SIZE];
+    private final NodeName[] nodeNames = new NodeName[SIZE];
+
+    /**
+     * Create a name cache for use by one XmlReader
+     *
+     * @param config the Saxon configuration, whose NamePool is used to allocate fingerprints. May be
+     *               null, in which case names are cached without fingerprints
+     * @param shared true if names are to be shared with all other caches created for the same Configuration
+     *               with this option set; false if the cache is to be private to this reader
+     */
+
+    public DotNetNameCache(Configuration config, boolean shared) {
+        this.pool = config == null ? null : config.getNamePool();
+        if (shared && config != null) {
+            names = sharedCaches.computeIfAbsent(config, c -> new ConcurrentHashMap<>());
+        } else {
+            names = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Get the NodeName for a name reported by the XmlReader
+     *
+     * @param prefix    the prefix, as returned by <code>XmlReader.Prefix</code>
+     * @param uri       the namespace URI, as returned by <code>XmlReader.NamespaceURI</code>
+     * @param localName the local name, as returned by <code>XmlReader.LocalName</code>
+     * @return a NodeName for the name. If the cache was created with a Configuration, the NodeName
+     * already holds its fingerprint
+     */
+
+    public NodeName getNodeName(String prefix, String uri, String localName) {
+        int slot = System.identityHashCode(localName) & (SIZE - 1);
+        if (locals[slot] == localName && prefixes[slot] == prefix && uris[slot] == uri) {
+            return nodeNames[slot];
+        }
+        NameKey key = new NameKey(prefix, uri, localName);
+        NodeName name = names.get(key);
+        if (name == null) {
+            FingerprintedQName qName = new FingerprintedQName(prefix, uri, localName);
+            if (pool != null) {
+                qName.obtainFingerprint(pool);
+            }
+            name = qName;
+            if (names.size() >= MAX_SHARED_NAMES) {
+                // start again, so that the names of recent documents are cached rather than the first ones
+                names.clear();
+            }
+            names.put(key, name);
+        }
+        prefixes[slot] = prefix;
+        uris[slot] = uri;
+        locals[slot] = localName;
+        nodeNames[slot] = name;
+        return name;
+    }
+
+    private static final class NameKey {
+        private final String prefix;
+        private final String uri;
+        private final String localName;
+        private final int hash;
+
+        NameKey(String prefix, String uri, String localName) {
+            this.prefix = prefix;
+            this.uri = uri;
+            this.localName = localName;
+            this.hash = (localName.hashCode() * 31 + uri.hashCode()) * 31 + prefix.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NameKey)) {
+                return false;
+            }
+            NameKey other = (NameKey) obj;
+            return hash == other.hash && localName.equals(other.localName)
+                    && uri.equals(other.uri) && prefix.equals(other.prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
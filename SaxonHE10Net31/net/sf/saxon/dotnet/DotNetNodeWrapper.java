@@ -13,14 +13,17 @@ import net.sf.saxon.event.Receiver;
 import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.om.*;
 import net.sf.saxon.pattern.AnyNodeTest;
+import net.sf.saxon.pattern.LocalNameTest;
 import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.NodeKindTest;
 import net.sf.saxon.s9api.Location;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.tree.iter.EmptyIterator;
 import net.sf.saxon.tree.iter.LookaheadIterator;
+import net.sf.saxon.tree.iter.SingleNodeIterator;
 import net.sf.saxon.tree.util.FastStringBuffer;
 import net.sf.saxon.tree.util.Navigator;
-import net.sf.saxon.tree.util.SteppingNavigator;
 import net.sf.saxon.tree.util.SteppingNode;
 import net.sf.saxon.tree.wrapper.AbstractNodeWrapper;
 import net.sf.saxon.tree.wrapper.SiblingCountingNode;
@@ -40,11 +43,12 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     protected XmlNode node;
     protected short nodeKind;
-    protected DotNetNodeWrapper parent;     // null means unknown
+    protected volatile DotNetNodeWrapper parent;     // null means unknown
     protected DotNetDocumentWrapper docWrapper;
     protected int index;            // -1 means unknown
     protected int span = 1;         // the number of adjacent text nodes wrapped by this NodeWrapper.
     // If span>1, node will always be the first of a sequence of adjacent text nodes
+    private int stamp;              // modification count of the DOM when parent, index and span were computed
 
     /**
      * This constructor is protected: nodes should be created using the makeWrapper
@@ -96,7 +100,17 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     protected static DotNetNodeWrapper makeWrapper(XmlNode node, DotNetDocumentWrapper docWrapper,
                                             /*@Nullable*/ DotNetNodeWrapper parent, int index) {
-        DotNetNodeWrapper wrapper;
+        DotNetNodeWrapper wrapper = docWrapper.getCachedWrapper(node);
+        if (wrapper != null) {
+            // reuse the existing wrapper, filling in any information that it does not yet know
+            if (wrapper.parent == null) {
+                wrapper.parent = parent;
+            }
+            if (wrapper.index == -1) {
+                wrapper.index = index;
+            }
+            return wrapper;
+        }
         switch (node.get_NodeType().Value) {
             case XmlNodeType.Document:
                 //case Node.DOCUMENT_FRAGMENT_NODE:
@@ -135,9 +149,39 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         }
         wrapper.docWrapper = docWrapper;
         wrapper.treeInfo = docWrapper;
+        wrapper.stamp = docWrapper.getModificationCount();
+        if (wrapper.nodeKind != Type.DOCUMENT) {
+            docWrapper.cacheWrapper(wrapper);
+        }
         return wrapper;
     }
 
+    /**
+     * Discard the information held about the position of this node in the tree (its parent,
+     * its sibling position, and the number of adjacent text nodes it spans) if the DOM has been
+     * modified since the information was computed.
+     */
+
+    private void checkCurrent() {
+        int count = docWrapper.getModificationCount();
+        if (stamp != count) {
+            stamp = count;
+            if (nodeKind != Type.DOCUMENT) {
+                parent = null;
+            }
+            index = -1;
+            if (nodeKind == Type.TEXT && isTextNode(node)) {
+                int thisSpan = 1;
+                XmlNode next = node.get_NextSibling();
+                while (next != null && isTextNode(next)) {
+                    thisSpan++;
+                    next = next.get_NextSibling();
+                }
+                span = thisSpan;
+            }
+        }
+    }
+
     /**
      * Get the underlying DOM node, to implement the VirtualNode interface
      */
@@ -185,9 +229,10 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
      */
 
     public int hashCode() {
-        FastStringBuffer buffer = new FastStringBuffer(FastStringBuffer.C64);
-        generateId(buffer);
-        return buffer.toString().hashCode();
+        // Two wrappers are equal if and only if they wrap the same DOM node (for a text node that spans
+        // several adjacent DOM nodes, this is the first of them), so the identity hash code of the DOM
+        // node satisfies the contract, without the cost of generating an identifier string
+        return System.identityHashCode(node);
     }
 
     /**
@@ -202,6 +247,15 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     @Override
     public int compareOrder(NodeInfo other) {
+        if (other instanceof DotNetNodeWrapper && ((DotNetNodeWrapper) other).docWrapper == docWrapper) {
+            DotNetDocumentWrapper.OrderEntry a = docWrapper.getOrderEntry(node);
+            if (a != null) {
+                DotNetDocumentWrapper.OrderEntry b = docWrapper.getOrderEntry(((DotNetNodeWrapper) other).node);
+                if (b != null) {
+                    return Integer.compare(a.number, b.number);
+                }
+            }
+        }
         if (other instanceof SiblingCountingNode) {
             return Navigator.compareOrder(this, (SiblingCountingNode) other);
         } else {
@@ -226,6 +280,7 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
                 return node.get_Value();
 
             case Type.TEXT:
+                checkCurrent();
                 if (span == 1) {
                     return node.get_InnerText();
                 } else {
@@ -277,11 +332,11 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     @Override
     public String getURI() {
-        NodeInfo element;
+        XmlNode element;
         if (nodeKind == Type.ELEMENT) {
-            element = this;
+            element = node;
         } else if (nodeKind == Type.ATTRIBUTE) {
-            element = parent;
+            element = ((XmlAttribute) node).get_OwnerElement();
         } else {
             return "";
         }
@@ -308,32 +363,20 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
             return NamespaceConstant.XML;
         }
 
-        String[] parts;
-        try {
-            parts = NameChecker.getQNameParts(node.get_Name());
-        } catch (QNameException e) {
-            throw new IllegalStateException("Invalid QName in DOM node. " + e);
-        }
-
-        if (nodeKind == Type.ATTRIBUTE && parts[0].isEmpty()) {
+        String prefix = node.get_Prefix();
+        if (nodeKind == Type.ATTRIBUTE && prefix.isEmpty()) {
             // for an attribute, no prefix means no namespace
-            uri = "";
-        } else {
-            AxisIterator nsiter = element.iterateAxis(AxisInfo.NAMESPACE);
-            NodeInfo ns;
-            while ((ns = nsiter.next()) != null) {
-                if (ns.getLocalPart().equals(parts[0])) {
-                    uri = ns.getStringValue();
-                    break;
-                }
-            }
-            if (uri == null) {
-                if (parts[0].isEmpty()) {
-                    uri = "";
-                } else {
-                    throw new IllegalStateException("Undeclared namespace prefix in DOM input: " + parts[0]);
-                }
+            return "";
+        }
+        if (element == null) {
+            return "";
+        }
+        uri = docWrapper.getURIForPrefix(element, prefix);
+        if (uri == null) {
+            if (prefix.isEmpty()) {
+                return "";
             }
+            throw new IllegalStateException("Undeclared namespace prefix in DOM input: " + prefix);
         }
         return uri;
     }
@@ -379,6 +422,7 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     @Override
     public DotNetNodeWrapper getParent() {
+        checkCurrent();
         if (parent == null) {
             switch (getNodeKind()) {
                 case Type.ATTRIBUTE:
@@ -407,7 +451,20 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     @Override
     public int getSiblingPosition() {
+        checkCurrent();
         if (index == -1) {
+            DotNetDocumentWrapper.OrderEntry entry = docWrapper.getOrderEntry(node);
+            if (entry != null) {
+                index = entry.siblingPosition;
+                return index;
+            }
+            if (nodeKind != Type.ATTRIBUTE && nodeKind != Type.DOCUMENT) {
+                int position = docWrapper.getSiblingPosition(node);
+                if (position >= 0) {
+                    index = position;
+                    return index;
+                }
+            }
             switch (nodeKind) {
                 case Type.ELEMENT:
                 case Type.TEXT:
@@ -454,6 +511,39 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         return index;
     }
 
+    /**
+     * Return an iteration over the nodes reached by the given axis from this node. If the
+     * document has been promoted to a TinyTree snapshot, axes that potentially visit many nodes
+     * are evaluated using the snapshot.
+     *
+     * @param axisNumber the axis to be used
+     * @param nodeTest   A pattern to be matched by the returned nodes
+     * @return a SequenceIterator that scans the nodes reached by the axis in turn.
+     */
+
+    @Override
+    public AxisIterator iterateAxis(int axisNumber, Predicate<? super NodeInfo> nodeTest) {
+        DotNetTreeSnapshot snapshot = docWrapper.noteAxisStep();
+        if (snapshot != null) {
+            switch (axisNumber) {
+                case AxisInfo.DESCENDANT:
+                case AxisInfo.DESCENDANT_OR_SELF:
+                case AxisInfo.FOLLOWING:
+                case AxisInfo.PRECEDING:
+                case AxisInfo.FOLLOWING_SIBLING:
+                case AxisInfo.PRECEDING_SIBLING:
+                    AxisIterator iter = snapshot.iterateAxis(this, axisNumber, nodeTest);
+                    if (iter != null) {
+                        return iter;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return super.iterateAxis(axisNumber, nodeTest);
+    }
+
     @Override
     protected AxisIterator iterateAttributes(Predicate<? super NodeInfo> nodeTest) {
         AxisIterator iter = new AttributeEnumeration(this);
@@ -465,69 +555,85 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     @Override
     protected AxisIterator iterateChildren(Predicate<? super NodeInfo> nodeTest) {
-        AxisIterator iter = new ChildEnumeration(docWrapper, this, true, true);
-        if (nodeTest != AnyNodeTest.getInstance()) {
-            iter = new Navigator.AxisFilter(iter, nodeTest);
+        if (nodeTest == AnyNodeTest.getInstance()) {
+            return new ChildEnumeration(docWrapper, this, true, true);
         }
-        return iter;
+        DomNodeTest domTest = DomNodeTest.make(nodeTest);
+        if (domTest != null) {
+            return new ChildEnumeration(docWrapper, this, true, true, nodeTest, domTest);
+        }
+        return new Navigator.AxisFilter(new ChildEnumeration(docWrapper, this, true, true), nodeTest);
     }
 
     @Override
     protected AxisIterator iterateSiblings(Predicate<? super NodeInfo> nodeTest, boolean forwards) {
-        AxisIterator iter = new ChildEnumeration(docWrapper, this, false, forwards);
-        if (nodeTest != AnyNodeTest.getInstance()) {
-            iter = new Navigator.AxisFilter(iter, nodeTest);
+        if (nodeTest == AnyNodeTest.getInstance()) {
+            return new ChildEnumeration(docWrapper, this, false, forwards);
         }
-        return iter;
+        DomNodeTest domTest = DomNodeTest.make(nodeTest);
+        if (domTest != null) {
+            return new ChildEnumeration(docWrapper, this, false, forwards, nodeTest, domTest);
+        }
+        return new Navigator.AxisFilter(new ChildEnumeration(docWrapper, this, false, forwards), nodeTest);
     }
 
     @Override
     protected AxisIterator iterateDescendants(Predicate<? super NodeInfo> nodeTest, boolean includeSelf) {
-        return new SteppingNavigator.DescendantAxisIterator(this, includeSelf, nodeTest);
+        DomNodeTest domTest = nodeTest == AnyNodeTest.getInstance() ? null : DomNodeTest.make(nodeTest);
+        if (domTest != null && domTest.isElementOnly()) {
+            XmlDocument doc = node instanceof XmlDocument ? (XmlDocument) node : node.get_OwnerDocument();
+            if (doc != null) {
+                domTest = domTest.atomize(doc.get_NameTable());
+                if (domTest == null) {
+                    // the required name is not in the name table, so no element in the document can have it
+                    return includeSelf && nodeTest.test(this) ? SingleNodeIterator.makeIterator(this) : EmptyIterator.ofNodes();
+                }
+            }
+        }
+        return new DescendantEnumeration(this, includeSelf, nodeTest, domTest);
     }
 
 
     @Override
     public NamespaceMap getAllNamespaces() {
-        // Note: in a DOM created by the XML parser, all namespaces are present as attribute nodes. But
-        // in a DOM created programmatically, this is not necessarily the case. So we need to add
-        // namespace bindings for the namespace of the element and any attributes
         if (node.get_NodeType().Value == XmlNodeType.Element) {
-            XmlElement elem = (XmlElement) node;
-            XmlNamedNodeMap atts = elem.get_Attributes();
+            return docWrapper.getInScopeNamespaces(node);
+        } else {
+            return null;
+        }
+    }
 
-            NamespaceMap codes =  NamespaceMap.emptyMap();
-            for (int i = 0; i < atts.get_Count(); i++) {
-                XmlAttribute att = (XmlAttribute) atts.Item(i);
-                String attName = att.get_Name();
-                if (attName.equals("xmlns")) {
-                    String prefix = "";
-                    String uri = att.get_Value();
-                    codes = codes.put(prefix, uri);
-                } else if (attName.startsWith("xmlns:")) {
-                    String prefix = attName.substring(6);
-                    String uri = att.get_Value();
-                    codes = codes.put(prefix, uri);
-                } else if (att.get_NamespaceURI().length() != 0) {
-                    codes = codes.put(att.get_Prefix(), att.get_NamespaceURI());
-                }
-            }
+    /**
+     * Add the namespace bindings defined on a DOM element to a set of namespace bindings
+     * inherited from its parent
+     *
+     * @param elem      the DOM element
+     * @param inherited the namespaces in scope for the parent of the element
+     * @return the namespaces in scope for the element
+     */
 
-            if (elem.get_NamespaceURI().length() != 0) {
-                codes = codes.put(elem.get_Prefix(), elem.get_NamespaceURI());
+    static NamespaceMap addLocalNamespaces(XmlNode elem, NamespaceMap inherited) {
+        // Note: in a DOM created by the XML parser, all namespaces are present as attribute nodes. But
+        // in a DOM created programmatically, this is not necessarily the case. So we need to add
+        // namespace bindings for the namespace of the element and any attributes
+        XmlNamedNodeMap atts = elem.get_Attributes();
+        NamespaceMap codes = inherited;
+        for (int i = 0; i < atts.get_Count(); i++) {
+            XmlAttribute att = (XmlAttribute) atts.Item(i);
+            String attName = att.get_Name();
+            if (attName.equals("xmlns")) {
+                codes = codes.bind("", att.get_Value());
+            } else if (attName.startsWith("xmlns:")) {
+                codes = codes.bind(attName.substring(6), att.get_Value());
+            } else if (att.get_NamespaceURI().length() != 0) {
+                codes = codes.put(att.get_Prefix(), att.get_NamespaceURI());
             }
-            /*int count = codes.size();
-            NamespaceMap result = new NamespaceBinding[count];
-
-            int p = 0;
-            for (NamespaceBinding code : codes) {
-                result[p++] = code;
-            } */
-            return codes;
-        } else {
-            return null;
         }
 
+        if (elem.get_NamespaceURI().length() != 0) {
+            codes = codes.put(elem.get_Prefix(), elem.get_NamespaceURI());
+        }
+        return codes;
     }
 
     /**
@@ -542,6 +648,20 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
      */
     @Override
     public String getAttributeValue(/*@NotNull*/ String uri, /*@NotNull*/ String local) {
+        if (nodeKind != Type.ELEMENT || uri.equals(NamespaceConstant.XMLNS)) {
+            return null;
+        }
+        // Look the attribute up directly in the DOM. This gives the right answer unless the DOM was
+        // constructed programmatically and contains prefixed attributes whose namespace URI was
+        // not set, in which case the namespace of the attribute has to be found the hard way.
+        XmlAttribute att = ((XmlElement) node).GetAttributeNode(local, uri);
+        if (att != null) {
+            if (!uri.isEmpty() || att.get_Prefix().isEmpty()) {
+                return att.get_Value();
+            }
+        } else if (uri.isEmpty() || !hasUnresolvedAttributePrefix()) {
+            return null;
+        }
         NameTest test = new NameTest(Type.ATTRIBUTE, uri, local, getNamePool());
         AxisIterator iterator = iterateAxis(AxisInfo.ATTRIBUTE, test);
         NodeInfo attribute = iterator.next();
@@ -552,6 +672,23 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         }
     }
 
+    /**
+     * Ask whether this element has a prefixed attribute whose namespace URI is not known to the DOM
+     *
+     * @return true if there is an attribute with a prefix and an empty namespace URI
+     */
+
+    private boolean hasUnresolvedAttributePrefix() {
+        XmlNamedNodeMap atts = node.get_Attributes();
+        for (int i = 0; i < atts.get_Count(); i++) {
+            XmlNode att = atts.Item(i);
+            if (att.get_NamespaceURI().isEmpty() && !att.get_Prefix().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Determine whether the node has any children.
      * <p>Note: the result is equivalent to
@@ -608,6 +745,10 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         // in a DOM created programmatically, this is not necessarily the case. So we need to add
         // namespace bindings for the namespace of the element and any attributes
         if (node.get_NodeType().Value == XmlNodeType.Element) {
+            NamespaceBinding[] cached = docWrapper.getCachedDeclaredNamespaces(node);
+            if (cached != null) {
+                return cached;
+            }
             XmlElement elem = (XmlElement) node;
             XmlNamedNodeMap atts = elem.get_Attributes();
             Set<NamespaceBinding> codes = new HashSet<NamespaceBinding>();
@@ -636,13 +777,14 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
             for (NamespaceBinding code : codes) {
                 result[p++] = code;
             }
+            docWrapper.cacheDeclaredNamespaces(node, result);
             return result;
         } else {
             return null;
         }
     }
 
-    private static boolean isTextNode(XmlNode node) {
+    static boolean isTextNode(XmlNode node) {
         XmlNodeType type = node.get_NodeType();
         int code = type.Value;
         return code == XmlNodeType.Text || code == XmlNodeType.CDATA;
@@ -650,6 +792,7 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     @Override
     public DotNetNodeWrapper getNextSibling() {
+        checkCurrent();
         XmlNode currNode = node;
         for (int i = 0; i < span; i++) {
             currNode = currNode.get_NextSibling();
@@ -698,6 +841,7 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
     }
 
     public DotNetNodeWrapper getPreviousSibling() {
+        checkCurrent();
         XmlNode currNode = node.get_PreviousSibling();
         if (currNode != null) {
             XmlNodeType type = currNode.get_NodeType();
@@ -772,38 +916,39 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
 
     private final class AttributeEnumeration implements AxisIterator, LookaheadIterator {
 
-        private final ArrayList<XmlNode> attList = new ArrayList<>(10);
-        private int ix = 0;
+        private final XmlNamedNodeMap atts;
+        private final int count;
+        private int ix = 0;                 // position in the DOM attribute collection
+        private int position = 0;           // position among the attributes that are not namespace declarations
         private final DotNetNodeWrapper start;
         private DotNetNodeWrapper current;
 
         public AttributeEnumeration(DotNetNodeWrapper start) {
             this.start = start;
-            XmlNamedNodeMap atts = start.node.get_Attributes();
-            if (atts != null) {
-                for (int i = 0; i < atts.get_Count(); i++) {
-                    String name = atts.Item(i).get_Name();
-                    if (!(name.startsWith("xmlns") &&
-                            (name.length() == 5 || name.charAt(5) == ':'))) {
-                        attList.add(atts.Item(i));
-                    }
-                }
+            atts = start.node.get_Attributes();
+            count = atts == null ? 0 : atts.get_Count();
+            skipNamespaceDeclarations();
+        }
+
+        private void skipNamespaceDeclarations() {
+            while (ix < count && DotNetDocumentWrapper.isNamespaceDeclaration(atts.Item(ix))) {
+                ix++;
             }
-            ix = 0;
         }
 
         @Override
         public boolean hasNext() {
-            return ix < attList.size();
+            return ix < count;
         }
 
         @Override
         public NodeInfo next() {
-            if (ix >= attList.size()) {
+            if (ix >= count) {
                 return null;
             }
-            current = makeWrapper(attList.get(ix), docWrapper, start, ix);
+            current = makeWrapper(atts.Item(ix), docWrapper, start, position++);
             ix++;
+            skipNamespaceDeclarations();
             return current;
         }
 
@@ -825,11 +970,235 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
     }
 
 
+    /**
+     * A test on DOM nodes derived from a Saxon node test, allowing nodes that cannot match the
+     * node test to be rejected before any wrapper is created for them. The test is only
+     * partially decisive: a DOM element whose namespace URI is not set (as can happen in a DOM
+     * constructed programmatically) can only be tested after wrapping, because its namespace
+     * has to be found by searching the in-scope namespace declarations.
+     */
+
+    private static final class DomNodeTest {
+
+        static final int NO_MATCH = 0;
+        static final int MATCH = 1;
+        static final int UNDECIDED = 2;
+
+        private final int kind;         // the required node kind, or Type.NODE for any kind
+        private final String uri;       // the required namespace URI, or null for any namespace
+        private final String local;     // the required local name, or null for any local name
+        private final boolean atomized; // true if the names are atomized in the name table of the DOM
+
+        private DomNodeTest(int kind, String uri, String local) {
+            this(kind, uri, local, false);
+        }
+
+        private DomNodeTest(int kind, String uri, String local, boolean atomized) {
+            this.kind = kind;
+            this.uri = uri;
+            this.local = local;
+            this.atomized = atomized;
+        }
+
+        /**
+         * Make a DomNodeTest corresponding to a given node test, if possible
+         *
+         * @param nodeTest the Saxon node test
+         * @return a DomNodeTest that implements the node test, or null if the node test is not one
+         * that can be evaluated against DOM nodes directly
+         */
+
+        static DomNodeTest make(Predicate<? super NodeInfo> nodeTest) {
+            if (nodeTest instanceof NameTest) {
+                NameTest test = (NameTest) nodeTest;
+                return new DomNodeTest(test.getNodeKind(), test.getNamespaceURI(), test.getLocalPart());
+            } else if (nodeTest instanceof LocalNameTest) {
+                LocalNameTest test = (LocalNameTest) nodeTest;
+                return new DomNodeTest(test.getNodeKind(), null, test.getLocalName());
+            } else if (nodeTest instanceof NodeKindTest) {
+                return new DomNodeTest(((NodeKindTest) nodeTest).getNodeKind(), null, null);
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Ask whether this test selects element nodes only
+         *
+         * @return true if only elements can match
+         */
+
+        boolean isElementOnly() {
+            return kind == Type.ELEMENT;
+        }
+
+        /**
+         * Get a version of this test that compares names using the atomized strings held in the
+         * name table of a DOM document. The local names and namespace URIs of DOM elements are
+         * always atomized in the name table of their owner document, so names can then be compared
+         * by reference rather than character by character. Only applicable to a test that selects
+         * element nodes only.
+         *
+         * @param names the name table of the DOM document
+         * @return the atomized test, or null if the required local name is not present in the
+         * name table, in which case no element in the document can satisfy the test
+         */
+
+        DomNodeTest atomize(XmlNameTable names) {
+            String atomizedLocal = local;
+            if (local != null) {
+                atomizedLocal = names.Get(local);
+                if (atomizedLocal == null) {
+                    return null;
+                }
+            }
+            String atomizedURI = uri;
+            if (uri != null && !uri.isEmpty()) {
+                atomizedURI = names.Get(uri);
+                if (atomizedURI == null) {
+                    // no element has this namespace URI set explicitly; use a private copy of the
+                    // string so that only elements whose namespace is found by searching can match
+                    atomizedURI = new String(uri);
+                }
+            }
+            return new DomNodeTest(kind, atomizedURI, atomizedLocal, true);
+        }
+
+        /**
+         * Test a DOM node
+         *
+         * @param node the DOM node to be tested
+         * @return {@link #MATCH} if the wrapped node will definitely satisfy the node test,
+         * {@link #NO_MATCH} if it definitely will not, or {@link #UNDECIDED} if the node test
+         * needs to be applied to the wrapped node
+         */
+
+        int test(XmlNode node) {
+            int nodeKind = getNodeKind(node);
+            if (kind != Type.NODE && nodeKind != kind) {
+                return NO_MATCH;
+            }
+            if (local != null) {
+                String nodeLocal = node.get_LocalName();
+                if (atomized ? local != nodeLocal : !local.equals(nodeLocal)) {
+                    return NO_MATCH;
+                }
+            }
+            if (uri != null && nodeKind == Type.ELEMENT) {
+                String nodeURI = node.get_NamespaceURI();
+                if (nodeURI == null || nodeURI.isEmpty()) {
+                    return UNDECIDED;
+                }
+                return (atomized ? uri == nodeURI : uri.equals(nodeURI)) ? MATCH : NO_MATCH;
+            }
+            return MATCH;
+        }
+    }
+
+    /**
+     * Get the kind of XPath node corresponding to a DOM node that appears as a child
+     *
+     * @param node the DOM node
+     * @return the node kind, for example {@link Type#ELEMENT}, or -1 if the DOM node is not
+     * represented as a node in the XPath data model
+     */
+
+    private static int getNodeKind(XmlNode node) {
+        switch (node.get_NodeType().Value) {
+            case XmlNodeType.Element:
+                return Type.ELEMENT;
+            case XmlNodeType.Text:
+            case XmlNodeType.CDATA:
+            case XmlNodeType.Whitespace:
+            case XmlNodeType.SignificantWhitespace:
+                return Type.TEXT;
+            case XmlNodeType.Comment:
+                return Type.COMMENT;
+            case XmlNodeType.ProcessingInstruction:
+                return Type.PROCESSING_INSTRUCTION;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Iterator over the descendant or descendant-or-self axis. The iterator walks the DOM nodes
+     * directly, in document order, and only creates wrappers for the nodes that are selected,
+     * so that a search for elements with a particular name costs one walk of the DOM subtree
+     * plus the cost of wrapping the matching nodes. Adjacent text nodes are returned as a single
+     * text node, as elsewhere.
+     */
+
+    private static final class DescendantEnumeration implements AxisIterator {
+
+        private final DotNetNodeWrapper start;
+        private final DotNetDocumentWrapper docWrapper;
+        private final Predicate<? super NodeInfo> nodeTest;
+        private final DomNodeTest domTest;
+        private boolean includeSelf;
+        private XmlNode current;
+
+        DescendantEnumeration(DotNetNodeWrapper start, boolean includeSelf,
+                              Predicate<? super NodeInfo> nodeTest, DomNodeTest domTest) {
+            this.start = start;
+            this.docWrapper = start.docWrapper;
+            this.includeSelf = includeSelf;
+            this.nodeTest = nodeTest;
+            this.domTest = domTest;
+            int kind = start.getNodeKind();
+            this.current = kind == Type.ELEMENT || kind == Type.DOCUMENT ? start.node : null;
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (includeSelf) {
+                includeSelf = false;
+                if (nodeTest.test(start)) {
+                    return start;
+                }
+            }
+            while (current != null) {
+                XmlNode next = getSuccessorNode(current, start.node);
+                current = next;
+                if (next == null) {
+                    return null;
+                }
+                int kind = getNodeKind(next);
+                if (kind == -1) {
+                    // for example an entity reference node, whose children are visited, or a document type node
+                    continue;
+                }
+                int span = 1;
+                if (isTextNode(next)) {
+                    // treat a run of adjacent text nodes as a single text node
+                    XmlNode t = next.get_NextSibling();
+                    while (t != null && isTextNode(t)) {
+                        current = t;
+                        span++;
+                        t = t.get_NextSibling();
+                    }
+                }
+                int match = domTest == null ? DomNodeTest.UNDECIDED : domTest.test(next);
+                if (match == DomNodeTest.NO_MATCH) {
+                    continue;
+                }
+                DotNetNodeWrapper wrapper = makeWrapper(next, docWrapper);
+                wrapper.span = span;
+                if (match == DomNodeTest.MATCH || nodeTest.test(wrapper)) {
+                    return wrapper;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * The class ChildEnumeration handles not only the child axis, but also the
      * following-sibling and preceding-sibling axes. It can also iterate the children
      * of the start node in reverse order, something that is needed to support the
-     * preceding and preceding-or-ancestor axes (the latter being used by xsl:number)
+     * preceding and preceding-or-ancestor axes (the latter being used by xsl:number).
+     * <p>If a node test is supplied, DOM nodes that cannot satisfy the test are skipped
+     * without being wrapped.</p>
      */
 
     private static class ChildEnumeration  implements AxisIterator, LookaheadIterator {
@@ -837,26 +1206,35 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         private DotNetNodeWrapper start;
         private DotNetNodeWrapper commonParent;
 
-        private List<DotNetNodeWrapper> items = new ArrayList<>(20);
-
         private int ix;
-        private int position;
         private boolean downwards;
         private boolean forwards;
         private boolean elementOnly;
         private int currentSpan; // number of DOM nodes mapping to the current XPath node
-        private XmlNodeList childNodes;
+        private XmlNodeList childNodes;                 // null if a child table is in use
+        private DotNetDocumentWrapper.ChildTable childTable;
         private int childNodesLength;
+        private Predicate<? super NodeInfo> nodeTest;   // null if all nodes are selected
+        private DomNodeTest domTest;                    // null if all nodes are selected
+        private DotNetNodeWrapper lookahead;            // next node, if already found by hasNext()
 
         public ChildEnumeration(DotNetDocumentWrapper docTree, DotNetNodeWrapper start,
                          boolean downwards, boolean forwards)
+        {
+            this(docTree, start, downwards, forwards, null, null);
+        }
+
+        public ChildEnumeration(DotNetDocumentWrapper docTree, DotNetNodeWrapper start,
+                                boolean downwards, boolean forwards,
+                                Predicate<? super NodeInfo> nodeTest, DomNodeTest domTest)
         {
             this._docTree = docTree;
             this.start = start;
             this.downwards = downwards;
             this.forwards = forwards;
-            this.elementOnly = false; // fast path for elements is not used
-            position = 0;
+            this.nodeTest = nodeTest;
+            this.domTest = domTest;
+            this.elementOnly = domTest != null && domTest.isElementOnly();
             currentSpan = 1;
             if (downwards) {
                 commonParent = start;
@@ -864,8 +1242,13 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
                 commonParent = ((DotNetNodeWrapper) start.getParent());
             }
 
-            childNodes = commonParent.node.get_ChildNodes();
-            childNodesLength = childNodes.get_Count();
+            childTable = docTree.getChildTable(commonParent.node);
+            if (childTable != null) {
+                childNodesLength = childTable.children.length;
+            } else {
+                childNodes = commonParent.node.get_ChildNodes();
+                childNodesLength = childNodes.get_Count();
+            }
             if (downwards) {
                 currentSpan = 1;
                 if (forwards) {
@@ -885,7 +1268,14 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         // of the span, that is the number of DOM nodes mapped to this XPath node.
         // @return the number of nodes spanned
 
+        private XmlNode item (int i) {
+            return childTable != null ? childTable.children[i] : childNodes.Item(i);
+        }
+
         private int skipPrecedingTextNodes () {
+            if (childTable != null) {
+                return Math.max(1, childTable.precedingText[ix]);
+            }
             int count = 0;
             while (ix >= count) {
                 XmlNode node = childNodes.Item(ix - count);
@@ -903,6 +1293,9 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         //  @return the number of nodes spanned
 
         private int skipFollowingTextNodes () {
+            if (childTable != null) {
+                return Math.max(1, childTable.followingText[ix]);
+            }
             int count = 0;
             int pos = ix;
             int len = childNodesLength;
@@ -923,6 +1316,13 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         }
 
         public boolean hasNext () {
+            if (domTest != null) {
+                // with a filter, the only way to know is to look for the next matching node
+                if (lookahead == null) {
+                    lookahead = advance();
+                }
+                return lookahead != null;
+            }
             if (forwards) {
                 return ix + currentSpan < childNodesLength;
             } else {
@@ -931,60 +1331,73 @@ public class DotNetNodeWrapper extends AbstractNodeWrapper implements SteppingNo
         }
 
         public NodeInfo next () {
+            if (lookahead != null) {
+                DotNetNodeWrapper result = lookahead;
+                lookahead = null;
+                return result;
+            }
+            return advance();
+        }
+
+        private DotNetNodeWrapper advance () {
             while (true) {
+                XmlNode currentDomNode;
                 if (forwards) {
                     ix += currentSpan;
                     if (ix >= childNodesLength) {
                         return null;
+                    }
+                    currentDomNode = item(ix);
+                    if (elementOnly) {
+                        // fast path: no need to measure runs of adjacent text nodes
+                        currentSpan = 1;
+                        if (currentDomNode.get_NodeType().Value != XmlNodeType.Element) {
+                            continue;
+                        }
                     } else {
                         currentSpan = skipFollowingTextNodes();
-                        XmlNode currentDomNode = childNodes.Item(ix);
                         switch (currentDomNode.get_NodeType().Value) {
                             case XmlNodeType.DocumentType:
-                                continue;
                             case XmlNodeType.XmlDeclaration:
                                 continue;
-                            case XmlNodeType.Element:
-                                break;
                             default:
-                                if (elementOnly) {
-                                    continue;
-                                } else {
-                                    break;
-                                }
-
+                                break;
                         }
-
-                        DotNetNodeWrapper wrapper = makeWrapper(currentDomNode, _docTree, commonParent, ix);
-                        wrapper.span = currentSpan;
-                        return wrapper;
                     }
                 } else {
                     ix--;
                     if (ix < 0) {
                         return null;
+                    }
+                    if (elementOnly) {
+                        currentSpan = 1;
+                        currentDomNode = item(ix);
+                        if (currentDomNode.get_NodeType().Value != XmlNodeType.Element) {
+                            continue;
+                        }
                     } else {
                         currentSpan = skipPrecedingTextNodes();
                         ix -= currentSpan - 1;
-                        XmlNode currentDomNode = childNodes.Item(ix);
-                        switch (currentDomNode.get_NodeType().Value) {
-                            case XmlNodeType.DocumentType:
-                                continue;
-                            case XmlNodeType.Element:
-                                break;
-                            default:
-                                if (elementOnly) {
-                                    continue;
-                                } else {
-                                    break;
-                                }
+                        currentDomNode = item(ix);
+                        if (currentDomNode.get_NodeType().Value == XmlNodeType.DocumentType) {
+                            continue;
                         }
+                    }
+                }
 
-                        DotNetNodeWrapper wrapper = makeWrapper(currentDomNode, _docTree, commonParent, ix);
-                        wrapper.span = currentSpan;
-                        return wrapper;
+                int match = DomNodeTest.MATCH;
+                if (domTest != null) {
+                    match = domTest.test(currentDomNode);
+                    if (match == DomNodeTest.NO_MATCH) {
+                        continue;
                     }
                 }
+                DotNetNodeWrapper wrapper = makeWrapper(currentDomNode, _docTree, commonParent, ix);
+                wrapper.span = currentSpan;
+                if (match == DomNodeTest.UNDECIDED && !nodeTest.test(wrapper)) {
+                    continue;
+                }
+                return wrapper;
             }
         }
 
@@ -0,0 +1,152 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.Resource;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.resource.FailedResource;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An iterator over the resources in a collection that materializes the resources (for XML resources,
+ * fetches and parses the documents) on a pool of worker threads, ahead of the point reached by the
+ * consumer. The resources are delivered in the order of the underlying iterator, whatever order the
+ * workers finish them in. The number of resources materialized but not yet delivered is bounded,
+ * so memory use does not depend on the size of the collection.
+ * <p>The underlying iterator is only ever accessed from the thread that is consuming this iterator.
+ * A resource that fails to materialize is delivered as a {@link FailedResource}, so the error is
+ * reported when (and if) the consumer asks for its content.</p>
+ */
+
+public class DotNetParallelResourceIterator implements Iterator<Resource> {
+
+    private final Iterator<? extends Resource> base;
+    private final XPathContext context;
+    private final int readAhead;
+    private final ThreadPoolExecutor executor;
+    private final ArrayDeque<Future<Resource>> pending = new ArrayDeque<>();
+
+    /**
+     * Create a parallel iterator
+     *
+     * @param base        the iterator over the (not yet materialized) resources of the collection
+     * @param context     the XPath dynamic context, used to materialize the resources
+     * @param parallelism the number of worker threads; must be at least one
+     * @param readAhead   the maximum number of resources materialized ahead of the consumer; must be
+     *                    at least one. A value of at least <code>parallelism</code> is needed to keep all
+     *                    the workers busy
+     */
+
+    public DotNetParallelResourceIterator(Iterator<? extends Resource> base, XPathContext context,
+                                          int parallelism, int readAhead) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("Read-ahead must be at least 1");
+        }
+        this.base = base;
+        this.context = context;
+        this.readAhead = readAhead;
+        executor = new ThreadPoolExecutor(parallelism, parallelism, 2, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "Saxon collection loader");
+            t.setDaemon(true);
+            return t;
+        });
+        // let idle workers die, so that an iterator that is abandoned does not hold on to its threads
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void fill() {
+        while (pending.size() < readAhead && base.hasNext()) {
+            final Resource resource = base.next();
+            pending.add(executor.submit(() -> materialize(resource)));
+        }
+        if (pending.isEmpty()) {
+            executor.shutdown();
+        }
+    }
+
+    private Resource materialize(Resource resource) {
+        try {
+            Item item = resource.getItem(context);
+            return new MaterializedResource(resource, item);
+        } catch (XPathException e) {
+            return new FailedResource(resource.getResourceURI(), e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public Resource next() {
+        fill();
+        Future<Resource> first = pending.poll();
+        if (first == null) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return first.get();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading a collection", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * A resource whose content has already been obtained
+     */
+
+    private static class MaterializedResource implements Resource {
+
+        private final Resource resource;
+        private final Item item;
+
+        MaterializedResource(Resource resource, Item item) {
+            this.resource = resource;
+            this.item = item;
+        }
+
+        @Override
+        public String getResourceURI() {
+            return resource.getResourceURI();
+        }
+
+        @Override
+        public Item getItem(XPathContext context) {
+            return item;
+        }
+
+        @Override
+        public String getContentType() {
+            return resource.getContentType();
+        }
+    }
+}
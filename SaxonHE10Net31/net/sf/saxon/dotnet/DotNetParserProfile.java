@@ -0,0 +1,287 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.IO.BufferedStream;
+import cli.System.IO.Stream;
+import cli.System.IO.UnmanagedMemoryStream;
+import cli.System.Xml.DtdProcessing;
+import cli.System.Xml.ValidationType;
+import cli.System.Xml.XmlReaderSettings;
+import cli.System.Xml.XmlResolver;
+import net.sf.saxon.Configuration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The options used when Saxon creates a .NET <code>XmlReader</code> to parse a source document.
+ * A profile can be registered for a Configuration, in which case it applies to every document
+ * parsed using the .NET parser under that Configuration, both by the Saxon platform layer and by
+ * the <code>DocumentBuilder</code> in the .NET API.
+ * <p>The default profile reports all the information in the document. Options that discard
+ * comments or processing instructions change the XDM tree that is built, so they are off by
+ * default and should only be set by applications that know the content is not needed.</p>
+ */
+
+public class DotNetParserProfile {
+
+    private static final Map<Configuration, DotNetParserProfile> profiles =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final DotNetParserProfile DEFAULT = new DotNetParserProfile();
+
+    private boolean ignoreComments = false;
+    private boolean ignoreProcessingInstructions = false;
+    private boolean processDtd = true;
+    private int bufferSize = 0;
+    private boolean pipelined = false;
+    private long mappingThreshold = -1;
+
+    /**
+     * Get the parser profile registered for a Configuration
+     *
+     * @param config the Saxon configuration
+     * @return the registered profile, or a profile containing the default options if none has been registered.
+     * The default profile must not be modified
+     */
+
+    public static DotNetParserProfile getProfile(Configuration config) {
+        DotNetParserProfile profile = profiles.get(config);
+        return profile == null ? DEFAULT : profile;
+    }
+
+    /**
+     * Register a parser profile for a Configuration
+     *
+     * @param config  the Saxon configuration
+     * @param profile the profile to be used for documents parsed under this configuration; or null to
+     *                revert to the default options
+     */
+
+    public static void setProfile(Configuration config, DotNetParserProfile profile) {
+        if (profile == null) {
+            profiles.remove(config);
+        } else {
+            profiles.put(config, profile);
+        }
+    }
+
+    /**
+     * Say whether comments are to be discarded by the parser
+     *
+     * @param ignore true if comments are to be discarded. The default is false.
+     */
+
+    public void setIgnoreComments(boolean ignore) {
+        checkNotDefault();
+        ignoreComments = ignore;
+    }
+
+    /**
+     * Ask whether comments are discarded by the parser
+     *
+     * @return true if comments are discarded
+     */
+
+    public boolean isIgnoreComments() {
+        return ignoreComments;
+    }
+
+    /**
+     * Say whether processing instructions are to be discarded by the parser
+     *
+     * @param ignore true if processing instructions are to be discarded. The default is false.
+     */
+
+    public void setIgnoreProcessingInstructions(boolean ignore) {
+        checkNotDefault();
+        ignoreProcessingInstructions = ignore;
+    }
+
+    /**
+     * Ask whether processing instructions are discarded by the parser
+     *
+     * @return true if processing instructions are discarded
+     */
+
+    public boolean isIgnoreProcessingInstructions() {
+        return ignoreProcessingInstructions;
+    }
+
+    /**
+     * Say whether the DTD is to be processed. Processing the DTD is needed to expand entity
+     * references and to supply default attribute values. If it is not processed, the DTD is skipped,
+     * and a document that references an entity declared in the DTD will fail to parse. This option
+     * is ignored if DTD validation is requested.
+     *
+     * @param process true if the DTD is to be processed. The default is true.
+     */
+
+    public void setProcessDtd(boolean process) {
+        checkNotDefault();
+        processDtd = process;
+    }
+
+    /**
+     * Ask whether the DTD is processed
+     *
+     * @return true if the DTD is processed
+     */
+
+    public boolean isProcessDtd() {
+        return processDtd;
+    }
+
+    /**
+     * Set the size of the buffer placed between the parser and an input stream. A larger buffer
+     * reduces the number of reads made on streams that are expensive to read in small amounts,
+     * for example network streams.
+     *
+     * @param size the buffer size in bytes; zero (the default) means that the stream is used
+     *             as supplied
+     */
+
+    public void setBufferSize(int size) {
+        checkNotDefault();
+        if (size < 0) {
+            throw new IllegalArgumentException("Buffer size must not be negative");
+        }
+        bufferSize = size;
+    }
+
+    /**
+     * Get the size of the buffer placed between the parser and an input stream
+     *
+     * @return the buffer size in bytes; zero if no buffer is added
+     */
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Say whether documents are to be read on a separate thread from the one that builds the tree,
+     * using a {@link DotNetEventPipeline}. This can reduce the elapsed time to build large documents
+     * on machines with more than one processor, but costs more than it saves for small documents.
+     *
+     * @param pipelined true if reading and tree building are to run on separate threads. The default is false.
+     */
+
+    public void setPipelined(boolean pipelined) {
+        checkNotDefault();
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Ask whether documents are read on a separate thread from the one that builds the tree
+     *
+     * @return true if reading and tree building run on separate threads
+     */
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Set the size from which local files read by the .NET parser, when identified only by a <code>file:</code>
+     * URI, are mapped into memory rather than read through a FileStream. See {@link DotNetMappedFile}.
+     *
+     * @param threshold the file size in bytes from which files are mapped; a negative value (the default)
+     *                  means that files are never mapped
+     */
+
+    public void setMappingThreshold(long threshold) {
+        checkNotDefault();
+        mappingThreshold = threshold;
+    }
+
+    /**
+     * Get the size from which local files are mapped into memory
+     *
+     * @return the file size in bytes from which files are mapped, or a negative value if files are never mapped
+     */
+
+    public long getMappingThreshold() {
+        return mappingThreshold;
+    }
+
+    /**
+     * Create the settings for a new XmlReader according to this profile
+     *
+     * @param resolver      the XmlResolver to be used for external entities and the DTD; may be null,
+     *                      in which case the default resolver is used
+     * @param dtdValidation true if DTD validation is required
+     * @return the new settings
+     */
+
+    public XmlReaderSettings makeSettings(XmlResolver resolver, boolean dtdValidation) {
+        return makeSettings(resolver, dtdValidation, false);
+    }
+
+    /**
+     * Create the settings for a new XmlReader according to this profile, saying whether the reader
+     * is to close its input
+     *
+     * @param resolver      the XmlResolver to be used for external entities and the DTD; may be null,
+     *                      in which case the default resolver is used
+     * @param dtdValidation true if DTD validation is required
+     * @param closeInput    true if the stream or TextReader is to be closed when the XmlReader is closed, which
+     *                      is needed when it was opened by the platform or by a URIResolver
+     * @return the new settings
+     */
+
+    public XmlReaderSettings makeSettings(XmlResolver resolver, boolean dtdValidation, boolean closeInput) {
+        XmlReaderSettings settings = new XmlReaderSettings();
+        applyTo(settings, dtdValidation);
+        if (resolver != null) {
+            settings.set_XmlResolver(resolver);
+        }
+        settings.set_CloseInput(closeInput);
+        return settings;
+    }
+
+    /**
+     * Apply the options in this profile to existing XmlReader settings
+     *
+     * @param settings      the settings to be updated
+     * @param dtdValidation true if DTD validation is required
+     */
+
+    public void applyTo(XmlReaderSettings settings, boolean dtdValidation) {
+        // the DTD must be processed to get entity references expanded
+        settings.set_DtdProcessing(DtdProcessing.wrap(
+                processDtd || dtdValidation ? DtdProcessing.Parse : DtdProcessing.Ignore));
+        settings.set_ValidationType(ValidationType.wrap(
+                dtdValidation ? ValidationType.DTD : ValidationType.None));
+        settings.set_IgnoreComments(ignoreComments);
+        settings.set_IgnoreProcessingInstructions(ignoreProcessingInstructions);
+    }
+
+    /**
+     * Prepare an input stream for parsing, adding a buffer if one has been requested. No buffer is added
+     * to a stream that reads from memory, such as a memory-mapped file.
+     *
+     * @param stream the stream supplied by the application
+     * @return the stream to be passed to the parser
+     */
+
+    public Stream prepareStream(Stream stream) {
+        if (bufferSize > 0 && !(stream instanceof BufferedStream) && !(stream instanceof UnmanagedMemoryStream)) {
+            return new BufferedStream(stream, bufferSize);
+        }
+        return stream;
+    }
+
+    private void checkNotDefault() {
+        if (this == DEFAULT) {
+            throw new IllegalStateException("The default parser profile cannot be modified");
+        }
+    }
+}
@@ -10,6 +10,10 @@ package net.sf.saxon.dotnet;
 import cli.Microsoft.Win32.Registry;
 import cli.Microsoft.Win32.RegistryKey;
 import cli.System.Environment;
+import cli.System.IO.File;
+import cli.System.IO.Stream;
+import cli.System.IO.TextReader;
+import cli.System.Uri;
 import cli.System.Xml.*;
 //import com.saxonica.ee.bytecode.util.GeneratedClassLoader;
 import net.sf.saxon.Configuration;
@@ -22,8 +26,6 @@ import net.sf.saxon.expr.sort.AtomicMatchKey;
 import net.sf.saxon.expr.sort.CodepointCollator;
 import net.sf.saxon.expr.sort.SimpleCollation;
 import net.sf.saxon.lib.*;
-import net.sf.saxon.pull.PullProvider;
-import net.sf.saxon.pull.PullSource;
 import net.sf.saxon.regex.ARegularExpression;
 import net.sf.saxon.regex.JavaRegularExpression;
 import net.sf.saxon.regex.RegularExpression;
@@ -43,6 +45,7 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the Platform interface containing methods appropriate to the .NET platform
@@ -58,6 +61,9 @@ public class DotNetPlatform implements Platform {
     // Need to comment this out to avoid compile errors with JDK 9+
     //private static final CharsetProvider provider = new sun.nio.cs.ext.ExtendedCharsets();
 
+    private static final AtomicLong nativeParseCount = new AtomicLong();
+    private static final AtomicLong jaxpParseCount = new AtomicLong();
+
     public DotNetPlatform() {
     }
 
@@ -130,6 +136,7 @@ public class DotNetPlatform implements Platform {
     }
     @Override
     public XMLReader loadParser() {
+        jaxpParseCount.incrementAndGet();
         XMLReader parser;
         try {
             parser = SAXParserFactory.newInstance("org.apache.xerces.jaxp.SAXParserFactoryImpl", getClass().getClassLoader())
@@ -154,14 +161,14 @@ public class DotNetPlatform implements Platform {
     }
 
     /**
-     * Convert a StreamSource to either a SAXSource or a PullSource, depending on the native
+     * Convert a StreamSource to either a SAXSource or an EventSource, depending on the native
      * parser of the selected platform
      *
      * @param pipe          the pipeline configuration
      * @param input         the supplied StreamSource
      * @param validation    indicates whether schema validation is required, adn in what mode
      * @param dtdValidation true if DTD validation is required
-     * @return the PullSource or SAXSource, initialized with a suitable parser, or the original
+     * @return the EventSource or SAXSource, initialized with a suitable parser, or the original
      *         input Source, if now special handling is required or possible. May also return an AugmentedSource
      *         that wraps one of these.
      */
@@ -180,78 +187,43 @@ public class DotNetPlatform implements Platform {
         boolean preferJaxp = config.getConfigurationProperty(Feature.PREFER_JAXP_PARSER);
         InputStream is = input.getInputStream();
         if (is != null) {
-            if (is instanceof DotNetInputStream && !preferJaxp) {
-                XmlReader parser = new XmlTextReader(input.getSystemId(),
-                        ((DotNetInputStream) is).getUnderlyingStream());
-                ((XmlTextReader) parser).set_WhitespaceHandling(WhitespaceHandling.wrap(WhitespaceHandling.All));
-                ((XmlTextReader) parser).set_Normalization(true);
-                if (pipe.getURIResolver() instanceof DotNetURIResolver) {
-                    ((XmlTextReader) parser).set_XmlResolver(
-                            ((DotNetURIResolver) pipe.getURIResolver()).getXmlResolver());
-                }
-
-                // Always need a validating parser, because that's the only way to get entity references expanded
-                parser = new XmlValidatingReader(parser);
-                if (dtdValidation) {
-                    ((XmlValidatingReader) parser).set_ValidationType(ValidationType.wrap(ValidationType.DTD));
-                } else {
-                    ((XmlValidatingReader) parser).set_ValidationType(ValidationType.wrap(ValidationType.None));
-                }
-                PullProvider provider = new DotNetPullProvider(parser);
-                //provider = new PullTracer(provider);
-                PullSource ps = new PullSource(provider);
-                //System.err.println("Using PullSource(stream)");
-                ps.setSystemId(input.getSystemId());
-                if (validation == Validation.DEFAULT) {
-                    return ps;
-                } else {
-                    AugmentedSource as = AugmentedSource.makeAugmentedSource(ps);
-                    as.setSchemaValidationMode(validation);
-                    return as;
-                }
-            } else {
+            if (preferJaxp) {
                 return input;
             }
+            // A Java stream that does not wrap a .NET stream is adapted, so that the .NET parser can still be used
+            Stream stream = is instanceof DotNetInputStream
+                    ? ((DotNetInputStream) is).getUnderlyingStream()
+                    : new DotNetStreamAdapter(is);
+            DotNetParserProfile profile = DotNetParserProfile.getProfile(config);
+            // the stream is closed after parsing, as it was by XmlTextReader.Close(): streams opened by the
+            // URIResolver, for example for doc(), arrive here as plain StreamSources and have no other owner
+            XmlReader parser = XmlReader.Create(
+                    profile.prepareStream(stream),
+                    profile.makeSettings(getXmlResolver(pipe), dtdValidation, true),
+                    input.getSystemId());
+            return makeNativeSource(parser, profile, input.getSystemId(), validation);
         }
         Reader reader = input.getReader();
         if (reader != null) {
-            if (reader instanceof DotNetReader && !preferJaxp) {
-                XmlReader parser = new XmlTextReader(input.getSystemId(),
-                        ((DotNetReader) reader).getUnderlyingTextReader());
-                ((XmlTextReader) parser).set_Normalization(true);
-                ((XmlTextReader) parser).set_WhitespaceHandling(WhitespaceHandling.wrap(WhitespaceHandling.All));
-                if (pipe.getURIResolver() instanceof DotNetURIResolver) {
-                    ((XmlTextReader) parser).set_XmlResolver(
-                            ((DotNetURIResolver) pipe.getURIResolver()).getXmlResolver());
-                }
-
-                // Always need a validating parser, because that's the only way to get entity references expanded
-                parser = new XmlValidatingReader(parser);
-                if (dtdValidation) {
-                    ((XmlValidatingReader) parser).set_ValidationType(ValidationType.wrap(ValidationType.DTD));
-                } else {
-                    ((XmlValidatingReader) parser).set_ValidationType(ValidationType.wrap(ValidationType.None));
-                }
-                PullSource ps = new PullSource(new DotNetPullProvider(parser));
-                //System.err.println("Using PullSource(reader)");
-                ps.setSystemId(input.getSystemId());
-                if (validation == Validation.DEFAULT) {
-                    return ps;
-                } else {
-                    AugmentedSource as = AugmentedSource.makeAugmentedSource(ps);
-                    as.setSchemaValidationMode(validation);
-                    return as;
-                }
-            } else {
+            if (preferJaxp) {
                 return input;
             }
+            TextReader textReader = reader instanceof DotNetReader
+                    ? ((DotNetReader) reader).getUnderlyingTextReader()
+                    : new DotNetTextReaderAdapter(reader);
+            DotNetParserProfile profile = DotNetParserProfile.getProfile(config);
+            XmlReader parser = XmlReader.Create(
+                    textReader,
+                    profile.makeSettings(getXmlResolver(pipe), dtdValidation, true),
+                    input.getSystemId());
+            return makeNativeSource(parser, profile, input.getSystemId(), validation);
         }
         String uri = input.getSystemId();
         if (uri != null) {
             try {
                 Source r = pipe.getURIResolver().resolve(uri, null);
                 if (r == null) {
-                    return input;
+                    return openFile(pipe, input, validation, dtdValidation, preferJaxp);
                 } else if (r instanceof AugmentedSource) {
                     Source r2 = ((AugmentedSource) r).getContainedSource();
                     if (r2 instanceof StreamSource) {
@@ -262,7 +234,7 @@ public class DotNetPlatform implements Platform {
                     }
                 } else if (r instanceof StreamSource) {
                     if(isSame(r, input)) {
-                        return input;
+                        return openFile(pipe, input, validation, dtdValidation, preferJaxp);
                     }
                     Source r2 = getParserSourceInternal(pipe, (StreamSource) r, validation, dtdValidation, depth+1);
                     AugmentedSource as = AugmentedSource.makeAugmentedSource(r2);
@@ -272,12 +244,107 @@ public class DotNetPlatform implements Platform {
                     return r;
                 }
             } catch (TransformerException err) {
-                return input;
+                return openFile(pipe, input, validation, dtdValidation, preferJaxp);
             }
         }
         return input;
     }
 
+    /**
+     * Parse a source identified only by a file: URI using the .NET parser, opening the file directly.
+     * This is used when the URIResolver has not supplied a stream for the source. Files at least as large
+     * as the mapping threshold of the parser profile are mapped into memory.
+     *
+     * @return a Source that reads the file, or the original input if it is not a file: URI that
+     * the .NET parser can read
+     */
+
+    private Source openFile(PipelineConfiguration pipe, StreamSource input, int validation, boolean dtdValidation,
+                            boolean preferJaxp) {
+        String uri = input.getSystemId();
+        if (preferJaxp || !uri.startsWith("file:")) {
+            return input;
+        }
+        DotNetParserProfile profile = DotNetParserProfile.getProfile(pipe.getConfiguration());
+        Stream stream;
+        try {
+            stream = DotNetMappedFile.openIfLarge(uri, profile.getMappingThreshold());
+            if (stream == null) {
+                stream = File.OpenRead(new Uri(uri).get_LocalPath());
+            }
+        } catch (Throwable e) {
+            // leave the JAXP parser to report the error
+            return input;
+        }
+        XmlReaderSettings settings = profile.makeSettings(getXmlResolver(pipe), dtdValidation, true);
+        XmlReader parser = XmlReader.Create(profile.prepareStream(stream), settings, uri);
+        return makeNativeSource(parser, profile, uri, validation);
+    }
+
+    /**
+     * Make a Source that reads a document using a .NET XmlReader. The reader is drained directly
+     * into the receiving pipeline by a {@link DotNetEventSource}.
+     */
+
+    private static Source makeNativeSource(XmlReader parser, DotNetParserProfile profile, String systemId,
+                                           int validation) {
+        nativeParseCount.incrementAndGet();
+        DotNetEventSource es = new DotNetEventSource(parser);
+        es.setPipelined(profile.isPipelined());
+        es.setSystemId(systemId);
+        if (validation == Validation.DEFAULT) {
+            return es;
+        } else {
+            AugmentedSource as = AugmentedSource.makeAugmentedSource(es);
+            as.setSchemaValidationMode(validation);
+            return as;
+        }
+    }
+
+    /**
+     * Get the number of documents that have been parsed using the .NET parser (<code>System.Xml</code>),
+     * since the counters were last reset
+     *
+     * @return the number of documents parsed using the .NET parser, across all configurations
+     */
+
+    public static long getNativeParseCount() {
+        return nativeParseCount.get();
+    }
+
+    /**
+     * Get the number of times a JAXP parser (the Apache Xerces parser cross-compiled to .NET) has been
+     * instantiated to parse a document or fragment, since the counters were last reset. This happens when
+     * the {@link Feature#PREFER_JAXP_PARSER} option is set, or when the source cannot be read using the
+     * .NET parser.
+     *
+     * @return the number of JAXP parsers created, across all configurations
+     */
+
+    public static long getJaxpParseCount() {
+        return jaxpParseCount.get();
+    }
+
+    /**
+     * Reset the counters of documents parsed using each parser to zero
+     */
+
+    public static void resetParseCounts() {
+        nativeParseCount.set(0);
+        jaxpParseCount.set(0);
+    }
+
+    /**
+     * Get the .NET XmlResolver to be used when parsing, if the pipeline's URIResolver supplies one
+     */
+
+    private static XmlResolver getXmlResolver(PipelineConfiguration pipe) {
+        if (pipe.getURIResolver() instanceof DotNetURIResolver) {
+            return ((DotNetURIResolver) pipe.getURIResolver()).getXmlResolver();
+        }
+        return null;
+    }
+
     private static boolean isSame(Source first, Source second){
         if(first == second) {
             return true;
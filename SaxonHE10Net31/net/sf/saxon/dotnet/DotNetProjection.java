@@ -0,0 +1,337 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import net.sf.saxon.expr.Assignation;
+import net.sf.saxon.expr.ComponentInvocation;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.Operand;
+import net.sf.saxon.expr.UserFunctionCall;
+import net.sf.saxon.expr.VariableReference;
+import net.sf.saxon.expr.instruct.UserFunction;
+import net.sf.saxon.expr.parser.PathMap;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.UType;
+import net.sf.saxon.type.Untyped;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A description of the parts of a source document that a query or XPath expression can use,
+ * derived from the path map of the expression. It is used while the document is being parsed
+ * (see {@link DotNetEventSource#setProjection} and {@link DotNetPullProvider#setProjection}) to skip
+ * subtrees that cannot contribute to the result, so that only the projected tree is built.
+ * <p>The analysis is deliberately conservative. Projection is only offered if every path in the
+ * expression that starts at the context item or its root navigates downwards (using the child,
+ * descendant, descendant-or-self, attribute and self axes), and if no step has dependencies that the
+ * path map cannot describe. The path map only describes the expression itself, so projection is also
+ * refused if the expression refers to a global or external variable, or to a function parameter,
+ * whether directly or through the functions it calls, since the variable might be bound to nodes of
+ * the context document. Below any node whose string value or identity is used by the expression,
+ * the whole subtree is retained. Attributes of retained elements are always retained.</p>
+ * <p>A DotNetProjection is immutable and may be used for any number of documents; each document needs
+ * its own {@link Projector}.</p>
+ */
+
+public class DotNetProjection {
+
+    private final PathMap.PathMapNode[] roots;
+
+    private DotNetProjection(PathMap.PathMapNode[] roots) {
+        this.roots = roots;
+    }
+
+    /**
+     * Analyze an expression to determine how a source document can be projected
+     *
+     * @param expression the compiled expression (for example the body of a query), which is to be
+     *                   evaluated with the document node of the projected document as its context item
+     * @return the projection, or null if projection is not possible for this expression: for example if
+     * it uses reverse or sibling axes, if it refers to global or external variables, or if it does not use the context
+     * document at all
+     */
+
+    public static DotNetProjection make(Expression expression) {
+        if (usesGlobalComponents(expression, new HashSet<>())) {
+            return null;
+        }
+        PathMap map = new PathMap(expression);
+        ArrayList<PathMap.PathMapNode> roots = new ArrayList<>(2);
+        if (map.getContextDocumentRoot() != null) {
+            roots.add(map.getContextDocumentRoot());
+        }
+        if (map.getContextItemRoot() != null) {
+            roots.add(map.getContextItemRoot());
+        }
+        if (roots.isEmpty()) {
+            return null;
+        }
+        Set<PathMap.PathMapNode> visited = new HashSet<>();
+        for (PathMap.PathMapNode root : roots) {
+            if (!isDownward(root, visited)) {
+                return null;
+            }
+        }
+        DotNetProjection projection = new DotNetProjection(roots.toArray(new PathMap.PathMapNode[0]));
+        if (projection.makeProjector().keepAll()) {
+            // the whole document is needed
+            return null;
+        }
+        return projection;
+    }
+
+    /**
+     * Ask whether an expression refers to a global variable, to any other variable not bound within
+     * the expression (such as an XPath external variable or a function parameter), or to a user-defined
+     * function other than by a static call, either itself or in the body of a user-defined function
+     * that it calls
+     */
+
+    private static boolean usesGlobalComponents(Expression expression, Set<UserFunction> visited) {
+        ArrayList<Expression> pending = new ArrayList<>();
+        pending.add(expression);
+        while (!pending.isEmpty()) {
+            Expression exp = pending.remove(pending.size() - 1);
+            if (exp instanceof UserFunctionCall) {
+                UserFunction function = ((UserFunctionCall) exp).getFunction();
+                if (function == null) {
+                    return true;
+                }
+                if (visited.add(function)) {
+                    pending.add(function.getBody());
+                }
+            } else if (exp instanceof ComponentInvocation) {
+                // a global variable reference, or a reference to a function that may be called dynamically
+                return true;
+            } else if (exp instanceof VariableReference
+                    && !(((VariableReference) exp).getBinding() instanceof Assignation)) {
+                // the path map cannot tell which nodes the variable is bound to
+                return true;
+            }
+            for (Operand o : exp.operands()) {
+                pending.add(o.getChildExpression());
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDownward(PathMap.PathMapNode node, Set<PathMap.PathMapNode> visited) {
+        if (!visited.add(node)) {
+            return true;
+        }
+        for (PathMap.PathMapArc arc : node.getArcs()) {
+            switch (arc.getAxis()) {
+                case AxisInfo.CHILD:
+                case AxisInfo.DESCENDANT:
+                case AxisInfo.DESCENDANT_OR_SELF:
+                case AxisInfo.SELF:
+                case AxisInfo.ATTRIBUTE:
+                    if (!isDownward(arc.getTarget(), visited)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make a projector to filter the events of one document
+     *
+     * @return a new projector, positioned at the document node
+     */
+
+    public Projector makeProjector() {
+        return new Projector(this);
+    }
+
+    /**
+     * Tracks the position of the parser in a document being projected, and decides for each node
+     * whether it is to be retained. The position is a set of path map nodes that apply to the current
+     * element; the set for an element is computed from the set for its parent when the element starts.
+     */
+
+    public static class Projector {
+
+        private final ArrayList<State> stack = new ArrayList<>(50);
+
+        private Projector(DotNetProjection projection) {
+            LinkedHashSet<PathMap.PathMapNode> nodes = new LinkedHashSet<>();
+            for (PathMap.PathMapNode root : projection.roots) {
+                nodes.add(root);
+            }
+            stack.add(new State(nodes, Type.DOCUMENT, null));
+        }
+
+        private State top() {
+            return stack.get(stack.size() - 1);
+        }
+
+        /**
+         * Ask whether everything below the current node is retained
+         *
+         * @return true if the current node's whole subtree is retained
+         */
+
+        public boolean keepAll() {
+            return top().keepAll;
+        }
+
+        /**
+         * Notify the start of an element, and decide whether it is to be retained. If it is, the
+         * element becomes the current node, and {@link #endElement()} must be called at its end.
+         * If it is not, the caller must skip the element and its subtree, and must not call
+         * {@link #endElement()} for it.
+         *
+         * @param name the name of the element
+         * @return true if the element is to be retained
+         */
+
+        public boolean startElement(NodeName name) {
+            State parent = top();
+            State state;
+            if (parent.keepAll) {
+                state = parent;
+            } else {
+                LinkedHashSet<PathMap.PathMapNode> nodes = new LinkedHashSet<>();
+                for (PathMap.PathMapNode node : parent.nodes) {
+                    for (PathMap.PathMapArc arc : node.getArcs()) {
+                        int axis = arc.getAxis();
+                        if (axis == AxisInfo.CHILD || axis == AxisInfo.DESCENDANT
+                                || axis == AxisInfo.DESCENDANT_OR_SELF) {
+                            if (arc.getNodeTest().matches(Type.ELEMENT, name, Untyped.getInstance())) {
+                                nodes.add(arc.getTarget());
+                            }
+                            if (axis != AxisInfo.CHILD) {
+                                // the arc can still select deeper descendants
+                                nodes.add(node);
+                            }
+                        }
+                    }
+                }
+                if (nodes.isEmpty()) {
+                    return false;
+                }
+                state = new State(nodes, Type.ELEMENT, name);
+            }
+            stack.add(state);
+            return true;
+        }
+
+        /**
+         * Notify the end of a retained element
+         */
+
+        public void endElement() {
+            stack.remove(stack.size() - 1);
+        }
+
+        /**
+         * Ask whether a text node that is a child of the current node is to be retained
+         *
+         * @return true if the text node is to be retained
+         */
+
+        public boolean keepText() {
+            return top().keeps(UType.TEXT);
+        }
+
+        /**
+         * Ask whether a comment that is a child of the current node is to be retained
+         *
+         * @return true if the comment is to be retained
+         */
+
+        public boolean keepComment() {
+            return top().keeps(UType.COMMENT);
+        }
+
+        /**
+         * Ask whether a processing instruction that is a child of the current node is to be retained
+         *
+         * @return true if the processing instruction is to be retained
+         */
+
+        public boolean keepProcessingInstruction() {
+            return top().keeps(UType.PI);
+        }
+    }
+
+    /**
+     * The set of path map nodes that apply to a node of the document
+     */
+
+    private static final class State {
+        final Set<PathMap.PathMapNode> nodes;
+        final boolean keepAll;
+        private UType childKinds = null;
+
+        State(LinkedHashSet<PathMap.PathMapNode> nodes, int kind, NodeName name) {
+            // add the nodes reached by self and descendant-or-self steps that select this node itself
+            ArrayList<PathMap.PathMapNode> work = new ArrayList<>(nodes);
+            while (!work.isEmpty()) {
+                PathMap.PathMapNode node = work.remove(work.size() - 1);
+                for (PathMap.PathMapArc arc : node.getArcs()) {
+                    int axis = arc.getAxis();
+                    if ((axis == AxisInfo.SELF || axis == AxisInfo.DESCENDANT_OR_SELF)
+                            && matches(arc.getNodeTest(), kind, name) && nodes.add(arc.getTarget())) {
+                        work.add(arc.getTarget());
+                    }
+                }
+            }
+            boolean all = false;
+            for (PathMap.PathMapNode node : nodes) {
+                if (node.isReturnable() || node.isAtomized() || node.hasUnknownDependencies()) {
+                    all = true;
+                    break;
+                }
+            }
+            this.nodes = nodes;
+            this.keepAll = all;
+        }
+
+        private static boolean matches(NodeTest test, int kind, NodeName name) {
+            if (kind == Type.DOCUMENT) {
+                return test.getUType().overlaps(UType.DOCUMENT);
+            }
+            return test.matches(kind, name, Untyped.getInstance());
+        }
+
+        /**
+         * Ask whether child nodes of a given kind are retained
+         */
+
+        boolean keeps(UType kind) {
+            if (keepAll) {
+                return true;
+            }
+            if (childKinds == null) {
+                UType kinds = UType.VOID;
+                for (PathMap.PathMapNode node : nodes) {
+                    for (PathMap.PathMapArc arc : node.getArcs()) {
+                        int axis = arc.getAxis();
+                        if (axis == AxisInfo.CHILD || axis == AxisInfo.DESCENDANT
+                                || axis == AxisInfo.DESCENDANT_OR_SELF) {
+                            kinds = kinds.union(arc.getNodeTest().getUType());
+                        }
+                    }
+                }
+                childKinds = kinds;
+            }
+            return childKinds.overlaps(kind);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import net.sf.saxon.type.BuiltInAtomicType;
 import net.sf.saxon.type.SchemaType;
 import net.sf.saxon.type.Untyped;
 import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.Whitespace;
 
 import java.util.List;
 import java.util.Stack;
@@ -37,9 +38,16 @@ public class DotNetPullProvider implements PullProvider, Location {
     private final XmlReader parser;
     private String baseURI;
     private boolean isEmptyElement = false;
+    private boolean isWhitespace = false;
     private Event current = Event.START_OF_INPUT;
     private boolean expandDefaults = true;
     private final Stack<NamespaceMap> namespaceStack = new Stack<>();
+    private DotNetNameCache nameCache = null;
+    private boolean shareNames = true;
+    private boolean positioned = false;   // true if the reader has already been moved to the next node
+    private DotNetProjection.Projector projector = null;
+    private DotNetSpaceStripper stripper = null;
+    private String heldText = null;       // whitespace held back by the stripper, reported before the current node
 
     /**
      * Create a PullProvider that wraps a .NET XML parser
@@ -63,6 +71,62 @@ public class DotNetPullProvider implements PullProvider, Location {
         baseURI = base;
     }
 
+    /**
+     * Say whether the names of elements and attributes read by this provider are to be cached
+     * in a cache shared by all providers using the same Configuration. If not, the cache is private
+     * to this provider. Either way, each distinct name is given its fingerprint in the NamePool
+     * only once; sharing the cache extends this across all the documents parsed using the Configuration.
+     * This must be called before the pipeline configuration is set.
+     *
+     * @param share true (the default) if the name cache is to be shared
+     */
+
+    public void setShareNames(boolean share) {
+        shareNames = share;
+    }
+
+    /**
+     * Supply the cache to be used for the names of elements and attributes. This allows several
+     * providers to share a cache. If no cache is supplied, one is created when the pipeline
+     * configuration is set.
+     *
+     * @param cache the name cache to be used
+     */
+
+    public void setNameCache(DotNetNameCache cache) {
+        nameCache = cache;
+    }
+
+    /**
+     * Supply a projection, so that only the parts of the document that can be used by a particular
+     * query are reported. Subtrees that are not needed are skipped by the XmlReader without being
+     * reported. This must be called before the first event is read.
+     *
+     * @param projection the projection to be applied, or null if the whole document is to be reported
+     */
+
+    public void setProjection(DotNetProjection projection) {
+        projector = projection == null ? null : projection.makeProjector();
+    }
+
+    /**
+     * Supply a rule for stripping whitespace text nodes. The rule is applied as the document is read, so
+     * that stripped text nodes are never reported. This must be called before the first event is read.
+     *
+     * @param rule the space stripping rule, or null if whitespace text nodes are to be reported
+     */
+
+    public void setSpaceStrippingRule(SpaceStrippingRule rule) {
+        stripper = rule == null ? null : new DotNetSpaceStripper(rule);
+    }
+
+    private DotNetNameCache getNameCache() {
+        if (nameCache == null) {
+            nameCache = new DotNetNameCache(pipe == null ? null : pipe.getConfiguration(), shareNames);
+        }
+        return nameCache;
+    }
+
     /**
      * Close the event reader. This indicates that no further events are required.
      * It is not necessary to close an event reader after {@link Event#END_OF_INPUT} has
@@ -117,6 +181,7 @@ public class DotNetPullProvider implements PullProvider, Location {
     @Override
     public AttributeMap getAttributes() {
         if (parser.get_HasAttributes()) {
+            DotNetNameCache names = getNameCache();
             AttributeMap atts = EmptyAttributeMap.getInstance();
             for (int i = 0; i < parser.get_AttributeCount(); i++) {
                 parser.MoveToAttribute(i);
@@ -127,7 +192,7 @@ public class DotNetPullProvider implements PullProvider, Location {
                 if ("xmlns".equals(prefix) || ("".equals(prefix) && "xmlns".equals(localName))) {
                     // skip the namespace declaration
                 } else if (expandDefaults || !parser.get_IsDefault()) {
-                    NodeName nc = new FingerprintedQName(prefix, namespaceURI, localName);
+                    NodeName nc = names.getNodeName(prefix, namespaceURI, localName);
                     // .NET does not report the attribute type (even if it's an ID...)
                     atts = atts.put(new AttributeInfo(nc, BuiltInAtomicType.UNTYPED_ATOMIC, parser.get_Value(),
                                                       Loc.NONE, ReceiverOption.NONE));
@@ -156,7 +221,7 @@ public class DotNetPullProvider implements PullProvider, Location {
      */
     @Override
     public NodeName getNodeName() {
-        return new FingerprintedQName(parser.get_Prefix(), parser.get_NamespaceURI(), parser.get_LocalName());
+        return getNameCache().getNodeName(parser.get_Prefix(), parser.get_NamespaceURI(), parser.get_LocalName());
     }
 
     /**
@@ -248,7 +313,10 @@ public class DotNetPullProvider implements PullProvider, Location {
 
     @Override
     public CharSequence getStringValue() throws XPathException {
-        if (current == Event.TEXT) {
+        if (heldText != null) {
+            return CompressedWhitespace.compress(heldText);
+        } else if (current == Event.TEXT && isWhitespace) {
+            // only whitespace-only text can be compressed
             return CompressedWhitespace.compress(parser.get_Value());
         } else {
             return parser.get_Value();
@@ -279,6 +347,7 @@ public class DotNetPullProvider implements PullProvider, Location {
     @Override
     public Event next() throws XPathException {
         //System.err.println("next(), current = " + current + " empty: " + isEmptyElement);
+        heldText = null;
         if (current == Event.START_OF_INPUT) {
             current = Event.START_DOCUMENT;
             return current;
@@ -287,12 +356,23 @@ public class DotNetPullProvider implements PullProvider, Location {
             return current;
         } else if (current == Event.START_ELEMENT && isEmptyElement) {
             current = Event.END_ELEMENT;
+            namespaceStack.pop();
+            if (projector != null) {
+                projector.endElement();
+            }
+            if (stripper != null) {
+                stripper.endElement();
+            }
             return current;
         }
 
         do {
             try {
-                parser.Read();
+                if (positioned) {
+                    positioned = false;
+                } else {
+                    parser.Read();
+                }
                 //noinspection ConstantIfStatement
                 if (false) throw new XmlException("dummy"); // keeps the compiler happy
                 //noinspection ConstantIfStatement
@@ -318,6 +398,7 @@ public class DotNetPullProvider implements PullProvider, Location {
             }
             int intype = parser.get_NodeType().Value;
             isEmptyElement = parser.get_IsEmptyElement();
+            isWhitespace = intype == XmlNodeType.Whitespace || intype == XmlNodeType.SignificantWhitespace;
             //System.err.println("Next event: " + intype + " at depth " + parser.get_Depth() + " empty: " + isEmptyElement + "," + parser.get_IsEmptyElement());
             if (parser.get_EOF()) {
                 current = Event.END_DOCUMENT;
@@ -328,8 +409,25 @@ public class DotNetPullProvider implements PullProvider, Location {
                 current = null;
             } else {
                 current = mapInputKindToOutputKind(intype);
+                if (stripper != null && (current == Event.START_ELEMENT || current == Event.COMMENT
+                        || current == Event.PROCESSING_INSTRUCTION)) {
+                    // the end of a text node: any whitespace held back is stripped
+                    stripper.endText();
+                }
                 if (current == Event.TEXT && parser.get_Depth() == 0) {
                     current = null;
+                } else if (current == Event.TEXT && stripper != null
+                        && (isWhitespace || Whitespace.isWhite(parser.get_Value()))
+                        && stripper.isStripped(parser.get_XmlSpace().Value == XmlSpace.Preserve)) {
+                    // strip it unless more text follows in the same text node
+                    stripper.holdWhitespace(parser.get_Value());
+                    current = null;
+                } else if (current != null && projector != null && !isProjected(current)) {
+                    current = null;
+                } else if (current == Event.TEXT && stripper != null
+                        && (heldText = stripper.releaseWhitespace()) != null) {
+                    // report the whitespace held back as a text event, and then this node again
+                    positioned = true;
                 } else if (current == Event.START_ELEMENT) {
                     NamespaceMap nsMap = namespaceStack.peek();
                     if (parser.get_HasAttributes()) {
@@ -344,10 +442,20 @@ public class DotNetPullProvider implements PullProvider, Location {
                                 nsMap = nsMap.bind("", parser.get_Value());
                             }
                         }
+                        parser.MoveToElement();
                     }
                     namespaceStack.push(nsMap);
+                    if (stripper != null) {
+                        stripper.startElement(getNodeName());
+                    }
                 } else if (current == Event.END_ELEMENT) {
                     namespaceStack.pop();
+                    if (projector != null) {
+                        projector.endElement();
+                    }
+                    if (stripper != null) {
+                        stripper.endElement();
+                    }
                 }
             }
         } while (current == null);
@@ -355,6 +463,36 @@ public class DotNetPullProvider implements PullProvider, Location {
         return current;
     }
 
+    /**
+     * Decide whether the node at which the reader is positioned is retained by the projection. An element
+     * that is not retained is skipped, leaving the reader positioned at the following node.
+     *
+     * @param event the event for the current node
+     * @return true if the node is to be reported
+     */
+
+    private boolean isProjected(Event event) {
+        switch (event) {
+            case START_ELEMENT:
+                NodeName name = getNameCache().getNodeName(
+                        parser.get_Prefix(), parser.get_NamespaceURI(), parser.get_LocalName());
+                if (projector.startElement(name)) {
+                    return true;
+                }
+                parser.Skip();
+                positioned = true;
+                return false;
+            case TEXT:
+                return projector.keepText();
+            case COMMENT:
+                return projector.keepComment();
+            case PROCESSING_INSTRUCTION:
+                return projector.keepProcessingInstruction();
+            default:
+                return true;
+        }
+    }
+
     /**
      * Map the numbers used to identify events in the .NET XMLReader interface to the numbers used
      * by the Saxon PullProvider interface
@@ -408,6 +546,9 @@ public class DotNetPullProvider implements PullProvider, Location {
         this.pipe = pipe;
         final Configuration config = pipe.getConfiguration();
         expandDefaults = config.isExpandAttributeDefaults();
+        if (nameCache == null) {
+            nameCache = new DotNetNameCache(config, shareNames);
+        }
     }
 
     /**
@@ -424,7 +565,18 @@ public class DotNetPullProvider implements PullProvider, Location {
     public Event skipToMatchingEnd() throws XPathException {
         if (current == Event.START_ELEMENT) {
             current = Event.END_ELEMENT;
-            parser.Skip();
+            if (!isEmptyElement) {
+                // Skip() leaves the reader at the node after the end tag, which is the next node to report
+                parser.Skip();
+                positioned = true;
+            }
+            namespaceStack.pop();
+            if (projector != null) {
+                projector.endElement();
+            }
+            if (stripper != null) {
+                stripper.endElement();
+            }
         } else if (current == Event.START_DOCUMENT) {
             current = Event.END_DOCUMENT;
         } else {
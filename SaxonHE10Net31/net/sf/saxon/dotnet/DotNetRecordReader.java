@@ -0,0 +1,291 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.XmlException;
+import cli.System.Xml.XmlNodeType;
+import cli.System.Xml.XmlReader;
+import cli.System.Xml.Schema.XmlSchemaException;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.om.NameChecker;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.pattern.LocalNameTest;
+import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.Untyped;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a large document with a .NET XmlReader and delivers the record elements within it one at a time,
+ * each as the single child of a document node in its own TinyTree. Only one record is held in memory at
+ * a time (unless the caller keeps them), so a document of any size can be processed record by record
+ * by a stylesheet, query or XPath expression written for a single record.
+ * <p>The records are identified by a path: a sequence of element name tests separated by <code>/</code>
+ * or <code>//</code>, with the same meaning as an XSLT pattern. A path that starts with <code>/</code> is
+ * matched from the outermost element; any other path matches at any depth. A name test is one of
+ * <code>*</code>, <code>*:local</code> (any namespace), <code>local</code> (no namespace), or
+ * <code>Q{uri}local</code>. For example <code>/feed/entry</code>, <code>entry</code>, or
+ * <code>Q{http://www.w3.org/2005/Atom}entry</code>. A record is never looked for inside another record.</p>
+ * <p>The content outside the records is discarded, except that the namespaces declared on the ancestors
+ * of a record remain in scope in the record's tree.</p>
+ */
+
+public class DotNetRecordReader implements SequenceIterator {
+
+    private final XmlReader parser;
+    private final PipelineConfiguration pipe;
+    private final String systemId;
+    private final DotNetNameCache names;
+    private final RecordPath path;
+    private final ArrayList<NodeName> elements = new ArrayList<>(20);
+    private final ArrayList<NamespaceMap> namespaceStack = new ArrayList<>(20);
+    private NamespaceMap namespaces = NamespaceMap.emptyMap();
+    private boolean finished = false;
+    private int recordCount = 0;
+
+    /**
+     * Create a record reader
+     *
+     * @param parser   the XmlReader, positioned at the start of the document
+     * @param path     the path identifying the record elements
+     * @param pipe     the pipeline configuration used to build the records
+     * @param systemId the system identifier of the document, used as the base URI of every record; may be null
+     */
+
+    public DotNetRecordReader(XmlReader parser, RecordPath path, PipelineConfiguration pipe, String systemId) {
+        this.parser = parser;
+        this.path = path;
+        this.pipe = pipe;
+        this.systemId = systemId;
+        this.names = new DotNetNameCache(pipe.getConfiguration(), true);
+    }
+
+    /**
+     * Get the next record
+     *
+     * @return the document node of a new tree containing the next record, or null if there are no more records
+     * @throws XPathException if the XML parser reports an error
+     */
+
+    @Override
+    public NodeInfo next() throws XPathException {
+        if (finished) {
+            return null;
+        }
+        try {
+            while (parser.Read()) {
+                switch (parser.get_NodeType().Value) {
+                    case XmlNodeType.Element: {
+                        NodeName name = names.getNodeName(
+                                parser.get_Prefix(), parser.get_NamespaceURI(), parser.get_LocalName());
+                        elements.add(name);
+                        if (path.matches(elements)) {
+                            elements.remove(elements.size() - 1);
+                            return buildRecord();
+                        }
+                        if (parser.get_IsEmptyElement()) {
+                            elements.remove(elements.size() - 1);
+                        } else {
+                            namespaceStack.add(namespaces);
+                            namespaces = declareNamespaces(namespaces);
+                        }
+                        break;
+                    }
+                    case XmlNodeType.EndElement:
+                        elements.remove(elements.size() - 1);
+                        namespaces = namespaceStack.remove(namespaceStack.size() - 1);
+                        break;
+                    default:
+                        // content outside the records is not needed
+                        break;
+                }
+            }
+            //noinspection ConstantIfStatement
+            if (false) throw new XmlException("dummy"); // keeps the compiler happy
+            //noinspection ConstantIfStatement
+            if (false) throw new XmlSchemaException("dummy", new XmlException("dummy")); // keeps the compiler happy
+        } catch (XPathException e) {
+            close();
+            throw e;
+        } catch (XmlException e) {
+            close();
+            throw DotNetEventSource.makeParserException(e, systemId);
+        } catch (XmlSchemaException e) {
+            close();
+            throw DotNetEventSource.makeParserException(e, systemId);
+        } catch (Exception e) {
+            close();
+            throw DotNetEventSource.makeParserException(e, systemId);
+        }
+        close();
+        return null;
+    }
+
+    private NamespaceMap declareNamespaces(NamespaceMap inScope) {
+        if (parser.MoveToFirstAttribute()) {
+            do {
+                String prefix = parser.get_Prefix();
+                String localName = parser.get_LocalName();
+                if ("xmlns".equals(prefix)) {
+                    inScope = inScope.bind(localName, parser.get_Value());
+                } else if (prefix.isEmpty() && "xmlns".equals(localName)) {
+                    inScope = inScope.bind("", parser.get_Value());
+                }
+            } while (parser.MoveToNextAttribute());
+            parser.MoveToElement();
+        }
+        return inScope;
+    }
+
+    private NodeInfo buildRecord() throws XPathException {
+        // closing the subtree reader leaves the parser positioned on the last node of the record
+        DotNetEventSource source = new DotNetEventSource(parser.ReadSubtree());
+        source.setNameCache(names);
+        source.setInheritedNamespaces(namespaces);
+        source.setSystemId(systemId);
+        TinyBuilder builder = new TinyBuilder(pipe);
+        source.send(builder);
+        recordCount++;
+        return builder.getCurrentRoot();
+    }
+
+    /**
+     * Get the number of records delivered so far
+     *
+     * @return the number of records
+     */
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Close the iterator, closing the XmlReader. This is done automatically when the last record has been read.
+     */
+
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            parser.Close();
+        }
+    }
+
+    /**
+     * A compiled record path. A RecordPath is immutable, and can be used by any number of readers.
+     */
+
+    public static final class RecordPath {
+
+        private final Step[] steps;
+        private final boolean anchored;
+
+        /**
+         * Compile a record path
+         *
+         * @param recordPath the path, for example <code>/feed/entry</code>
+         * @param pool       the name pool
+         * @throws IllegalArgumentException if the path is not valid
+         */
+
+        public RecordPath(String recordPath, NamePool pool) {
+            String path = recordPath.trim();
+            anchored = path.startsWith("/") && !path.startsWith("//");
+            ArrayList<Step> list = new ArrayList<>();
+            int i = path.startsWith("//") ? 2 : anchored ? 1 : 0;
+            boolean anyDepth = false;
+            while (true) {
+                int end = i;
+                if (path.startsWith("Q{", i)) {
+                    end = path.indexOf('}', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Invalid record path " + recordPath + ": missing '}'");
+                    }
+                }
+                end = path.indexOf('/', end);
+                if (end < 0) {
+                    end = path.length();
+                }
+                list.add(new Step(makeNameTest(path.substring(i, end), pool, recordPath), anyDepth));
+                if (end == path.length()) {
+                    break;
+                }
+                anyDepth = path.startsWith("//", end);
+                i = end + (anyDepth ? 2 : 1);
+            }
+            steps = list.toArray(new Step[0]);
+        }
+
+        private static NodeTest makeNameTest(String name, NamePool pool, String recordPath) {
+            if (name.equals("*")) {
+                return NodeKindTest.ELEMENT;
+            } else if (name.startsWith("*:") && NameChecker.isValidNCName(name.substring(2))) {
+                return new LocalNameTest(pool, Type.ELEMENT, name.substring(2));
+            } else if (name.startsWith("Q{")) {
+                int close = name.indexOf('}');
+                String local = name.substring(close + 1);
+                if (NameChecker.isValidNCName(local)) {
+                    return new NameTest(Type.ELEMENT, name.substring(2, close), local, pool);
+                }
+            } else if (NameChecker.isValidNCName(name)) {
+                return new NameTest(Type.ELEMENT, "", name, pool);
+            }
+            throw new IllegalArgumentException("Invalid record path " + recordPath + ": the step '" + name +
+                    "' must be *, *:local, local, or Q{uri}local");
+        }
+
+        /**
+         * Ask whether an element is a record
+         *
+         * @param elements the names of the element and its ancestors, outermost first
+         * @return true if the last element in the list matches the path
+         */
+
+        public boolean matches(List<NodeName> elements) {
+            return matches(elements, steps.length - 1, elements.size() - 1);
+        }
+
+        private boolean matches(List<NodeName> elements, int step, int level) {
+            if (!steps[step].test.matches(Type.ELEMENT, elements.get(level), Untyped.getInstance())) {
+                return false;
+            }
+            if (step == 0) {
+                return !anchored || level == 0;
+            }
+            if (steps[step].anyDepth) {
+                for (int k = level - 1; k >= 0; k--) {
+                    if (matches(elements, step - 1, k)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return level > 0 && matches(elements, step - 1, level - 1);
+        }
+    }
+
+    private static final class Step {
+        final NodeTest test;
+        final boolean anyDepth;
+
+        Step(NodeTest test, boolean anyDepth) {
+            this.test = test;
+            this.anyDepth = anyDepth;
+        }
+    }
+}
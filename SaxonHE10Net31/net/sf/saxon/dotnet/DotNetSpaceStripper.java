@@ -0,0 +1,137 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import net.sf.saxon.event.Stripper;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.om.SpaceStrippingRule;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.Untyped;
+import net.sf.saxon.z.IntToIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Decides which whitespace text nodes reported by a .NET XmlReader are to be discarded, according to a
+ * {@link SpaceStrippingRule}. This does the same job as a {@link Stripper} placed in the pipeline, but
+ * it is applied while the document is being read, so that stripped text nodes are never passed on.
+ * <p>The XmlReader keeps track of <code>xml:space</code>, so the work done here is to apply the rule to
+ * the parent element; the decision for each element name is computed once and cached by fingerprint.
+ * The XmlReader can report one XDM text node as several nodes, for example whitespace followed by a
+ * CDATA section, or text on either side of an entity reference. So a whitespace-only piece of text is
+ * held back until the end of the text node is known: it is discarded if the text node turns out to
+ * be whitespace-only, and released if more text follows.</p>
+ * <p>Only untyped documents are handled: rules that depend on the type annotation of the parent element,
+ * such as the rule for stripping ignorable whitespace, should be applied by a Stripper after validation.</p>
+ */
+
+public class DotNetSpaceStripper {
+
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private final SpaceStrippingRule rule;
+    private final IntToIntHashMap decisions = new IntToIntHashMap(64);
+    private int[] stack = new int[50];
+    private int top = 0;
+    private final StringBuilder heldWhitespace = new StringBuilder();
+
+    /**
+     * Create a stripper
+     *
+     * @param rule the rule deciding which elements have whitespace text children stripped
+     */
+
+    public DotNetSpaceStripper(SpaceStrippingRule rule) {
+        this.rule = rule;
+        decisions.setDefaultValue(UNKNOWN);
+        // whitespace outside the document element is never reported
+        stack[0] = Stripper.ALWAYS_PRESERVE;
+    }
+
+    /**
+     * Notify the start of an element
+     *
+     * @param name the name of the element
+     * @throws XPathException if the rule cannot be applied
+     */
+
+    public void startElement(NodeName name) throws XPathException {
+        endText();
+        int decision = UNKNOWN;
+        if (name.hasFingerprint()) {
+            decision = decisions.get(name.getFingerprint());
+        }
+        if (decision == UNKNOWN) {
+            decision = rule.isSpacePreserving(name, Untyped.getInstance());
+            if (name.hasFingerprint()) {
+                decisions.put(name.getFingerprint(), decision);
+            }
+        }
+        if (++top == stack.length) {
+            stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top] = decision;
+    }
+
+    /**
+     * Notify the end of an element
+     */
+
+    public void endElement() {
+        endText();
+        top--;
+    }
+
+    /**
+     * Ask whether a whitespace-only text node that is a child of the current element is to be stripped
+     *
+     * @param preserveScope true if the text node is within the scope of <code>xml:space="preserve"</code>
+     * @return true if the text node is to be discarded
+     */
+
+    public boolean isStripped(boolean preserveScope) {
+        int decision = stack[top];
+        return decision == Stripper.ALWAYS_STRIP || (decision == Stripper.STRIP_DEFAULT && !preserveScope);
+    }
+
+    /**
+     * Hold back a whitespace-only piece of text, which is to be stripped unless more text follows it
+     * in the same text node
+     *
+     * @param chars the whitespace
+     */
+
+    public void holdWhitespace(CharSequence chars) {
+        heldWhitespace.append(chars);
+    }
+
+    /**
+     * Release the whitespace held back, because text that is not whitespace follows it in the same
+     * text node. The caller must pass the result on before that text.
+     *
+     * @return the whitespace held back, or null if there is none
+     */
+
+    public String releaseWhitespace() {
+        if (heldWhitespace.length() == 0) {
+            return null;
+        }
+        String chars = heldWhitespace.toString();
+        heldWhitespace.setLength(0);
+        return chars;
+    }
+
+    /**
+     * Notify the end of a text node, that is, any event other than text, discarding the whitespace
+     * held back
+     */
+
+    public void endText() {
+        heldWhitespace.setLength(0);
+    }
+}
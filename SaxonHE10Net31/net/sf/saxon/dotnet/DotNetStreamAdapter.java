@@ -0,0 +1,155 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.IO.SeekOrigin;
+import cli.System.IO.Stream;
+import cli.System.NotSupportedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A read-only .NET Stream implemented as a wrapper around a Java InputStream. This is the converse of
+ * {@link DotNetInputStream}; it allows a document supplied as a Java InputStream to be parsed
+ * using the .NET XmlReader.
+ */
+
+public class DotNetStreamAdapter extends Stream {
+
+    private final InputStream in;
+    private long position = 0;
+
+    /**
+     * Create a .NET Stream that reads from a Java InputStream
+     *
+     * @param in the Java InputStream
+     */
+
+    public DotNetStreamAdapter(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Get the underlying Java InputStream
+     *
+     * @return the Java InputStream
+     */
+
+    public InputStream getUnderlyingInputStream() {
+        return in;
+    }
+
+    @Override
+    public boolean get_CanRead() {
+        return true;
+    }
+
+    @Override
+    public boolean get_CanSeek() {
+        return false;
+    }
+
+    @Override
+    public boolean get_CanWrite() {
+        return false;
+    }
+
+    @Override
+    public long get_Length() {
+        throw new NotSupportedException();
+    }
+
+    @Override
+    public long get_Position() {
+        return position;
+    }
+
+    @Override
+    public void set_Position(long value) {
+        throw new NotSupportedException();
+    }
+
+    /**
+     * Read a sequence of bytes from the stream
+     *
+     * @param buffer the buffer to receive the bytes
+     * @param offset the offset in the buffer at which the first byte is to be stored
+     * @param count  the maximum number of bytes to read
+     * @return the number of bytes read; zero at the end of the stream (whereas Java returns -1)
+     */
+
+    @Override
+    public int Read(byte[] buffer, int offset, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        try {
+            int n = in.read(buffer, offset, count);
+            if (n <= 0) {
+                return 0;
+            }
+            position += n;
+            return n;
+        } catch (IOException e) {
+            throw new cli.System.IO.IOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public int ReadByte() {
+        try {
+            int b = in.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        } catch (IOException e) {
+            throw new cli.System.IO.IOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public long Seek(long offset, SeekOrigin origin) {
+        throw new NotSupportedException();
+    }
+
+    @Override
+    public void SetLength(long value) {
+        throw new NotSupportedException();
+    }
+
+    @Override
+    public void Write(byte[] buffer, int offset, int count) {
+        throw new NotSupportedException();
+    }
+
+    @Override
+    public void Flush() {
+        // no action for a read-only stream
+    }
+
+    /**
+     * Release the stream, closing the underlying Java InputStream
+     *
+     * @param disposing true if called from Dispose() rather than from a finalizer
+     */
+
+    @Override
+    protected void Dispose(boolean disposing) {
+        try {
+            if (disposing) {
+                in.close();
+            }
+        } catch (IOException e) {
+            // ignore errors on closing
+        } finally {
+            super.Dispose(disposing);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.IO.TextReader;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A .NET TextReader implemented as a wrapper around a Java Reader. This is the converse of
+ * {@link DotNetReader}; it allows a document supplied as a Java Reader to be parsed
+ * using the .NET XmlReader.
+ */
+
+public class DotNetTextReaderAdapter extends TextReader {
+
+    private final Reader reader;
+    private int peeked = -2;        // -2 means no character has been read ahead
+
+    /**
+     * Create a .NET TextReader that reads from a Java Reader
+     *
+     * @param reader the Java Reader
+     */
+
+    public DotNetTextReaderAdapter(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Get the underlying Java Reader
+     *
+     * @return the Java Reader
+     */
+
+    public Reader getUnderlyingReader() {
+        return reader;
+    }
+
+    /**
+     * Get the next character without consuming it
+     *
+     * @return the next character, or -1 at the end of the input
+     */
+
+    @Override
+    public int Peek() {
+        if (peeked == -2) {
+            peeked = readChar();
+        }
+        return peeked;
+    }
+
+    /**
+     * Read the next character
+     *
+     * @return the next character, or -1 at the end of the input
+     */
+
+    @Override
+    public int Read() {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return readChar();
+    }
+
+    /**
+     * Read a sequence of characters
+     *
+     * @param buffer the buffer to receive the characters
+     * @param index  the offset in the buffer at which the first character is to be stored
+     * @param count  the maximum number of characters to read
+     * @return the number of characters read; zero at the end of the input (whereas Java returns -1)
+     */
+
+    @Override
+    public int Read(char[] buffer, int index, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (peeked != -2) {
+            if (peeked == -1) {
+                return 0;
+            }
+            buffer[index++] = (char) peeked;
+            peeked = -2;
+            count--;
+            n = 1;
+            if (count == 0) {
+                return n;
+            }
+        }
+        try {
+            int r = reader.read(buffer, index, count);
+            return r <= 0 ? n : n + r;
+        } catch (IOException e) {
+            throw new cli.System.IO.IOException(e.getMessage());
+        }
+    }
+
+    private int readChar() {
+        try {
+            return reader.read();
+        } catch (IOException e) {
+            throw new cli.System.IO.IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Release the reader, closing the underlying Java Reader
+     *
+     * @param disposing true if called from Dispose() rather than from a finalizer
+     */
+
+    @Override
+    protected void Dispose(boolean disposing) {
+        try {
+            if (disposing) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // ignore errors on closing
+        } finally {
+            super.Dispose(disposing);
+        }
+    }
+}
@@ -0,0 +1,695 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.IO.File;
+import cli.System.IO.FileInfo;
+import cli.System.IO.Stream;
+import cli.System.Security.Cryptography.SHA256;
+import cli.System.Uri;
+import cli.System.Xml.XmlReader;
+import cli.System.Xml.XmlReaderSettings;
+import cli.System.Xml.XmlResolver;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.EventSource;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.event.TeeOutputter;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.lib.Validation;
+import net.sf.saxon.om.*;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.Untyped;
+
+import javax.xml.transform.Source;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of parsed documents, held in a compact binary form in a directory on disk. When a local file is
+ * requested and the cache holds an entry made from the same version of the file, the document is rebuilt by
+ * replaying the events recorded in the entry, without any XML parsing; otherwise the file is parsed with the
+ * .NET parser, and the entry is written as a by-product of building the tree.
+ * <p>An entry records the names, namespaces, attributes, text, comments and processing instructions of the
+ * document, with each distinct name and namespace context stored only once. It records the document as
+ * delivered by the parser, before any whitespace stripping, projection or validation, so the same entry
+ * serves every way the document is built; those filters are applied to the replayed events
+ * in the usual way. Line numbers and attribute types reported by the DTD are not recorded. The parser options
+ * that change the events delivered (ignoring comments or processing instructions, processing the DTD, and
+ * expanding attribute defaults) form part of the key, so documents parsed with different options have
+ * separate entries. When DTD validation is requested, the document is parsed with validation and the cache
+ * is neither read nor written.</p>
+ * <p>A document whose recorded events would exceed the largest possible array is built without being cached.</p>
+ * <p>Whether an entry is current is decided either from the size and last-modified time of the source file,
+ * or (more reliably, at the cost of reading the file) from its size and SHA-256 digest.</p>
+ * <p>The cache is safe for use by several threads and several processes: entries are written to a temporary
+ * file and then moved into place.</p>
+ */
+
+public class DotNetTreeCache {
+
+    private static final int MAGIC = 0x53585443;     // "SXTC"
+    private static final int VERSION = 2;
+
+    private static final byte END_DOCUMENT = 0;
+    private static final byte START_ELEMENT = 1;
+    private static final byte END_ELEMENT = 2;
+    private static final byte TEXT = 3;
+    private static final byte COMMENT = 4;
+    private static final byte PROCESSING_INSTRUCTION = 5;
+
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+
+    private final Path directory;
+    private final boolean verifyHash;
+
+    /**
+     * Create a tree cache
+     *
+     * @param directory  the directory holding the cache entries; it is created if it does not exist
+     * @param verifyHash true if an entry is to be used only if the SHA-256 digest of the source file is unchanged;
+     *                   false if it is enough for the size and last-modified time of the file to be unchanged
+     * @throws IOException if the directory cannot be created
+     */
+
+    public DotNetTreeCache(String directory, boolean verifyHash) throws IOException {
+        this.directory = Files.createDirectories(Paths.get(directory));
+        this.verifyHash = verifyHash;
+    }
+
+    /**
+     * Get the directory holding the cache entries
+     *
+     * @return the directory name
+     */
+
+    public String getDirectory() {
+        return directory.toString();
+    }
+
+    /**
+     * Ask whether entries are validated using the digest of the source file
+     *
+     * @return true if the SHA-256 digest is compared; false if the last-modified time is compared
+     */
+
+    public boolean isVerifyHash() {
+        return verifyHash;
+    }
+
+    /**
+     * Make a Source for a document, which is built from the cache if there is a current entry for it,
+     * and which otherwise parses the document and refreshes the entry
+     *
+     * @param uri      the absolute URI of the document
+     * @param resolver the XmlResolver to be used for external entities and the DTD when the document
+     *                 is parsed; may be null, in which case the default resolver is used
+     * @return the Source, or null if the URI does not identify a local file
+     */
+
+    public Source makeSource(String uri, XmlResolver resolver) {
+        if (!uri.startsWith("file:")) {
+            return null;
+        }
+        Uri abs = new Uri(uri);
+        if (!abs.get_IsFile()) {
+            return null;
+        }
+        CacheSource source = new CacheSource(abs.get_LocalPath(), resolver);
+        source.setSystemId(uri);
+        return source;
+    }
+
+    /**
+     * Get the number of documents that have been rebuilt from a cache entry
+     *
+     * @return the number of cache hits since the counts were last reset
+     */
+
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of documents that have been parsed because there was no current cache entry
+     *
+     * @return the number of cache misses since the counts were last reset
+     */
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Reset the hit and miss counts to zero
+     */
+
+    public static void resetCounts() {
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    private Path getEntry(String path, Configuration config) {
+        DotNetParserProfile profile = DotNetParserProfile.getProfile(config);
+        String key = path + '\u0000' +
+                (profile.isIgnoreComments() ? 'C' : '-') +
+                (profile.isIgnoreProcessingInstructions() ? 'P' : '-') +
+                (profile.isProcessDtd() ? 'D' : '-') +
+                (config.isExpandAttributeDefaults() ? 'A' : '-');
+        byte[] digest = SHA256.Create().ComputeHash(key.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(40);
+        for (int i = 0; i < 16; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return directory.resolve(sb.append(".sxtc").toString());
+    }
+
+    /**
+     * The identifying properties of a version of the source file
+     */
+
+    private final class SourceVersion {
+        final long length;
+        final long ticks;
+        final byte[] hash;
+
+        SourceVersion(String path) {
+            FileInfo info = new FileInfo(path);
+            length = info.get_Length();
+            ticks = info.get_LastWriteTimeUtc().get_Ticks();
+            if (verifyHash) {
+                Stream stream = File.OpenRead(path);
+                try {
+                    hash = SHA256.Create().ComputeHash(stream);
+                } finally {
+                    stream.Close();
+                }
+            } else {
+                hash = new byte[0];
+            }
+        }
+
+        boolean matches(long length, long ticks, byte[] hash) {
+            return length == this.length &&
+                    (verifyHash ? Arrays.equals(hash, this.hash) : ticks == this.ticks);
+        }
+    }
+
+    /**
+     * An EventSource that delivers a document from the cache, or parses it and writes the cache entry
+     */
+
+    private final class CacheSource extends EventSource {
+
+        private final String path;
+        private final XmlResolver resolver;
+
+        CacheSource(String path, XmlResolver resolver) {
+            this.path = path;
+            this.resolver = resolver;
+        }
+
+        @Override
+        public void send(Receiver out) throws XPathException {
+            Configuration config = out.getPipelineConfiguration().getConfiguration();
+            int dtdValidation = out.getPipelineConfiguration().getParseOptions().getDTDValidationMode();
+            if (dtdValidation == Validation.STRICT || dtdValidation == Validation.LAX) {
+                // the entry would not record the outcome of validation
+                parse(out, config, null, true);
+                return;
+            }
+            Path entry = getEntry(path, config);
+            SourceVersion version;
+            try {
+                version = new SourceVersion(path);
+            } catch (Throwable e) {
+                // for example System.IO.FileNotFoundException
+                throw DotNetEventSource.makeParserException(e, getSystemId());
+            }
+            byte[] data = null;
+            try {
+                data = Files.readAllBytes(entry);
+            } catch (NoSuchFileException e) {
+                // no entry yet
+            } catch (IOException e) {
+                config.getLogger().warning("Cannot read tree cache entry " + entry + ": " + e.getMessage());
+            }
+            if (data != null) {
+                Input in = new Input(data);
+                if (in.readHeader(version)) {
+                    hitCount.incrementAndGet();
+                    in.replay(out, getSystemId(), new DotNetNameCache(config, true));
+                    return;
+                }
+            }
+            missCount.incrementAndGet();
+            parse(out, config, new Writer(entry, version, config), false);
+        }
+
+        private void parse(Receiver out, Configuration config, Writer writer, boolean dtdValidation)
+                throws XPathException {
+            String uri = getSystemId();
+            DotNetParserProfile profile = DotNetParserProfile.getProfile(config);
+            XmlReader parser;
+            try {
+                Stream stream = DotNetMappedFile.openIfLarge(uri, profile.getMappingThreshold());
+                if (stream == null) {
+                    stream = File.OpenRead(path);
+                }
+                XmlReaderSettings settings = profile.makeSettings(resolver, dtdValidation, true);
+                parser = XmlReader.Create(profile.prepareStream(stream), settings, uri);
+            } catch (Throwable e) {
+                throw DotNetEventSource.makeParserException(e, uri);
+            }
+            DotNetEventSource source = new DotNetEventSource(parser);
+            source.setSystemId(uri);
+            source.send(writer == null ? out : new TeeOutputter(out, writer));
+        }
+    }
+
+    /**
+     * A Receiver that records the events of a document, and writes them as a cache entry when the document
+     * is complete
+     */
+
+    private static final class Writer implements Receiver {
+
+        private final Path entry;
+        private final SourceVersion version;
+        private final Configuration config;
+        private PipelineConfiguration pipe;
+        private String systemId;
+        private final Output events = new Output(4096);
+        private final IdentityHashMap<NodeName, Integer> nameIndex = new IdentityHashMap<>();
+        private final ArrayList<NodeName> names = new ArrayList<>();
+        private final IdentityHashMap<NamespaceMap, Integer> namespaceIndex = new IdentityHashMap<>();
+        private final ArrayList<NamespaceMap> namespaces = new ArrayList<>();
+        private int level = 0;
+        private boolean complete = false;
+
+        Writer(Path entry, SourceVersion version, Configuration config) {
+            this.entry = entry;
+            this.version = version;
+            this.config = config;
+        }
+
+        @Override
+        public void setPipelineConfiguration(PipelineConfiguration pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public PipelineConfiguration getPipelineConfiguration() {
+            return pipe;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void startDocument(int properties) {
+            level++;
+        }
+
+        @Override
+        public void endDocument() {
+            if (--level == 0) {
+                events.writeByte(END_DOCUMENT);
+                complete = true;
+            }
+        }
+
+        @Override
+        public void setUnparsedEntity(String name, String systemID, String publicID) {
+            // unparsed entities are not reported by the .NET parser
+        }
+
+        @Override
+        public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes,
+                                 NamespaceMap namespaces, Location location, int properties) {
+            events.writeByte(START_ELEMENT);
+            events.writeInt(indexOf(elemName));
+            Integer ns = namespaceIndex.get(namespaces);
+            if (ns == null) {
+                ns = this.namespaces.size();
+                this.namespaces.add(namespaces);
+                namespaceIndex.put(namespaces, ns);
+            }
+            events.writeInt(ns);
+            events.writeInt(attributes.size());
+            for (AttributeInfo att : attributes) {
+                events.writeInt(indexOf(att.getNodeName()));
+                events.writeString(att.getValue());
+            }
+        }
+
+        private int indexOf(NodeName name) {
+            // names from the parser are shared instances, so identity is enough to find nearly all repeats
+            Integer index = nameIndex.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndex.put(name, index);
+            }
+            return index;
+        }
+
+        @Override
+        public void endElement() {
+            events.writeByte(END_ELEMENT);
+        }
+
+        @Override
+        public void characters(CharSequence chars, Location locationId, int properties) {
+            events.writeByte(TEXT);
+            events.writeString(chars);
+        }
+
+        @Override
+        public void processingInstruction(String target, CharSequence data, Location locationId, int properties) {
+            events.writeByte(PROCESSING_INSTRUCTION);
+            events.writeString(target);
+            events.writeString(data);
+        }
+
+        @Override
+        public void comment(CharSequence chars, Location locationId, int properties) {
+            events.writeByte(COMMENT);
+            events.writeString(chars);
+        }
+
+        @Override
+        public void close() {
+            if (!complete || events.isAbandoned()) {
+                return;
+            }
+            Output out = new Output(1024);
+            out.writeFixedInt(MAGIC);
+            out.writeFixedInt(VERSION);
+            out.writeLong(version.length);
+            out.writeLong(version.ticks);
+            out.writeInt(version.hash.length);
+            out.write(version.hash, 0, version.hash.length);
+            out.writeInt(names.size());
+            for (NodeName name : names) {
+                out.writeString(name.getPrefix());
+                out.writeString(name.getURI());
+                out.writeString(name.getLocalPart());
+            }
+            out.writeInt(namespaces.size());
+            for (NamespaceMap map : namespaces) {
+                out.writeInt(map.size());
+                for (NamespaceBinding binding : map) {
+                    out.writeString(binding.getPrefix());
+                    out.writeString(binding.getURI());
+                }
+            }
+            out.writeInt(events.size);
+            if (out.isAbandoned() || (long) out.size + events.size > MAX_SIZE) {
+                // too large to be read back
+                return;
+            }
+            Path temp = null;
+            try {
+                temp = Files.createTempFile(entry.getParent(), "entry", ".tmp");
+                try (OutputStream stream = Files.newOutputStream(temp)) {
+                    stream.write(out.bytes, 0, out.size);
+                    stream.write(events.bytes, 0, events.size);
+                }
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                config.getLogger().warning("Cannot write tree cache entry " + entry + ": " + e.getMessage());
+                if (temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException e2) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable byte buffer with methods to write integers in a variable-length encoding, and strings in UTF-8.
+     * If the content outgrows the largest possible array, the buffer is abandoned: its content is discarded
+     * and further writes are ignored.
+     */
+
+    private static final class Output {
+        byte[] bytes;
+        int size = 0;
+
+        Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        boolean isAbandoned() {
+            return bytes == null;
+        }
+
+        private boolean ensure(int extra) {
+            if (bytes == null) {
+                return false;
+            }
+            if ((long) size + extra > MAX_SIZE) {
+                bytes = null;
+                size = 0;
+                return false;
+            }
+            if (size + extra > bytes.length) {
+                try {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_SIZE, Math.max(bytes.length * 2L, size + extra)));
+                } catch (OutOfMemoryError e) {
+                    bytes = null;
+                    size = 0;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void writeByte(byte b) {
+            if (ensure(1)) {
+                bytes[size++] = b;
+            }
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (ensure(len)) {
+                System.arraycopy(b, off, bytes, size, len);
+                size += len;
+            }
+        }
+
+        void writeInt(int value) {
+            if (!ensure(5)) {
+                return;
+            }
+            while ((value & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeFixedInt(int value) {
+            if (!ensure(4)) {
+                return;
+            }
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            writeFixedInt((int) (value >>> 32));
+            writeFixedInt((int) value);
+        }
+
+        void writeString(CharSequence value) {
+            if (bytes == null) {
+                return;
+            }
+            byte[] b = value.toString().getBytes(StandardCharsets.UTF_8);
+            writeInt(b.length);
+            write(b, 0, b.length);
+        }
+    }
+
+    /**
+     * Reads a cache entry held in a byte array
+     */
+
+    private static final class Input {
+        final byte[] bytes;
+        int pos = 0;
+        String[][] names;
+        NamespaceMap[] namespaces;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        int readFixedInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (bytes[pos++] & 0xff);
+            }
+            return value;
+        }
+
+        long readLong() {
+            long high = readFixedInt();
+            return (high << 32) | (readFixedInt() & 0xffffffffL);
+        }
+
+        String readString() {
+            int length = readInt();
+            String s = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        /**
+         * Read the header and the tables of names and namespaces, checking that the entry was made from
+         * the current version of the source file
+         *
+         * @return true if the entry is current and complete
+         */
+
+        boolean readHeader(SourceVersion version) {
+            try {
+                if (readFixedInt() != MAGIC || readFixedInt() != VERSION) {
+                    return false;
+                }
+                long length = readLong();
+                long ticks = readLong();
+                int hashLength = readInt();
+                byte[] hash = Arrays.copyOfRange(bytes, pos, pos + hashLength);
+                pos += hashLength;
+                if (!version.matches(length, ticks, hash)) {
+                    return false;
+                }
+                names = new String[readInt()][];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = new String[]{readString(), readString(), readString()};
+                }
+                namespaces = new NamespaceMap[readInt()];
+                for (int i = 0; i < namespaces.length; i++) {
+                    NamespaceMap map = NamespaceMap.emptyMap();
+                    for (int j = readInt(); j > 0; j--) {
+                        map = map.bind(readString(), readString());
+                    }
+                    namespaces[i] = map;
+                }
+                // the entry is only used if it was written in full
+                return readInt() == bytes.length - pos;
+            } catch (RuntimeException e) {
+                // a truncated or corrupt entry
+                return false;
+            }
+        }
+
+        /**
+         * Send the events of the document to a Receiver
+         */
+
+        void replay(Receiver out, String systemId, DotNetNameCache cache) throws XPathException {
+            NodeName[] nodeNames = new NodeName[names.length];
+            for (int i = 0; i < names.length; i++) {
+                nodeNames[i] = cache.getNodeName(names[i][0], names[i][1], names[i][2]);
+            }
+            out.setSystemId(systemId);
+            out.open();
+            out.startDocument(ReceiverOption.NONE);
+            ArrayList<AttributeInfo> attributes = new ArrayList<>();
+            while (true) {
+                switch (bytes[pos++]) {
+                    case START_ELEMENT: {
+                        NodeName name = nodeNames[readInt()];
+                        NamespaceMap inScope = namespaces[readInt()];
+                        int count = readInt();
+                        AttributeMap atts;
+                        if (count == 0) {
+                            atts = EmptyAttributeMap.getInstance();
+                        } else {
+                            attributes.clear();
+                            for (int i = 0; i < count; i++) {
+                                attributes.add(new AttributeInfo(nodeNames[readInt()], BuiltInAtomicType.UNTYPED_ATOMIC,
+                                                                 readString(), Loc.NONE, ReceiverOption.NONE));
+                            }
+                            atts = AttributeMap.fromList(new ArrayList<>(attributes));
+                        }
+                        out.startElement(name, Untyped.getInstance(), atts, inScope, Loc.NONE, ReceiverOption.NONE);
+                        break;
+                    }
+                    case END_ELEMENT:
+                        out.endElement();
+                        break;
+                    case TEXT:
+                        out.characters(readString(), Loc.NONE, ReceiverOption.NONE);
+                        break;
+                    case COMMENT:
+                        out.comment(readString(), Loc.NONE, ReceiverOption.NONE);
+                        break;
+                    case PROCESSING_INSTRUCTION:
+                        out.processingInstruction(readString(), readString(), Loc.NONE, ReceiverOption.NONE);
+                        break;
+                    case END_DOCUMENT:
+                        out.endDocument();
+                        out.close();
+                        return;
+                    default:
+                        throw new XPathException("Corrupt tree cache entry for " + systemId);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.*;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.*;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.Untyped;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * A read-only copy of a wrapped DOM document held as a TinyTree, together with the mapping from
+ * nodes in the TinyTree back to the DOM nodes they were copied from. A {@link DotNetDocumentWrapper}
+ * builds a snapshot once the document has been navigated sufficiently often, and thereafter
+ * evaluates the axes that visit many nodes against the snapshot, returning wrappers for the
+ * corresponding DOM nodes. The snapshot is discarded if the DOM is modified.
+ * <p>A TinyTree merges all adjacent text into one node, whereas a DOM wrapper only merges a run of
+ * adjacent Text and CDATA siblings. No snapshot is taken of a DOM in which the two differ, that is,
+ * where a whitespace node adjoins other text, or where text adjoins the boundary of an entity
+ * reference.</p>
+ */
+
+public class DotNetTreeSnapshot {
+
+    private final DotNetDocumentWrapper docWrapper;
+    private final TinyTree tree;
+    private final XmlNode[] domNodes;           // indexed by TinyTree node number
+    private final int[] spans;                  // number of adjacent DOM text nodes, indexed by node number
+    private final XmlNode[] domAttributes;      // indexed by TinyTree attribute number
+    private final HashMap<XmlNode, Integer> nodeNumbers = new HashMap<>();
+    private final HashMap<XmlNode, Integer> textualParents = new HashMap<>();
+    private final HashMap<XmlNode, Integer> attributeNumbers = new HashMap<>();
+
+    private DotNetTreeSnapshot(DotNetDocumentWrapper docWrapper, TinyTree tree) {
+        this.docWrapper = docWrapper;
+        this.tree = tree;
+        domNodes = new XmlNode[tree.getNumberOfNodes()];
+        spans = new int[tree.getNumberOfNodes()];
+        domAttributes = new XmlNode[tree.getNumberOfAttributes()];
+    }
+
+    /**
+     * Build a snapshot of a wrapped DOM document
+     *
+     * @param docWrapper the document wrapper. Its root node must wrap an <code>XmlDocument</code>
+     * @return the snapshot
+     * @throws XPathException if the TinyTree cannot be built, or if the DOM has adjacent text nodes
+     *                        that the TinyTree would merge although the DOM wrapper keeps them apart
+     */
+
+    public static DotNetTreeSnapshot build(DotNetDocumentWrapper docWrapper) throws XPathException {
+        XmlNode root = ((DotNetNodeWrapper) docWrapper.getRootNode()).node;
+        PipelineConfiguration pipe = docWrapper.getConfiguration().makePipelineConfiguration();
+        TinyBuilder builder = new TinyBuilder(pipe);
+        builder.setSystemId(docWrapper.getSystemId());
+        builder.open();
+        builder.startDocument(ReceiverOption.NONE);
+
+        ArrayList<NamespaceMap> namespaceStack = new ArrayList<>(50);
+        namespaceStack.add(NamespaceMap.emptyMap());
+
+        XmlNode lastText = null;        // the DOM node of the text most recently passed to the builder, if
+                                        // nothing else has been passed since
+        XmlNode node = root.get_FirstChild();
+        walk:
+        while (node != null) {
+            boolean descend = false;
+            switch (node.get_NodeType().Value) {
+                case XmlNodeType.Element: {
+                    NamespaceMap inScope = DotNetNodeWrapper.addLocalNamespaces(
+                            node, namespaceStack.get(namespaceStack.size() - 1));
+                    AttributeMap atts = EmptyAttributeMap.getInstance();
+                    XmlNamedNodeMap domAtts = node.get_Attributes();
+                    for (int i = 0; i < domAtts.get_Count(); i++) {
+                        XmlNode att = domAtts.Item(i);
+                        if (!DotNetDocumentWrapper.isNamespaceDeclaration(att)) {
+                            NodeName name = makeName(att, inScope, true);
+                            atts = atts.put(new AttributeInfo(name, BuiltInAtomicType.UNTYPED_ATOMIC,
+                                                              att.get_Value(), Loc.NONE, ReceiverOption.NONE));
+                        }
+                    }
+                    builder.startElement(makeName(node, inScope, false), Untyped.getInstance(), atts, inScope,
+                                         Loc.NONE, ReceiverOption.NONE);
+                    lastText = null;
+                    namespaceStack.add(inScope);
+                    descend = true;
+                    break;
+                }
+                case XmlNodeType.Text:
+                case XmlNodeType.CDATA:
+                case XmlNodeType.Whitespace:
+                case XmlNodeType.SignificantWhitespace:
+                    if (!node.get_Value().isEmpty()) {
+                        if (lastText != null && !inSameRun(lastText, node)) {
+                            throw new XPathException("Adjacent text nodes cannot be copied to a snapshot");
+                        }
+                        builder.characters(node.get_Value(), Loc.NONE, ReceiverOption.NONE);
+                        lastText = node;
+                    }
+                    break;
+                case XmlNodeType.Comment:
+                    builder.comment(node.get_Value(), Loc.NONE, ReceiverOption.NONE);
+                    lastText = null;
+                    break;
+                case XmlNodeType.ProcessingInstruction:
+                    builder.processingInstruction(node.get_Name(), node.get_Value(), Loc.NONE, ReceiverOption.NONE);
+                    lastText = null;
+                    break;
+                case XmlNodeType.EntityReference:
+                    descend = true;
+                    break;
+                default:
+                    // for example the document type declaration, which is not represented in the XDM tree
+                    break;
+            }
+
+            if (descend) {
+                XmlNode child = node.get_FirstChild();
+                if (child != null) {
+                    node = child;
+                    continue;
+                }
+                if (node.get_NodeType().Value == XmlNodeType.Element) {
+                    builder.endElement();
+                    namespaceStack.remove(namespaceStack.size() - 1);
+                    lastText = null;
+                }
+            }
+            while (true) {
+                XmlNode next = node.get_NextSibling();
+                if (next != null) {
+                    node = next;
+                    continue walk;
+                }
+                node = node.get_ParentNode();
+                if (node == null || node == root) {
+                    break walk;
+                }
+                if (node.get_NodeType().Value == XmlNodeType.Element) {
+                    builder.endElement();
+                    namespaceStack.remove(namespaceStack.size() - 1);
+                    lastText = null;
+                }
+            }
+        }
+        builder.endDocument();
+        builder.close();
+
+        DotNetTreeSnapshot snapshot = new DotNetTreeSnapshot(docWrapper, builder.getTree());
+        snapshot.mapNodes(builder.getCurrentRoot(), root);
+        return snapshot;
+    }
+
+    /**
+     * Ask whether two DOM text nodes, which would be merged by the TinyBuilder, are also presented as
+     * a single text node by the DOM wrapper: that is, whether they belong to the same run of adjacent
+     * Text and CDATA siblings
+     */
+
+    private static boolean inSameRun(XmlNode first, XmlNode second) {
+        if (!DotNetNodeWrapper.isTextNode(first) || !DotNetNodeWrapper.isTextNode(second)) {
+            return false;
+        }
+        for (XmlNode next = first.get_NextSibling(); next != null && DotNetNodeWrapper.isTextNode(next);
+             next = next.get_NextSibling()) {
+            if (next == second) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the DOM node corresponding to each node of the finished TinyTree. This is done by walking
+     * the two trees in parallel, rather than while the tree is built, because TinyBuilder does not
+     * allocate one node per event: adjacent text is merged into a single node, and an element whose
+     * only child is a text node becomes a single textual element node.
+     */
+
+    private void mapNodes(NodeInfo tinyRoot, XmlNode domRoot) {
+        domNodes[0] = domRoot;
+        spans[0] = 1;
+        nodeNumbers.put(domRoot, 0);
+        ArrayList<MapFrame> stack = new ArrayList<>(50);
+        stack.add(new MapFrame(tinyRoot, domRoot));
+        while (!stack.isEmpty()) {
+            MapFrame frame = stack.get(stack.size() - 1);
+            NodeInfo tinyNode = frame.children.next();
+            if (tinyNode == null) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            XmlNode domNode = frame.nextDom;
+            frame.nextDom = nextContentNode(following(domNode, frame.domParent), frame.domParent);
+            if (tinyNode.getNodeKind() == Type.TEXT) {
+                // skip the further DOM text nodes that were merged into this text node
+                while (frame.nextDom != null && DotNetNodeWrapper.isTextNode(frame.nextDom)) {
+                    frame.nextDom = nextContentNode(following(frame.nextDom, frame.domParent), frame.domParent);
+                }
+            }
+            if (tinyNode instanceof TinyNodeImpl) {
+                int nr = ((TinyNodeImpl) tinyNode).getNodeNumber();
+                domNodes[nr] = domNode;
+                spans[nr] = textSpan(domNode);
+                nodeNumbers.put(domNode, nr);
+            } else {
+                // the text child of a textual element, which has no node number of its own
+                textualParents.put(domNode, ((TinyNodeImpl) frame.tinyParent).getNodeNumber());
+            }
+            if (tinyNode.getNodeKind() == Type.ELEMENT) {
+                mapAttributes(tinyNode, domNode);
+                stack.add(new MapFrame(tinyNode, domNode));
+            }
+        }
+    }
+
+    private void mapAttributes(NodeInfo tinyElement, XmlNode domElement) {
+        XmlNamedNodeMap domAtts = domElement.get_Attributes();
+        if (domAtts.get_Count() == 0) {
+            return;
+        }
+        // attributes are matched by name, because an AttributeMap does not necessarily keep them in DOM order
+        NamespaceMap inScope = tinyElement.getAllNamespaces();
+        int parentNr = ((TinyNodeImpl) tinyElement).getNodeNumber();
+        AxisIterator atts = tinyElement.iterateAxis(AxisInfo.ATTRIBUTE);
+        NodeInfo att;
+        while ((att = atts.next()) != null) {
+            for (int i = 0; i < domAtts.get_Count(); i++) {
+                XmlNode domAtt = domAtts.Item(i);
+                if (!DotNetDocumentWrapper.isNamespaceDeclaration(domAtt)) {
+                    NodeName name = makeName(domAtt, inScope, true);
+                    if (name.getLocalPart().equals(att.getLocalPart()) && name.getURI().equals(att.getURI())) {
+                        int nr = ((TinyNodeImpl) att).getNodeNumber();
+                        domAttributes[nr] = domAtt;
+                        attributeNumbers.put(domAtt, parentNr);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class MapFrame {
+        final NodeInfo tinyParent;
+        final XmlNode domParent;
+        final AxisIterator children;
+        XmlNode nextDom;
+
+        MapFrame(NodeInfo tinyParent, XmlNode domParent) {
+            this.tinyParent = tinyParent;
+            this.domParent = domParent;
+            this.children = tinyParent.iterateAxis(AxisInfo.CHILD);
+            this.nextDom = nextContentNode(domParent.get_FirstChild(), domParent);
+        }
+    }
+
+    /**
+     * Get the next DOM node, starting at a given node, that was passed to the TinyBuilder as a child of
+     * the container, looking inside entity references and skipping nodes that have no XDM counterpart
+     */
+
+    private static XmlNode nextContentNode(XmlNode node, XmlNode container) {
+        while (node != null) {
+            switch (node.get_NodeType().Value) {
+                case XmlNodeType.Element:
+                case XmlNodeType.Comment:
+                case XmlNodeType.ProcessingInstruction:
+                    return node;
+                case XmlNodeType.Text:
+                case XmlNodeType.CDATA:
+                case XmlNodeType.Whitespace:
+                case XmlNodeType.SignificantWhitespace:
+                    if (!node.get_Value().isEmpty()) {
+                        return node;
+                    }
+                    break;
+                case XmlNodeType.EntityReference: {
+                    XmlNode child = node.get_FirstChild();
+                    if (child != null) {
+                        node = child;
+                        continue;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            node = following(node, container);
+        }
+        return null;
+    }
+
+    /**
+     * Get the node after a given node among the children of the container, leaving any entity
+     * reference that the node is the last child of
+     */
+
+    private static XmlNode following(XmlNode node, XmlNode container) {
+        while (true) {
+            XmlNode next = node.get_NextSibling();
+            if (next != null) {
+                return next;
+            }
+            node = node.get_ParentNode();
+            if (node == null || node == container) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the span of a wrapper for a DOM node, computed in the same way as by {@link DotNetNodeWrapper}
+     */
+
+    private static int textSpan(XmlNode node) {
+        int span = 1;
+        if (DotNetNodeWrapper.isTextNode(node)) {
+            for (XmlNode next = node.get_NextSibling(); next != null && DotNetNodeWrapper.isTextNode(next);
+                 next = next.get_NextSibling()) {
+                span++;
+            }
+        }
+        return span;
+    }
+
+    /**
+     * Make the name of an element or attribute, resolving its namespace in the same way as
+     * {@link DotNetNodeWrapper#getURI()}
+     */
+
+    private static NodeName makeName(XmlNode node, NamespaceMap inScope, boolean isAttribute) {
+        String prefix = node.get_Prefix();
+        String local = node.get_LocalName();
+        String uri = node.get_NamespaceURI();
+        if (uri.isEmpty()) {
+            if (node.get_Name().startsWith("xml:")) {
+                uri = NamespaceConstant.XML;
+            } else if (!(isAttribute && prefix.isEmpty())) {
+                uri = inScope.getURI(prefix);
+                if (uri == null) {
+                    if (!prefix.isEmpty()) {
+                        throw new IllegalStateException("Undeclared namespace prefix in DOM input: " + prefix);
+                    }
+                    uri = "";
+                }
+            }
+        }
+        if (uri.isEmpty()) {
+            prefix = "";
+        }
+        return new FingerprintedQName(prefix, uri, local);
+    }
+
+    /**
+     * Iterate over an axis of a wrapped node using the snapshot
+     *
+     * @param origin     the wrapped node at the start of the axis
+     * @param axisNumber the axis, for example {@link AxisInfo#DESCENDANT}
+     * @param nodeTest   the test that the returned nodes must satisfy
+     * @return an iterator over wrappers for the selected DOM nodes, or null if the request cannot be
+     * handled using the snapshot, in which case the caller must navigate the DOM instead
+     */
+
+    public AxisIterator iterateAxis(DotNetNodeWrapper origin, int axisNumber, Predicate<? super NodeInfo> nodeTest) {
+        if (!(nodeTest instanceof NodeTest)) {
+            // an arbitrary predicate might depend on the nodes being wrappers
+            return null;
+        }
+        NodeInfo start;
+        Integer nr;
+        if (origin.getNodeKind() == Type.ATTRIBUTE) {
+            nr = attributeNumbers.get(origin.node);
+            if (nr == null) {
+                return null;
+            }
+            start = findAttribute(tree.getNode(nr), origin.node);
+        } else if ((nr = nodeNumbers.get(origin.node)) != null) {
+            start = tree.getNode(nr);
+        } else if ((nr = textualParents.get(origin.node)) != null) {
+            start = tree.getNode(nr).iterateAxis(AxisInfo.CHILD).next();
+        } else {
+            return null;
+        }
+        final AxisIterator base = start.iterateAxis(axisNumber, nodeTest);
+        return new AxisIterator() {
+            @Override
+            public NodeInfo next() {
+                NodeInfo n = base.next();
+                return n == null ? null : wrap(n);
+            }
+
+            @Override
+            public void close() {
+                base.close();
+            }
+        };
+    }
+
+    private NodeInfo findAttribute(NodeInfo element, XmlNode domAtt) {
+        AxisIterator atts = element.iterateAxis(AxisInfo.ATTRIBUTE);
+        NodeInfo att;
+        while ((att = atts.next()) != null) {
+            if (domAttributes[((TinyNodeImpl) att).getNodeNumber()] == domAtt) {
+                return att;
+            }
+        }
+        throw new IllegalStateException("Attribute missing from snapshot");
+    }
+
+    /**
+     * Get the wrapper for the DOM node corresponding to a node in the snapshot
+     */
+
+    private NodeInfo wrap(NodeInfo node) {
+        XmlNode domNode;
+        int span;
+        if (node instanceof TinyNodeImpl) {
+            int nr = ((TinyNodeImpl) node).getNodeNumber();
+            if (node.getNodeKind() == Type.ATTRIBUTE) {
+                domNode = domAttributes[nr];
+                span = 1;
+            } else if (nr == 0) {
+                return docWrapper.getRootNode();
+            } else {
+                domNode = domNodes[nr];
+                span = spans[nr];
+            }
+        } else {
+            // the text child of a textual element: its DOM node is the first content child of the element
+            XmlNode parent = domNodes[((TinyNodeImpl) node.getParent()).getNodeNumber()];
+            domNode = nextContentNode(parent.get_FirstChild(), parent);
+            span = textSpan(domNode);
+        }
+        DotNetNodeWrapper wrapper = DotNetNodeWrapper.makeWrapper(domNode, docWrapper);
+        wrapper.span = span;
+        return wrapper;
+    }
+}
@@ -34,6 +34,8 @@ import java.io.IOException;
 public class DotNetURIResolver implements RelativeURIResolver, EntityResolver {
 
     private final XmlResolver resolver;
+    private long mappingThreshold = -1;
+    private DotNetTreeCache treeCache;
 
     /**
      * Create a URIResolver that wraps a .NET XmlResolver
@@ -55,6 +57,52 @@ public class DotNetURIResolver implements RelativeURIResolver, EntityResolver {
         return resolver;
     }
 
+    /**
+     * Set the size from which files identified by <code>file:</code> URIs are mapped into memory when they
+     * are dereferenced, instead of being obtained from the XmlResolver. See {@link DotNetMappedFile}.
+     *
+     * @param threshold the file size in bytes from which files are mapped; a negative value (the default)
+     *                  means that all URIs are passed to the XmlResolver
+     */
+
+    public void setMappingThreshold(long threshold) {
+        mappingThreshold = threshold;
+    }
+
+    /**
+     * Get the size from which files identified by <code>file:</code> URIs are mapped into memory
+     *
+     * @return the file size in bytes from which files are mapped, or a negative value if files are never mapped
+     */
+
+    public long getMappingThreshold() {
+        return mappingThreshold;
+    }
+
+    /**
+     * Set a cache of parsed documents to be used when files identified by <code>file:</code> URIs are
+     * dereferenced. A document with a current entry in the cache is built from the entry without parsing;
+     * the entry for any other local file is written when the file is parsed. See {@link DotNetTreeCache}.
+     * <p>Documents built from the cache carry no line numbers, which matters mainly if the cache is used
+     * for stylesheet modules.</p>
+     *
+     * @param cache the tree cache, or null (the default) if no cache is to be used
+     */
+
+    public void setTreeCache(DotNetTreeCache cache) {
+        treeCache = cache;
+    }
+
+    /**
+     * Get the cache of parsed documents used when files are dereferenced
+     *
+     * @return the tree cache, or null if there is none
+     */
+
+    public DotNetTreeCache getTreeCache() {
+        return treeCache;
+    }
+
     /**
      * Create an absolute URI from a relative URI and a base URI. This method performs the
      * process which is correctly called "URI resolution": this is purely a syntactic operation
@@ -142,8 +190,17 @@ public class DotNetURIResolver implements RelativeURIResolver, EntityResolver {
     public Source dereference(String uri) throws XPathException {
         //System.err.println("Resolving " + href + " against " + base);
         try {
+            if (treeCache != null) {
+                Source cached = treeCache.makeSource(uri, resolver);
+                if (cached != null) {
+                    return cached;
+                }
+            }
             Uri abs = new Uri(uri);
-            Object obj = resolver.GetEntity(abs, null, Type.GetType("System.IO.Stream"));
+            Object obj = DotNetMappedFile.openIfLarge(uri, mappingThreshold);
+            if (obj == null) {
+                obj = resolver.GetEntity(abs, null, Type.GetType("System.IO.Stream"));
+            }
             // expect cli.System.IO.FileNotFoundException if this fails
             if (obj instanceof Stream) {
                 StreamSource source = new StreamSource(new DotNetInputStream((Stream) obj));
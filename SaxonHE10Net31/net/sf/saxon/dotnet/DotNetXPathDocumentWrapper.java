@@ -0,0 +1,93 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.XPath.XPathDocument;
+import cli.System.Xml.XPath.XPathNavigator;
+import cli.System.Xml.XPath.XPathNodeType;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.GenericTreeInfo;
+import net.sf.saxon.om.NodeInfo;
+
+/**
+ * The document node of a tree implemented as a wrapper around a .NET XPathDocument. The
+ * XPathDocument is a read-only tree, optimized for query, which is accessed only through
+ * XPathNavigator objects. Because it cannot be modified, no precautions against
+ * modification are needed.
+ */
+
+public class DotNetXPathDocumentWrapper extends GenericTreeInfo {
+
+    /**
+     * Wrap an XPathDocument
+     *
+     * @param doc     the XPathDocument
+     * @param baseURI the base URI of the document. If null, the base URI known to the XPathDocument is used
+     * @param config  the Saxon configuration
+     */
+
+    public DotNetXPathDocumentWrapper(XPathDocument doc, String baseURI, Configuration config) {
+        this(doc.CreateNavigator(), baseURI, config);
+    }
+
+    /**
+     * Wrap the document containing the node at which an XPathNavigator is positioned
+     *
+     * @param navigator an XPathNavigator positioned anywhere in the document. The navigator is not moved.
+     * @param baseURI   the base URI of the document. If null, the base URI known to the navigator is used
+     * @param config    the Saxon configuration
+     */
+
+    public DotNetXPathDocumentWrapper(XPathNavigator navigator, String baseURI, Configuration config) {
+        super(config);
+        XPathNavigator root = navigator.Clone();
+        root.MoveToRoot();
+        if (root.get_NodeType().Value != XPathNodeType.Root) {
+            throw new IllegalArgumentException("XPathNavigator must belong to a document");
+        }
+        setRootNode(wrap(root));
+        String base = baseURI;
+        if (base == null) {
+            base = root.get_BaseURI();
+        }
+        setSystemId(base == null || base.isEmpty() ? null : base);
+    }
+
+    /**
+     * Create a wrapper for a node in this document
+     *
+     * @param navigator an XPathNavigator positioned at the node to be wrapped, which must be a node within
+     *                  the document wrapped by this DocumentWrapper. The navigator is not moved.
+     * @return a NodeInfo that wraps the supplied node
+     */
+
+    public DotNetXPathNodeWrapper wrap(XPathNavigator navigator) {
+        return DotNetXPathNodeWrapper.makeWrapper(navigator, this, null, -1);
+    }
+
+    /**
+     * Get the element with a given ID, if any
+     *
+     * @param id        the required ID value
+     * @param getParent true if running the element-with-id() function rather than the id()
+     *                  function; the difference is that in the case of an element of type xs:ID, the parent of
+     *                  the element should be returned, not the element itself.
+     * @return a NodeInfo representing the element with the given ID, or null if there
+     *         is no such element. IDs are recognized only if they are declared in a DTD.
+     */
+
+    @Override
+    public NodeInfo selectID(String id, boolean getParent) {
+        XPathNavigator nav = ((DotNetXPathNodeWrapper) getRootNode()).navigator.Clone();
+        if (nav.MoveToId(id)) {
+            return wrap(nav);
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,651 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.dotnet;
+
+import cli.System.Xml.XPath.XPathNamespaceScope;
+import cli.System.Xml.XPath.XPathNavigator;
+import cli.System.Xml.XPath.XPathNodeType;
+import cli.System.Xml.XmlNodeOrder;
+import net.sf.saxon.event.NamespaceReducer;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.om.*;
+import net.sf.saxon.pattern.AnyNodeTest;
+import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.tree.iter.EmptyIterator;
+import net.sf.saxon.tree.iter.SingleNodeIterator;
+import net.sf.saxon.tree.util.FastStringBuffer;
+import net.sf.saxon.tree.util.Navigator;
+import net.sf.saxon.tree.wrapper.AbstractNodeWrapper;
+import net.sf.saxon.tree.wrapper.SiblingCountingNode;
+import net.sf.saxon.type.Type;
+
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/**
+ * A node in the XML parse tree representing an XML element, character content, or attribute.
+ * <p>This is the implementation of the NodeInfo interface used as a wrapper for nodes of a .NET
+ * XPathDocument, accessed through an XPathNavigator. Each wrapper holds its own navigator,
+ * positioned at the wrapped node, which is never moved.</p>
+ */
+
+public class DotNetXPathNodeWrapper extends AbstractNodeWrapper implements SiblingCountingNode {
+
+    protected final XPathNavigator navigator;
+    protected short nodeKind;
+    protected DotNetXPathNodeWrapper parent;     // null means unknown
+    protected DotNetXPathDocumentWrapper docWrapper;
+    protected int index;                         // -1 means unknown
+    private int hash = 0;                        // 0 means not yet computed
+
+    /**
+     * This constructor is protected: nodes should be created using the makeWrapper
+     * factory method
+     *
+     * @param navigator an XPathNavigator positioned at the node to be wrapped, owned by this wrapper
+     * @param parent    The NodeWrapper that wraps the parent of this node
+     * @param index     Position of this node among its siblings
+     */
+
+    protected DotNetXPathNodeWrapper(XPathNavigator navigator, DotNetXPathNodeWrapper parent, int index) {
+        this.navigator = navigator;
+        this.parent = parent;
+        this.index = index;
+    }
+
+    /**
+     * Factory method to wrap a node with a wrapper that implements the Saxon NodeInfo interface.
+     *
+     * @param navigator  an XPathNavigator positioned at the node. The navigator is not moved, and
+     *                   is not retained by the wrapper
+     * @param docWrapper The wrapper for the containing Document node
+     * @param parent     The wrapper for the parent of the node, if known, or null
+     * @param index      The position of this node relative to its siblings, or -1 if not known
+     * @return The new wrapper for the supplied node
+     */
+
+    protected static DotNetXPathNodeWrapper makeWrapper(XPathNavigator navigator, DotNetXPathDocumentWrapper docWrapper,
+                                                        DotNetXPathNodeWrapper parent, int index) {
+        DotNetXPathNodeWrapper wrapper;
+        int kind = getNodeKind(navigator);
+        if (kind == Type.DOCUMENT) {
+            wrapper = (DotNetXPathNodeWrapper) docWrapper.getRootNode();
+            if (wrapper != null) {
+                return wrapper;
+            }
+        } else if (kind == -1) {
+            throw new IllegalArgumentException("Unsupported node type in XPathDocument: " + navigator.get_NodeType());
+        }
+        wrapper = new DotNetXPathNodeWrapper(navigator.Clone(), parent, index);
+        wrapper.nodeKind = (short) kind;
+        wrapper.docWrapper = docWrapper;
+        wrapper.treeInfo = docWrapper;
+        return wrapper;
+    }
+
+    /**
+     * Get the kind of XPath node at which a navigator is positioned
+     *
+     * @param navigator the navigator
+     * @return the node kind, for example {@link Type#ELEMENT}, or -1 for a namespace node
+     */
+
+    private static int getNodeKind(XPathNavigator navigator) {
+        switch (navigator.get_NodeType().Value) {
+            case XPathNodeType.Root:
+                return Type.DOCUMENT;
+            case XPathNodeType.Element:
+                return Type.ELEMENT;
+            case XPathNodeType.Attribute:
+                return Type.ATTRIBUTE;
+            case XPathNodeType.Text:
+            case XPathNodeType.Whitespace:
+            case XPathNodeType.SignificantWhitespace:
+                return Type.TEXT;
+            case XPathNodeType.Comment:
+                return Type.COMMENT;
+            case XPathNodeType.ProcessingInstruction:
+                return Type.PROCESSING_INSTRUCTION;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Get the underlying XPathNavigator, to implement the VirtualNode interface
+     *
+     * @return a new XPathNavigator positioned at this node
+     */
+
+    @Override
+    public XPathNavigator getUnderlyingNode() {
+        return navigator.Clone();
+    }
+
+    /**
+     * Return the type of node.
+     *
+     * @return one of the values Type.ELEMENT, Type.TEXT, Type.ATTRIBUTE, etc.
+     */
+
+    @Override
+    public int getNodeKind() {
+        return nodeKind;
+    }
+
+    /**
+     * Determine whether this is the same node as another node.
+     *
+     * @return true if this Node object and the supplied Node object represent the
+     *         same node in the tree.
+     */
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DotNetXPathNodeWrapper &&
+                ((DotNetXPathNodeWrapper) other).docWrapper == docWrapper &&
+                navigator.IsSamePosition(((DotNetXPathNodeWrapper) other).navigator);
+    }
+
+    /**
+     * The hashCode() method obeys the contract for hashCode(): that is, if two objects are equal
+     * (represent the same node) then they must have the same hashCode(). An XPathNavigator offers
+     * no identity for the node it is positioned at, so the hash code is derived from the kind and
+     * name of the node and its position among its siblings, and is retained once computed. The
+     * ancestors are not visited.
+     */
+
+    @Override
+    public int hashCode() {
+        if (hash == 0) {
+            int h = nodeKind;
+            h = h * 31 + getLocalPart().hashCode();
+            h = h * 31 + getSiblingPosition();
+            hash = h == 0 ? 1 : h;
+        }
+        return hash;
+    }
+
+    /**
+     * Determine the relative position of this node and another node, in document order.
+     * The other node will always be in the same document.
+     *
+     * @param other The other node, whose position is to be compared with this node
+     * @return -1 if this node precedes the other node, +1 if it follows the other
+     *         node, or 0 if they are the same node.
+     */
+
+    @Override
+    public int compareOrder(NodeInfo other) {
+        if (other instanceof DotNetXPathNodeWrapper && ((DotNetXPathNodeWrapper) other).docWrapper == docWrapper) {
+            switch (navigator.ComparePosition(((DotNetXPathNodeWrapper) other).navigator).Value) {
+                case XmlNodeOrder.Before:
+                    return -1;
+                case XmlNodeOrder.After:
+                    return +1;
+                case XmlNodeOrder.Same:
+                    return 0;
+                default:
+                    break;
+            }
+        }
+        if (other instanceof SiblingCountingNode) {
+            return Navigator.compareOrder(this, (SiblingCountingNode) other);
+        } else {
+            // it's presumably a Namespace Node
+            return -other.compareOrder(this);
+        }
+    }
+
+    /**
+     * Get the value of the item as a CharSequence. This is in some cases more efficient than
+     * the version of the method that returns a String.
+     */
+
+    @Override
+    public CharSequence getStringValueCS() {
+        return navigator.get_Value();
+    }
+
+    /**
+     * Get the local part of the name of this node. This is the name after the ":" if any.
+     *
+     * @return the local part of the name. For an unnamed node, returns "".
+     */
+
+    @Override
+    public String getLocalPart() {
+        switch (nodeKind) {
+            case Type.ELEMENT:
+            case Type.ATTRIBUTE:
+            case Type.PROCESSING_INSTRUCTION:
+                return navigator.get_LocalName();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the URI part of the name of this node. This is the URI corresponding to the
+     * prefix, or the URI of the default namespace if appropriate.
+     *
+     * @return The URI of the namespace of this node. For an unnamed node,
+     *         or for a node with an empty prefix, return an empty
+     *         string.
+     */
+
+    @Override
+    public String getURI() {
+        switch (nodeKind) {
+            case Type.ELEMENT:
+            case Type.ATTRIBUTE:
+                return navigator.get_NamespaceURI();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the prefix of the name of the node. This is defined only for elements and attributes.
+     * If the node has no prefix, or for other kinds of node, return a zero-length string.
+     *
+     * @return The prefix of the name of the node.
+     */
+
+    @Override
+    public String getPrefix() {
+        switch (nodeKind) {
+            case Type.ELEMENT:
+            case Type.ATTRIBUTE:
+                return navigator.get_Prefix();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the NodeInfo object representing the parent of this node
+     */
+
+    @Override
+    public DotNetXPathNodeWrapper getParent() {
+        if (parent == null && nodeKind != Type.DOCUMENT) {
+            XPathNavigator nav = navigator.Clone();
+            if (nav.MoveToParent()) {
+                parent = makeWrapper(nav, docWrapper, null, -1);
+            }
+        }
+        return parent;
+    }
+
+    /**
+     * Get the index position of this node among its siblings (starting from 0), or in the
+     * case of an attribute, among the attributes of its parent element
+     */
+
+    @Override
+    public int getSiblingPosition() {
+        if (index == -1) {
+            int ix = 0;
+            switch (nodeKind) {
+                case Type.DOCUMENT:
+                    break;
+                case Type.ATTRIBUTE: {
+                    XPathNavigator nav = navigator.Clone();
+                    if (nav.MoveToParent() && nav.MoveToFirstAttribute()) {
+                        while (!nav.IsSamePosition(navigator) && nav.MoveToNextAttribute()) {
+                            ix++;
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    XPathNavigator nav = navigator.Clone();
+                    while (nav.MoveToPrevious()) {
+                        ix++;
+                    }
+                    break;
+                }
+            }
+            index = ix;
+        }
+        return index;
+    }
+
+    @Override
+    protected AxisIterator iterateAttributes(Predicate<? super NodeInfo> nodeTest) {
+        if (nodeKind != Type.ELEMENT) {
+            return EmptyIterator.ofNodes();
+        }
+        AxisIterator iter = new AttributeEnumeration(this);
+        if (nodeTest != AnyNodeTest.getInstance()) {
+            iter = new Navigator.AxisFilter(iter, nodeTest);
+        }
+        return iter;
+    }
+
+    @Override
+    protected AxisIterator iterateChildren(Predicate<? super NodeInfo> nodeTest) {
+        AxisIterator iter = new ChildEnumeration(this, true, true);
+        if (nodeTest != AnyNodeTest.getInstance()) {
+            iter = new Navigator.AxisFilter(iter, nodeTest);
+        }
+        return iter;
+    }
+
+    @Override
+    protected AxisIterator iterateSiblings(Predicate<? super NodeInfo> nodeTest, boolean forwards) {
+        AxisIterator iter = new ChildEnumeration(this, false, forwards);
+        if (nodeTest != AnyNodeTest.getInstance()) {
+            iter = new Navigator.AxisFilter(iter, nodeTest);
+        }
+        return iter;
+    }
+
+    @Override
+    protected AxisIterator iterateDescendants(Predicate<? super NodeInfo> nodeTest, boolean includeSelf) {
+        if (nodeKind != Type.DOCUMENT && nodeKind != Type.ELEMENT) {
+            return includeSelf && nodeTest.test(this) ? SingleNodeIterator.makeIterator(this) : EmptyIterator.ofNodes();
+        }
+        AxisIterator iter;
+        if (nodeTest instanceof NameTest && ((NameTest) nodeTest).getNodeKind() == Type.ELEMENT) {
+            NameTest test = (NameTest) nodeTest;
+            iter = new FollowingElementEnumeration(this, test.getLocalPart(), test.getNamespaceURI());
+        } else if (nodeTest instanceof NodeKindTest && ((NodeKindTest) nodeTest).getNodeKind() == Type.ELEMENT) {
+            iter = new FollowingElementEnumeration(this, null, null);
+        } else {
+            iter = new DescendantEnumeration(this);
+            if (nodeTest != AnyNodeTest.getInstance()) {
+                iter = new Navigator.AxisFilter(iter, nodeTest);
+            }
+        }
+        if (includeSelf && nodeTest.test(this)) {
+            return new PrependedIterator(this, iter);
+        }
+        return iter;
+    }
+
+    /**
+     * Get all the namespace bindings that are in-scope for this element.
+     *
+     * @return the in-scope namespaces for an element, or null for any other kind of node.
+     */
+
+    @Override
+    public NamespaceMap getAllNamespaces() {
+        if (nodeKind != Type.ELEMENT) {
+            return null;
+        }
+        NamespaceMap codes = NamespaceMap.emptyMap();
+        XPathNavigator nav = navigator.Clone();
+        XPathNamespaceScope scope = XPathNamespaceScope.wrap(XPathNamespaceScope.ExcludeXml);
+        if (nav.MoveToFirstNamespace(scope)) {
+            do {
+                codes = codes.put(nav.get_LocalName(), nav.get_Value());
+            } while (nav.MoveToNextNamespace(scope));
+        }
+        return codes;
+    }
+
+    /**
+     * Get all namespace declarations defined on this element.
+     *
+     * @param buffer If this is non-null, and the result array fits in this buffer, then the result
+     *               may overwrite the contents of this array, to avoid the cost of allocating a new array on the heap.
+     * @return An array of namespace bindings declared on this element. For a node other than an
+     *         element, return null.
+     */
+
+    @Override
+    public NamespaceBinding[] getDeclaredNamespaces(NamespaceBinding[] buffer) {
+        if (nodeKind != Type.ELEMENT) {
+            return null;
+        }
+        ArrayList<NamespaceBinding> codes = new ArrayList<>();
+        XPathNavigator nav = navigator.Clone();
+        XPathNamespaceScope scope = XPathNamespaceScope.wrap(XPathNamespaceScope.Local);
+        if (nav.MoveToFirstNamespace(scope)) {
+            do {
+                codes.add(new NamespaceBinding(nav.get_LocalName(), nav.get_Value()));
+            } while (nav.MoveToNextNamespace(scope));
+        }
+        return codes.toArray(new NamespaceBinding[0]);
+    }
+
+    /**
+     * Get the string value of a given attribute of this node
+     *
+     * @param uri   the namespace URI of the attribute name. Supply the empty string for an attribute
+     *              that is in no namespace
+     * @param local the local part of the attribute name.
+     * @return the attribute value if it exists, or null if it does not exist. Always returns null
+     *         if this node is not an element.
+     */
+
+    @Override
+    public String getAttributeValue(String uri, String local) {
+        if (nodeKind != Type.ELEMENT) {
+            return null;
+        }
+        XPathNavigator nav = navigator.Clone();
+        return nav.MoveToAttribute(local, uri) ? nav.get_Value() : null;
+    }
+
+    /**
+     * Determine whether the node has any children.
+     */
+
+    @Override
+    public boolean hasChildNodes() {
+        return navigator.get_HasChildren();
+    }
+
+    /**
+     * Get a character string that uniquely identifies this node.
+     *
+     * @param buffer a buffer to contain a string that uniquely identifies this node, across all
+     *               documents
+     */
+
+    @Override
+    public void generateId(FastStringBuffer buffer) {
+        Navigator.appendSequentialKey(this, buffer, true);
+    }
+
+    /**
+     * Copy this node to a given outputter (deep copy)
+     */
+
+    @Override
+    public void copy(Receiver out, int copyOptions, Location locationId) throws XPathException {
+        Receiver r = new NamespaceReducer(out);
+        Navigator.copy(this, r, copyOptions, locationId);
+    }
+
+    /**
+     * Iterator over the attributes of an element
+     */
+
+    private static final class AttributeEnumeration implements AxisIterator {
+
+        private final DotNetXPathNodeWrapper start;
+        private final XPathNavigator nav;
+        private boolean more;
+        private int ix = 0;
+
+        AttributeEnumeration(DotNetXPathNodeWrapper start) {
+            this.start = start;
+            nav = start.navigator.Clone();
+            more = nav.MoveToFirstAttribute();
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (!more) {
+                return null;
+            }
+            DotNetXPathNodeWrapper wrapper = makeWrapper(nav, start.docWrapper, start, ix++);
+            more = nav.MoveToNextAttribute();
+            return wrapper;
+        }
+    }
+
+    /**
+     * Iterator over the children of a node, or over its following or preceding siblings
+     */
+
+    private static final class ChildEnumeration implements AxisIterator {
+
+        private final DotNetXPathDocumentWrapper docWrapper;
+        private final DotNetXPathNodeWrapper commonParent;
+        private final XPathNavigator nav;
+        private final boolean forwards;
+        private boolean more;
+
+        ChildEnumeration(DotNetXPathNodeWrapper start, boolean downwards, boolean forwards) {
+            docWrapper = start.docWrapper;
+            this.forwards = forwards;
+            nav = start.navigator.Clone();
+            if (downwards) {
+                commonParent = start;
+                more = nav.MoveToFirstChild();
+            } else if (start.nodeKind == Type.ATTRIBUTE || start.nodeKind == Type.DOCUMENT) {
+                commonParent = null;
+                more = false;
+            } else {
+                commonParent = start.getParent();
+                more = forwards ? nav.MoveToNext() : nav.MoveToPrevious();
+            }
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (!more) {
+                return null;
+            }
+            DotNetXPathNodeWrapper wrapper = makeWrapper(nav, docWrapper, commonParent, -1);
+            more = forwards ? nav.MoveToNext() : nav.MoveToPrevious();
+            return wrapper;
+        }
+    }
+
+    /**
+     * Iterator over the descendants of a node, in document order
+     */
+
+    private static final class DescendantEnumeration implements AxisIterator {
+
+        private final DotNetXPathDocumentWrapper docWrapper;
+        private final XPathNavigator nav;
+        private int depth = 0;
+
+        DescendantEnumeration(DotNetXPathNodeWrapper start) {
+            docWrapper = start.docWrapper;
+            nav = start.navigator.Clone();
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (depth < 0) {
+                return null;
+            }
+            if (nav.MoveToFirstChild()) {
+                depth++;
+            } else {
+                while (depth > 0 && !nav.MoveToNext()) {
+                    nav.MoveToParent();
+                    depth--;
+                }
+                if (depth == 0) {
+                    depth = -1;
+                    return null;
+                }
+            }
+            return makeWrapper(nav, docWrapper, null, -1);
+        }
+    }
+
+    /**
+     * Iterator over the descendant elements of a node, optionally with a given name, using the
+     * native search of the XPathNavigator
+     */
+
+    private static final class FollowingElementEnumeration implements AxisIterator {
+
+        private final DotNetXPathDocumentWrapper docWrapper;
+        private final XPathNavigator nav;
+        private final XPathNavigator end;   // the first node after the subtree, or null
+        private final String local;         // null to select all elements
+        private final String uri;
+        private boolean finished = false;
+
+        FollowingElementEnumeration(DotNetXPathNodeWrapper start, String local, String uri) {
+            docWrapper = start.docWrapper;
+            nav = start.navigator.Clone();
+            this.local = local;
+            this.uri = uri;
+            XPathNavigator e = start.navigator.Clone();
+            while (!e.MoveToNext()) {
+                if (!e.MoveToParent()) {
+                    e = null;
+                    break;
+                }
+            }
+            end = e;
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (finished) {
+                return null;
+            }
+            boolean found = local == null
+                    ? nav.MoveToFollowing(XPathNodeType.wrap(XPathNodeType.Element), end)
+                    : nav.MoveToFollowing(local, uri, end);
+            if (!found) {
+                finished = true;
+                return null;
+            }
+            return makeWrapper(nav, docWrapper, null, -1);
+        }
+    }
+
+    /**
+     * Iterator that delivers a given node followed by the nodes delivered by another iterator
+     */
+
+    private static final class PrependedIterator implements AxisIterator {
+
+        private NodeInfo first;
+        private final AxisIterator rest;
+
+        PrependedIterator(NodeInfo first, AxisIterator rest) {
+            this.first = first;
+            this.rest = rest;
+        }
+
+        @Override
+        public NodeInfo next() {
+            if (first != null) {
+                NodeInfo n = first;
+                first = null;
+                return n;
+            }
+            return rest.next();
+        }
+
+        @Override
+        public void close() {
+            rest.close();
+        }
+    }
+}
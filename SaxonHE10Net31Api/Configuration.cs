@@ -8,6 +8,8 @@ using JConfiguration = net.sf.saxon.Configuration;
 using JVersion = net.sf.saxon.Version;
 using JLogger = net.sf.saxon.lib.Logger;
 using JDotNetDocumentWrapper = net.sf.saxon.dotnet.DotNetDocumentWrapper;
+using JDotNetXPathDocumentWrapper = net.sf.saxon.dotnet.DotNetXPathDocumentWrapper;
+using JDotNetLinqDocumentWrapper = net.sf.saxon.dotnet.DotNetLinqDocumentWrapper;
 using JDotNetObjectModel = net.sf.saxon.dotnet.DotNetObjectModel;
 using JNodeInfo = net.sf.saxon.om.NodeInfo;
 using JSequence = net.sf.saxon.om.Sequence;
@@ -28,6 +30,11 @@ using JDotNetInputStream = net.sf.saxon.dotnet.DotNetInputStream;
 using JDotNetURIResolver = net.sf.saxon.dotnet.DotNetURIResolver;
 using JDotNetEnumerableCollection = net.sf.saxon.dotnet.DotNetEnumerableCollection;
 using JDotNetPullProvider = net.sf.saxon.dotnet.DotNetPullProvider;
+using JDotNetEventSource = net.sf.saxon.dotnet.DotNetEventSource;
+using JDotNetParserProfile = net.sf.saxon.dotnet.DotNetParserProfile;
+using JDotNetMappedFile = net.sf.saxon.dotnet.DotNetMappedFile;
+using JDotNetTreeCache = net.sf.saxon.dotnet.DotNetTreeCache;
+using JDotNetProjection = net.sf.saxon.dotnet.DotNetProjection;
 using JDotNetReader = net.sf.saxon.dotnet.DotNetReader;
 using JDotNetComparator = net.sf.saxon.dotnet.DotNetComparator;
 using JDocumentBuilder = net.sf.saxon.s9api.DocumentBuilder;
@@ -69,6 +76,7 @@ namespace Saxon.Api
         private IQueryResolver moduleResolver;
         private ICollectionFinder collectionFinder = null;
         private StandardCollectionFinder standardCollectionFinder;
+        private bool treeCacheVerifyHash;
 
         internal Processor(JProcessor p) {
             processor = p;
@@ -305,10 +313,119 @@ namespace Saxon.Api
             }
             set
             {
-                processor.getUnderlyingConfiguration().setURIResolver(new JDotNetURIResolver(value));
+                long threshold = MemoryMappingThreshold;
+                JDotNetTreeCache cache = GetTreeCache();
+                JDotNetURIResolver resolver = new JDotNetURIResolver(value);
+                resolver.setMappingThreshold(threshold);
+                resolver.setTreeCache(cache);
+                processor.getUnderlyingConfiguration().setURIResolver(resolver);
             }
         }
 
+        /// <summary>
+        /// The file size, in bytes, from which documents identified by <c>file:</c> URIs are mapped into memory
+        /// when they are read by the processor-level <c>XmlResolver</c> (for example by the <c>doc()</c> function),
+        /// instead of being obtained from the <c>XmlResolver</c>
+        /// </summary>
+        /// <remarks>
+        /// <para>The default is -1, which means that files are never mapped, and every URI is passed to the
+        /// <c>XmlResolver</c>. Mapping a large file lets the <c>System.Xml</c> parser read it directly from the
+        /// operating system's page cache, so repeated reads of the same file avoid disk I/O and a second
+        /// copy of the data in a <c>FileStream</c> buffer.</para>
+        /// <para>A file that is mapped is not seen by the <c>XmlResolver</c>, so this option should not be used
+        /// with an <c>XmlResolver</c> that redirects or restricts access to local files.</para>
+        /// </remarks>
+
+        public long MemoryMappingThreshold
+        {
+            get
+            {
+                javax.xml.transform.URIResolver resolver = processor.getUnderlyingConfiguration().getURIResolver();
+                return resolver is JDotNetURIResolver ? ((JDotNetURIResolver)resolver).getMappingThreshold() : -1;
+            }
+            set
+            {
+                javax.xml.transform.URIResolver resolver = processor.getUnderlyingConfiguration().getURIResolver();
+                if (!(resolver is JDotNetURIResolver))
+                {
+                    resolver = new JDotNetURIResolver(XmlResolver);
+                    processor.getUnderlyingConfiguration().setURIResolver(resolver);
+                }
+                ((JDotNetURIResolver)resolver).setMappingThreshold(value);
+            }
+        }
+
+        /// <summary>
+        /// A directory holding a persistent cache of documents read by the processor-level <c>XmlResolver</c>
+        /// from local files (for example by the <c>doc()</c> function), in a compact binary form that can be
+        /// loaded without parsing.
+        /// </summary>
+        /// <remarks>
+        /// <para>By default (null) there is no cache. When a directory is set, a document identified by a
+        /// <c>file:</c> URI is loaded from the cache if it holds an entry made from the same version of the file;
+        /// otherwise the file is parsed, and the entry is written while the document is built. The directory
+        /// is created if necessary, and may be shared by any number of processes. See also
+        /// <see cref="DocumentBuilder.TreeCacheDirectory"/>.</para>
+        /// <para>A document loaded from the cache has no line numbers, and the file is not seen by the
+        /// <c>XmlResolver</c> (which is only used for external entities and the DTD when the file is parsed),
+        /// so this option should not be used with an <c>XmlResolver</c> that redirects or restricts access to
+        /// local files. When DTD validation is requested, the file is parsed and validated without using the
+        /// cache.</para>
+        /// </remarks>
+
+        public String TreeCacheDirectory
+        {
+            get
+            {
+                JDotNetTreeCache cache = GetTreeCache();
+                return cache == null ? null : cache.getDirectory();
+            }
+            set
+            {
+                SetTreeCache(value == null ? null : DocumentBuilder.MakeTreeCache(value, TreeCacheVerifyHash));
+            }
+        }
+
+        /// <summary>
+        /// Determines how the <c>TreeCacheDirectory</c> decides whether an entry is current: by the size and
+        /// last-modified time of the file (false, the default), or by its SHA-256 digest (true).
+        /// </summary>
+
+        public bool TreeCacheVerifyHash
+        {
+            get
+            {
+                JDotNetTreeCache cache = GetTreeCache();
+                return cache == null ? treeCacheVerifyHash : cache.isVerifyHash();
+            }
+            set
+            {
+                treeCacheVerifyHash = value;
+                JDotNetTreeCache cache = GetTreeCache();
+                if (cache != null)
+                {
+                    SetTreeCache(DocumentBuilder.MakeTreeCache(cache.getDirectory(), value));
+                }
+            }
+        }
+
+        private JDotNetTreeCache GetTreeCache()
+        {
+            javax.xml.transform.URIResolver resolver = processor.getUnderlyingConfiguration().getURIResolver();
+            return resolver is JDotNetURIResolver ? ((JDotNetURIResolver)resolver).getTreeCache() : null;
+        }
+
+        private void SetTreeCache(JDotNetTreeCache cache)
+        {
+            javax.xml.transform.URIResolver resolver = processor.getUnderlyingConfiguration().getURIResolver();
+            if (!(resolver is JDotNetURIResolver))
+            {
+                resolver = new JDotNetURIResolver(XmlResolver);
+                processor.getUnderlyingConfiguration().setURIResolver(resolver);
+            }
+            ((JDotNetURIResolver)resolver).setTreeCache(cache);
+        }
+
 
         /// <summary>
 		/// A <c>TextWriter</c> used as the destination of miscellaneous error, warning, and progress messages.
@@ -344,6 +461,26 @@ namespace Saxon.Api
             return builder;
         }
 
+        /// <summary>
+        /// Create a new <c>RecordStreamer</c>, which may be used to process a large XML document
+        /// one record at a time.
+        /// </summary>
+        /// <param name="recordPath">The path identifying the record elements, for example <c>/feed/entry</c>.
+        /// See <see cref="RecordStreamer"/> for the syntax.</param>
+        /// <returns>A new <c>RecordStreamer</c></returns>
+
+        public RecordStreamer NewRecordStreamer(String recordPath)
+        {
+            try
+            {
+                return new RecordStreamer(this, recordPath);
+            }
+            catch (java.lang.IllegalArgumentException e)
+            {
+                throw new ArgumentException(e.getMessage());
+            }
+        }
+
         /// <summary>
 		/// Create a new <c>XQueryCompiler</c>, which may be used to compile XQuery queries.
         /// </summary>
@@ -501,6 +638,42 @@ namespace Saxon.Api
             config.registerCollection(u, new JDotNetEnumerableCollection(config, contents));
         }
 
+        /// <summary>
+        /// Register a named collection, whose documents are to be fetched and parsed by worker threads
+        /// ahead of the point reached by the query.
+        /// </summary>
+        /// <param name="collectionUri">The URI used to identify the collection in a call
+        /// of the XPath <c>collection()</c> function, or null for the default collection.</param>
+        /// <param name="contents">An enumerable object that represents the contents of the
+        /// collection, as a sequence of document URIs.</param>
+        /// <param name="parallelism">The number of worker threads used to fetch and parse the documents.
+        /// A value of 1 means that each document is parsed by the query thread, when it is needed.</param>
+        /// <param name="readAhead">The maximum number of documents parsed ahead of the query. Zero
+        /// means twice the number of worker threads.</param>
+        /// <remarks>
+        /// <para>This is worthwhile for collections of many documents, particularly small ones. The documents
+        /// are delivered to the query in the order of the collection, whichever order the worker threads
+        /// finish them in, and the number held in memory ahead of the query is bounded by <c>readAhead</c>.
+        /// In other respects the collection behaves like one registered using
+        /// <c>RegisterCollection(Uri, IEnumerable)</c>.</para>
+        /// </remarks>
+
+        public void RegisterCollection(Uri collectionUri, IEnumerable contents, int parallelism, int readAhead)
+        {
+            String u = (collectionUri == null ? null : collectionUri.ToString());
+            JConfiguration config = processor.getUnderlyingConfiguration();
+            JDotNetEnumerableCollection collection = new JDotNetEnumerableCollection(config, contents);
+            try
+            {
+                collection.setParallelism(parallelism, readAhead);
+            }
+            catch (java.lang.IllegalArgumentException e)
+            {
+                throw new ArgumentException(e.getMessage());
+            }
+            config.registerCollection(u, collection);
+        }
+
         /// <summary>
 		/// Register an extension function with the <c>Processor</c>
         /// </summary>
@@ -743,6 +916,18 @@ namespace Saxon.Api
         private Uri baseUri;
         private QName topLevelElement;
         private XQueryExecutable projectionQuery;
+        private XPathExecutable projectionXPath;
+        private JDotNetProjection projection;
+        private int domNodeCacheSize;
+        private bool domOrderIndexing;
+        private bool domSiblingIndexing;
+        private bool domNamespaceCaching;
+        private int domPromotionThreshold;
+        private bool domFrozen;
+        private bool pipelinedParsing;
+        private string[] domIdAttributeNames = new string[0];
+        private JDotNetTreeCache treeCache;
+        private bool treeCacheVerifyHash;
 
         private JDocumentBuilder builder;
 
@@ -967,8 +1152,14 @@ namespace Saxon.Api
         /// <para>The query should be written to use the projected document as its initial context item.
         /// For example, if the query is <code>//ITEM[COLOR='blue']</code>, then only <code>ITEM</code>
         /// elements and their <code>COLOR</code> children will be retained in the projected document.</para>
-        /// <para>This facility is only available in Saxon-EE; if the facility is not available,
-        /// calling this method has no effect.</para>
+        /// <para>When a document is built from a <c>Stream</c>, a <c>TextReader</c> or an <c>XmlReader</c>, the projection
+        /// is applied while the document is being parsed: the <c>XmlReader</c> skips the subtrees
+        /// that the query cannot use, without building them. This is only possible if every path in
+        /// the query that starts at the context item navigates downwards, using the child, descendant,
+        /// attribute and self axes, and does not refer to any global or external variable; for other queries, and for
+        /// documents built in other ways, the whole document is built unless the facility is provided by
+        /// Saxon-EE.</para>
+        /// <para>Setting this property clears the <c>DocumentProjectionXPath</c> property.</para>
         /// </remarks>
 
 
@@ -976,9 +1167,318 @@ namespace Saxon.Api
             get { return projectionQuery; }
             set {
                 projectionQuery = value;
-                builder.setDocumentProjectionQuery(projectionQuery == null ? null : projectionQuery.getUnderlyingCompiledQuery());
+                projectionXPath = null;
+                projection = value == null ? null
+                    : JDotNetProjection.make(value.getUnderlyingCompiledQuery().getUnderlyingCompiledQuery().getExpression());
+                // the native projection is used in preference to the Saxon-EE document projector, not as well as it
+                builder.setDocumentProjectionQuery(projectionQuery == null || projection != null ? null : projectionQuery.getUnderlyingCompiledQuery());
+            }
+
+        }
+
+        /// <summary>
+        /// Set a compiled XPath expression to be used for implementing document projection.
+        /// </summary>
+        /// <remarks>
+        /// <para>This has the same effect as <c>DocumentProjectionQuery</c>, for an XPath expression that is to be
+        /// evaluated with the document node of the projected document as its context item. The projection is
+        /// applied while a document is being parsed from a <c>Stream</c>, a <c>TextReader</c> or an <c>XmlReader</c>,
+        /// and only if every path in the expression that starts at the context item navigates downwards,
+        /// and the expression does not refer to any variable declared on the <c>XPathCompiler</c>;
+        /// otherwise the whole document is built.</para>
+        /// <para>Setting this property clears the <c>DocumentProjectionQuery</c> property.</para>
+        /// </remarks>
+
+        public XPathExecutable DocumentProjectionXPath {
+            get { return projectionXPath; }
+            set {
+                projectionXPath = value;
+                projectionQuery = null;
+                builder.setDocumentProjectionQuery(null);
+                projection = value == null ? null
+                    : JDotNetProjection.make(value.Implementation.getUnderlyingExpression().getInternalExpression());
+            }
+        }
+
+        /// <summary>
+        /// A directory holding a persistent cache of documents loaded by <c>Build(Uri)</c> from local files,
+        /// in a compact binary form that can be loaded without parsing.
+        /// </summary>
+        /// <remarks>
+        /// <para>By default (null) there is no cache. When a directory is set, and a document is loaded from a
+        /// <c>file:</c> URI, the cache is used if it holds an entry made from the same version of the file;
+        /// otherwise the file is parsed, and the entry is written while the document is built. The directory
+        /// is created if necessary, and may be shared by any number of processes.</para>
+        /// <para>The entry records the document as delivered by the XML parser. Whitespace stripping is applied
+        /// when the document is loaded from the cache, in the usual way. The cache is not used when
+        /// <c>DtdValidation</c> is set, or when a <c>DocumentProjectionQuery</c> or <c>DocumentProjectionXPath</c>
+        /// is applied while parsing. A document loaded from the cache has no line numbers, and the file is not
+        /// retrieved using the <c>XmlResolver</c>, which is only used for external entities and the DTD when
+        /// the file is parsed.</para>
+        /// </remarks>
+
+        public String TreeCacheDirectory
+        {
+            get
+            {
+                return treeCache == null ? null : treeCache.getDirectory();
+            }
+            set
+            {
+                treeCache = value == null ? null : MakeTreeCache(value, treeCacheVerifyHash);
+            }
+        }
+
+        /// <summary>
+        /// Determines how the <c>TreeCacheDirectory</c> decides whether an entry is current.
+        /// </summary>
+        /// <remarks>
+        /// <para>By default (false) an entry is used if the size and last-modified time of the file are
+        /// unchanged. If the value is true, the entry is used only if the SHA-256 digest of the file is
+        /// unchanged: this detects changes that leave the modification time as it was, at the cost of
+        /// reading the file each time it is loaded.</para>
+        /// </remarks>
+
+        public bool TreeCacheVerifyHash
+        {
+            get
+            {
+                return treeCacheVerifyHash;
+            }
+            set
+            {
+                treeCacheVerifyHash = value;
+                if (treeCache != null)
+                {
+                    treeCache = MakeTreeCache(treeCache.getDirectory(), value);
+                }
+            }
+        }
+
+        internal static JDotNetTreeCache MakeTreeCache(String directory, bool verifyHash)
+        {
+            try
+            {
+                return new JDotNetTreeCache(directory, verifyHash);
+            }
+            catch (java.io.IOException e)
+            {
+                throw new ArgumentException("Cannot use " + directory + " as a tree cache directory: " + e.getMessage());
+            }
+        }
+
+        /// <summary>
+        /// The maximum number of node wrappers retained for reuse in a document created using
+        /// the <c>Wrap</c> method.
+        /// </summary>
+        /// <remarks>
+        /// <para>By default this is zero, which means that a new wrapper is created each time a DOM node
+        /// is reached during navigation. Setting a positive value causes repeated navigation to the same
+        /// node to reuse the existing wrapper, together with the information it has already computed
+        /// about the node's parent and position among its siblings. This is worthwhile for large DOM
+        /// documents that are queried repeatedly.</para>
+        /// <para>The cache is discarded automatically if the DOM is modified.</para>
+        /// </remarks>
+
+        public int DomNodeCacheSize
+        {
+            get
+            {
+                return domNodeCacheSize;
+            }
+            set
+            {
+                if (value < 0)
+                {
+                    throw new ArgumentException("DomNodeCacheSize must not be negative");
+                }
+                domNodeCacheSize = value;
+            }
+        }
+
+        /// <summary>
+        /// Determines whether a document order index is maintained for documents created using
+        /// the <c>Wrap</c> method.
+        /// </summary>
+        /// <remarks>
+        /// <para>By default, no index is maintained, and comparing the positions of two DOM nodes in
+        /// document order requires a walk of their ancestors and preceding siblings. When this property
+        /// is set, the nodes are numbered in a single pass over the DOM the first time the information
+        /// is needed, after which sorting and deduplicating node sequences (for example in union
+        /// expressions) is much faster.</para>
+        /// <para>The index is discarded if the DOM is modified, and is rebuilt when next needed.</para>
+        /// </remarks>
+
+        public bool DomOrderIndexing
+        {
+            get
+            {
+                return domOrderIndexing;
+            }
+            set
+            {
+                domOrderIndexing = value;
+            }
+        }
+
+        /// <summary>
+        /// Determines whether tables of child nodes are maintained for documents created using
+        /// the <c>Wrap</c> method.
+        /// </summary>
+        /// <remarks>
+        /// <para>By default, no tables are maintained, and finding the position of a DOM node among its
+        /// siblings requires a walk along the preceding siblings. When this property is set, the children
+        /// of a node are recorded in an array the first time they are needed, which makes the sibling
+        /// axes and <c>xsl:number</c> much faster for elements with many children.</para>
+        /// <para>The tables are discarded if the DOM is modified, and are rebuilt when next needed.</para>
+        /// </remarks>
+
+        public bool DomSiblingIndexing
+        {
+            get
+            {
+                return domSiblingIndexing;
+            }
+            set
+            {
+                domSiblingIndexing = value;
+            }
+        }
+
+        /// <summary>
+        /// Determines whether the namespaces of elements are cached for documents created using
+        /// the <c>Wrap</c> method.
+        /// </summary>
+        /// <remarks>
+        /// <para>A DOM constructed programmatically does not always record the namespace URI of a node,
+        /// in which case the URI has to be found by searching the namespace declarations on the element
+        /// and its ancestors. When this property is set, the in-scope namespaces of each element are computed
+        /// once, from those of its parent, and are retained for later use.</para>
+        /// <para>The cached namespaces are discarded if the DOM is modified.</para>
+        /// </remarks>
+
+        public bool DomNamespaceCaching
+        {
+            get
+            {
+                return domNamespaceCaching;
+            }
+            set
+            {
+                domNamespaceCaching = value;
             }
+        }
 
+        /// <summary>
+        /// The names of attributes that are treated as ID attributes, for the purpose of the <c>id()</c>
+        /// and <c>element-with-id()</c> functions, in documents created using the <c>Wrap</c> method.
+        /// </summary>
+        /// <remarks>
+        /// <para>The DOM only recognizes an attribute as an ID if it is declared as such in a DTD.
+        /// In addition to such attributes, Saxon recognizes <c>xml:id</c> attributes and any attributes
+        /// in no namespace whose local names are listed here (for example <c>id</c>). These are found
+        /// using an index that is built the first time it is needed, and discarded if the DOM is modified.</para>
+        /// <para>By default the list is empty.</para>
+        /// </remarks>
+
+        public string[] DomIdAttributeNames
+        {
+            get
+            {
+                return (string[])domIdAttributeNames.Clone();
+            }
+            set
+            {
+                if (value == null)
+                {
+                    throw new ArgumentNullException("value");
+                }
+                domIdAttributeNames = (string[])value.Clone();
+            }
+        }
+
+        /// <summary>
+        /// The number of navigation steps after which a document created using the <c>Wrap</c>
+        /// method is copied to Saxon's internal tree representation.
+        /// </summary>
+        /// <remarks>
+        /// <para>A wrapped DOM avoids the cost of copying the document, but each navigation step is
+        /// slower than on a document created using <c>Build</c>. When this property is set to a positive
+        /// value, Saxon counts the navigation steps made in the wrapped document, and once the count
+        /// reaches this value it takes a copy of the DOM and uses that to evaluate subsequent searches of the
+        /// descendant, following, preceding, and sibling axes. The nodes returned still wrap the
+        /// original DOM nodes.</para>
+        /// <para>No copy is taken of a DOM in which a whitespace node adjoins other text, or in which text
+        /// adjoins the boundary of an entity reference, because the copy would merge text nodes that
+        /// the wrapped DOM presents separately.</para>
+        /// <para>The copy is discarded if the DOM is modified, and is taken again once the
+        /// threshold is next reached. By default the value is zero, which means that no copy is taken.</para>
+        /// </remarks>
+
+        public int DomPromotionThreshold
+        {
+            get
+            {
+                return domPromotionThreshold;
+            }
+            set
+            {
+                if (value < 0)
+                {
+                    throw new ArgumentException("DomPromotionThreshold must not be negative");
+                }
+                domPromotionThreshold = value;
+            }
+        }
+
+        /// <summary>
+        /// Indicates whether a document created using the <c>Wrap</c> method is to be frozen, so
+        /// that it can be queried by several threads at the same time.
+        /// </summary>
+        /// <remarks>
+        /// <para>The wrapper normally derives information about the DOM lazily, as navigation needs it, and
+        /// <c>XmlDocument</c> itself is not safe for concurrent use. When this property is set, all of that
+        /// information is computed when the document is wrapped, the <c>DomNodeCacheSize</c> setting is
+        /// ignored, and any subsequent attempt to modify the DOM causes an exception. The DOM is then only read
+        /// during queries, and the resulting <c>XdmNode</c> can be shared between threads without locking.</para>
+        /// <para>Only an <c>XmlDocument</c> can be frozen. The default is false.</para>
+        /// </remarks>
+
+        public bool DomFrozen
+        {
+            get
+            {
+                return domFrozen;
+            }
+            set
+            {
+                domFrozen = value;
+            }
+        }
+
+        /// <summary>
+        /// Indicates whether documents built from a <c>Stream</c> or <c>TextReader</c> are to be
+        /// parsed on a separate thread from the one that builds the tree.
+        /// </summary>
+        /// <remarks>
+        /// <para>When this property is set, the <c>XmlReader</c> runs on a background thread and passes
+        /// the events it reads to the calling thread in batches, through a fixed number of reusable buffers.
+        /// On a machine with more than one processor this can substantially reduce the elapsed time
+        /// needed to build a large document. For small documents the cost of starting the thread outweighs
+        /// the gain. The default is false, unless pipelining is enabled in the parser profile of
+        /// the configuration.</para>
+        /// </remarks>
+
+        public bool PipelinedParsing
+        {
+            get
+            {
+                return pipelinedParsing;
+            }
+            set
+            {
+                pipelinedParsing = value;
+            }
         }
 
         /// <summary>
@@ -986,7 +1486,8 @@ namespace Saxon.Api
         /// </summary>
         /// <remarks>
         /// <para>Note that the type <c>Uri</c> requires an absolute URI.</para>
-        /// <para>The URI is dereferenced using the registered <c>XmlResolver</c>.</para>
+        /// <para>The URI is dereferenced using the registered <c>XmlResolver</c>, except that a local file
+        /// may be loaded from the <c>TreeCacheDirectory</c>, if one is set.</para>
         /// <para>This method takes no account of any fragment part in the URI.</para>
         /// <para>The <c>role</c> passed to the <c>GetEntity</c> method of the <c>XmlResolver</c> 
         /// is "application/xml", and the required return type is <c>System.IO.Stream</c>.</para>
@@ -1005,6 +1506,20 @@ namespace Saxon.Api
 
         public XdmNode Build(Uri uri)
         {
+            if (treeCache != null && uri.IsFile && projection == null && !DtdValidation)
+            {
+                JSource cached = treeCache.makeSource(uri.ToString(), XmlResolver);
+                try
+                {
+                    XdmNode node = (XdmNode)XdmNode.Wrap(builder.build(cached).getUnderlyingNode());
+                    node.SetProcessor(processor);
+                    return node;
+                }
+                catch (JXPathException ex)
+                {
+                    throw new StaticError(ex);
+                }
+            }
             Object obj = XmlResolver.GetEntity(uri, "application/xml", System.Type.GetType("System.IO.Stream"));
             if (obj is Stream)
             {
@@ -1023,6 +1538,37 @@ namespace Saxon.Api
             }
         }
 
+        /// <summary>
+        /// Load an XML document from a local file, which is mapped into memory rather than read through
+        /// a <c>FileStream</c>.
+        /// </summary>
+        /// <remarks>
+        /// <para>The file is parsed using the <c>System.Xml</c> parser, reading directly from a memory-mapped
+        /// view of the file. This avoids copying the file through a stream buffer, and lets repeated reads of the
+        /// same large file be served from the operating system's page cache. For small files it is no faster
+        /// than <c>Build(Uri)</c>.</para>
+        /// <para>The file is not retrieved using the <c>XmlResolver</c>. The file URI is used as the base URI of the
+        /// document (regardless of the setting of the <c>BaseUri</c> property).</para>
+        /// </remarks>
+        /// <param name="path">The name of the file. A relative path is resolved against the current directory.</param>
+        /// <returns>An <c>XdmNode</c>, the document node at the root of the tree of the resulting
+        /// in-memory document.
+        /// </returns>
+
+        public XdmNode BuildMapped(String path)
+        {
+            String fullPath = Path.GetFullPath(path);
+            Stream input = JDotNetMappedFile.open(fullPath);
+            try
+            {
+                return Build(input, new Uri(fullPath));
+            }
+            finally
+            {
+                input.Close();
+            }
+        }
+
         /// <summary>
 		/// Load an XML document supplied as raw (lexical) XML on a <c>Stream</c>.
         /// </summary>
@@ -1052,6 +1598,26 @@ namespace Saxon.Api
             return Build(input, baseUri);
         }
 
+        // Get the whitespace stripping rule to be applied by the System.Xml parser itself, so that stripped
+        // text nodes are never passed down the pipeline. This is possible when the decision depends only on
+        // the element name; stripping of ignorable whitespace is left to the underlying DocumentBuilder,
+        // because it depends on the element's type. XmlReaderSettings.IgnoreWhitespace is not used, because
+        // the reader applies it to each whitespace node it reports, which is not always a whole text node.
+
+        private JSpaceStrippingRule GetNativeSpaceStrippingRule()
+        {
+            if (whitespacePolicy == null)
+            {
+                return null;
+            }
+            int policy = whitespacePolicy.ordinal();
+            if (policy == JWhitespace.ALL || policy == JWhitespace.XSLT)
+            {
+                return whitespacePolicy.GetJWhiteSpaceStrippingPolicy().getSpaceStrippingRule();
+            }
+            return null;
+        }
+
         // Build a document from a given stream, with the base URI supplied
         // as an extra argument
 
@@ -1070,33 +1636,24 @@ namespace Saxon.Api
             {
 
                 XmlReaderSettings settings = new XmlReaderSettings();
-                settings.DtdProcessing = DtdProcessing.Parse;   // must expand entity references
+                JDotNetParserProfile profile = JDotNetParserProfile.getProfile(config);
+                profile.applyTo(settings, DtdValidation);
 
 
                 //((XmlTextReader)parser).Normalization = true;
-                /*if (whitespacePolicy != null) {
-                    int optioni = whitespacePolicy.ordinal();
-                    if (optioni == JWhitespace.XSLT)
-                    {
-                        options.setSpaceStrippingRule(WhitespacePolicy.PreserveAll.GetJWhiteSpaceStrippingPolicy());
-                        options.addFilter(whitespacePolicy.makeStripper());
-                    }
-                    else {
-                        options.setSpaceStrippingRule(whitespacePolicy.GetJWhiteSpaceStrippingPolicy());
-                    }
-                 
-
-                }*/
+                JSpaceStrippingRule stripRule = GetNativeSpaceStrippingRule();
 
                 if (xmlResolver != null)
                 {
                     settings.XmlResolver = xmlResolver;
                 }
 
-                settings.ValidationType = (DtdValidation ? ValidationType.DTD : ValidationType.None);
-
-                XmlReader parser = XmlReader.Create(input, settings, baseUri.ToString());
-                source = new JPullSource(new JDotNetPullProvider(parser));
+                XmlReader parser = XmlReader.Create(profile.prepareStream(input), settings, baseUri.ToString());
+                JDotNetEventSource eventSource = new JDotNetEventSource(parser);
+                eventSource.setPipelined(pipelinedParsing || profile.isPipelined());
+                eventSource.setProjection(projection);
+                eventSource.setSpaceStrippingRule(stripRule);
+                source = eventSource;
                 source.setSystemId(baseUri.ToString());
             }
 
@@ -1156,20 +1713,24 @@ namespace Saxon.Api
             {
 
                 XmlReaderSettings settings = new XmlReaderSettings();
-                settings.DtdProcessing = DtdProcessing.Parse;   // must expand entity references
+                JDotNetParserProfile profile = JDotNetParserProfile.getProfile(config);
+                profile.applyTo(settings, DtdValidation);
 
 
                 //((XmlTextReader)parser).Normalization = true;
+                JSpaceStrippingRule stripRule = GetNativeSpaceStrippingRule();
 
                 if (xmlResolver != null)
                 {
                     settings.XmlResolver = xmlResolver;
                 }
 
-                settings.ValidationType = (DtdValidation ? ValidationType.DTD : ValidationType.None);
-
                 XmlReader parser = XmlReader.Create(input, settings, baseUri.ToString());
-                source = new JPullSource(new JDotNetPullProvider(parser));
+                JDotNetEventSource eventSource = new JDotNetEventSource(parser);
+                eventSource.setPipelined(pipelinedParsing || profile.isPipelined());
+                eventSource.setProjection(projection);
+                eventSource.setSpaceStrippingRule(stripRule);
+                source = eventSource;
                 source.setSystemId(baseUri.ToString());
             }
             //augmentParseOptions(options);
@@ -1306,8 +1867,10 @@ namespace Saxon.Api
 
         public XdmNode Build(XmlReader reader)
         {
-            JPullProvider pp = new JDotNetPullProvider(reader);
+            JDotNetPullProvider pp = new JDotNetPullProvider(reader);
             pp.setPipelineConfiguration(config.makePipelineConfiguration());
+            pp.setProjection(projection);
+            pp.setSpaceStrippingRule(GetNativeSpaceStrippingRule());
             // pp = new PullTracer(pp);  /* diagnostics */
             JSource source = new JPullSource(pp);
             source.setSystemId(reader.BaseURI);
@@ -1351,6 +1914,12 @@ namespace Saxon.Api
         /// time, but it also means that it is not possible to perform operations such as
         /// whitespace stripping and schema validation.
         /// </para>
+        /// <para>
+        /// The DOM may be modified after it has been wrapped. Any indexes or caches
+        /// enabled using the properties of this <c>DocumentBuilder</c> are discarded
+        /// when the DOM is modified, and are rebuilt when next needed, so subsequent
+        /// queries always see the current state of the DOM.
+        /// </para>
         /// </remarks>
         /// <param name="doc">The DOM document node to be wrapped</param>
         /// <returns>An <c>XdmNode</c>, the Saxon document node at the root of the tree of the resulting
@@ -1361,6 +1930,101 @@ namespace Saxon.Api
         {
             String baseu = (baseUri == null ? null : baseUri.ToString());
             JDotNetDocumentWrapper wrapper = new JDotNetDocumentWrapper(doc, baseu, config);
+            wrapper.setNodeCacheSize(domNodeCacheSize);
+            wrapper.setOrderIndexing(domOrderIndexing);
+            wrapper.setSiblingIndexing(domSiblingIndexing);
+            wrapper.setNamespaceCaching(domNamespaceCaching);
+            java.util.HashSet idNames = new java.util.HashSet();
+            foreach (string name in domIdAttributeNames)
+            {
+                idNames.add(name);
+            }
+            wrapper.setIdAttributeNames(idNames);
+            wrapper.setPromotionThreshold(domPromotionThreshold);
+            if (domFrozen)
+            {
+                wrapper.freeze();
+            }
+            return (XdmNode)XdmValue.Wrap(wrapper.getRootNode());
+        }
+
+
+        /// <summary>
+        /// Wrap an XPath document, supplied as an <c>XPathDocument</c>, as a Saxon <c>XdmNode</c>.
+        /// </summary>
+        /// <remarks>
+        /// <para>
+        /// The <c>XPathDocument</c> is the read-only tree representation that .NET provides for
+        /// efficient querying. As with the <c>Wrap</c> method for an <c>XmlDocument</c>, the
+        /// document is not copied, so it is not possible to perform operations such as
+        /// whitespace stripping and schema validation.
+        /// </para>
+        /// <para>
+        /// Nodes in the wrapped document are accessed using <c>XPathNavigator</c> objects. The
+        /// <c>XPathNavigator</c> for a node in the resulting tree can be obtained using
+        /// <c>XdmNode.getUnderlyingXPathNavigator</c>.
+        /// </para>
+        /// </remarks>
+        /// <param name="doc">The XPath document to be wrapped</param>
+        /// <returns>An <c>XdmNode</c>, the Saxon document node at the root of the tree of the resulting
+        /// in-memory document.
+        /// </returns>
+
+        public XdmNode Wrap(System.Xml.XPath.XPathDocument doc)
+        {
+            String baseu = (baseUri == null ? null : baseUri.ToString());
+            JDotNetXPathDocumentWrapper wrapper = new JDotNetXPathDocumentWrapper(doc, baseu, config);
+            return (XdmNode)XdmValue.Wrap(wrapper.getRootNode());
+        }
+
+
+        /// <summary>
+        /// Wrap a LINQ to XML document, supplied as an <c>XDocument</c>, as a Saxon <c>XdmNode</c>.
+        /// </summary>
+        /// <remarks>
+        /// <para>
+        /// As with the <c>Wrap</c> method for an <c>XmlDocument</c>, the document is not copied,
+        /// so it is not possible to perform operations such as whitespace stripping and schema
+        /// validation.
+        /// </para>
+        /// <para>
+        /// The document may be modified while the resulting <c>XdmNode</c> is in use: Saxon observes the
+        /// <c>Changed</c> event of the document, and discards the information it retains about the
+        /// positions of nodes in the tree when the tree is modified.
+        /// </para>
+        /// </remarks>
+        /// <param name="doc">The LINQ to XML document to be wrapped</param>
+        /// <returns>An <c>XdmNode</c>, the Saxon document node at the root of the tree of the resulting
+        /// in-memory document.
+        /// </returns>
+
+        public XdmNode Wrap(System.Xml.Linq.XDocument doc)
+        {
+            String baseu = (baseUri == null ? null : baseUri.ToString());
+            JDotNetLinqDocumentWrapper wrapper = new JDotNetLinqDocumentWrapper(doc, baseu, config);
+            LinqChangeWatcher.Watch(doc, wrapper);
+            return (XdmNode)XdmValue.Wrap(wrapper.getRootNode());
+        }
+
+        /// <summary>
+        /// Wrap a LINQ to XML element, supplied as an <c>XElement</c>, as a Saxon <c>XdmNode</c>.
+        /// </summary>
+        /// <remarks>
+        /// <para>
+        /// The element is treated as the root of a tree that has no document node: any parent
+        /// of the element is not visible to Saxon. In other respects it behaves as with the
+        /// <c>Wrap</c> method for an <c>XDocument</c>.
+        /// </para>
+        /// </remarks>
+        /// <param name="element">The LINQ to XML element to be wrapped</param>
+        /// <returns>An <c>XdmNode</c>, the Saxon element node at the root of the resulting tree.
+        /// </returns>
+
+        public XdmNode Wrap(System.Xml.Linq.XElement element)
+        {
+            String baseu = (baseUri == null ? null : baseUri.ToString());
+            JDotNetLinqDocumentWrapper wrapper = new JDotNetLinqDocumentWrapper(element, baseu, config);
+            LinqChangeWatcher.Watch(element, wrapper);
             return (XdmNode)XdmValue.Wrap(wrapper.getRootNode());
         }
     }
@@ -1728,6 +2392,41 @@ namespace Saxon.Api
 
     }
 
+    // Discards the information retained by the wrapper of a LINQ to XML tree when the tree is modified.
+    // The Changed event of the root is raised for changes anywhere beneath it. The wrapper is held weakly,
+    // so that the tree does not keep it alive; the handler removes itself once the wrapper has gone.
+
+    internal class LinqChangeWatcher
+    {
+        private readonly System.Xml.Linq.XObject root;
+        private readonly WeakReference<JDotNetLinqDocumentWrapper> wrapper;
+
+        private LinqChangeWatcher(System.Xml.Linq.XObject root, JDotNetLinqDocumentWrapper wrapper)
+        {
+            this.root = root;
+            this.wrapper = new WeakReference<JDotNetLinqDocumentWrapper>(wrapper);
+        }
+
+        internal static void Watch(System.Xml.Linq.XObject root, JDotNetLinqDocumentWrapper wrapper)
+        {
+            LinqChangeWatcher watcher = new LinqChangeWatcher(root, wrapper);
+            root.Changed += watcher.Changed;
+        }
+
+        private void Changed(object sender, System.Xml.Linq.XObjectChangeEventArgs e)
+        {
+            JDotNetLinqDocumentWrapper target;
+            if (wrapper.TryGetTarget(out target))
+            {
+                target.clearIndexes();
+            }
+            else
+            {
+                root.Changed -= Changed;
+            }
+        }
+    }
+
 }
 
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
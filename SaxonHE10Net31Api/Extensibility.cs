@@ -593,6 +593,35 @@ namespace Saxon.Api
 
         }
 
+        /// <summary>
+        /// Register a specific URI and bind it to a specific ResourceCollection, whose resources are
+        /// to be fetched and parsed by worker threads ahead of the point reached by the query
+        /// </summary>
+        /// <remarks>
+        /// <para>The resources are still delivered to the query in the order of the collection. Because
+        /// the <c>GetXdmItem</c> method of each resource is called on a worker thread, it must be safe
+        /// to call it from any thread.</para>
+        /// </remarks>
+        /// <param name="collectionURI">collectionURI the collection URI to be registered. Must not be null.</param>
+        /// <param name="collection">collection the ResourceCollection to be associated with this URI. Must not be null.</param>
+        /// <param name="parallelism">the number of worker threads. A value of 1 means that each resource is
+        /// materialized by the query thread, when it is needed</param>
+        /// <param name="readAhead">the maximum number of resources materialized ahead of the query. Zero means
+        /// twice the number of worker threads</param>
+        public void RegisterCollection(String collectionURI, IResourceCollection collection, int parallelism, int readAhead) {
+
+            if (parallelism < 1)
+            {
+                throw new ArgumentException("parallelism must be at least 1");
+            }
+            if (readAhead < 0)
+            {
+                throw new ArgumentException("readAhead must not be negative");
+            }
+            collectionFinder.registerCollection(collectionURI, new ResourceCollectionWrapper(collection, parallelism, readAhead));
+
+        }
+
     }
 
 
@@ -600,9 +629,16 @@ namespace Saxon.Api
     {
 
         IResourceCollection resourceCollection;
+        int parallelism;
+        int readAhead;
+
+        public ResourceCollectionWrapper(IResourceCollection rc) : this(rc, 1, 0) {
+        }
 
-        public ResourceCollectionWrapper(IResourceCollection rc) {
+        public ResourceCollectionWrapper(IResourceCollection rc, int parallelism, int readAhead) {
             resourceCollection = rc;
+            this.parallelism = parallelism;
+            this.readAhead = readAhead;
         }
 
         public string getCollectionURI()
@@ -612,33 +648,30 @@ namespace Saxon.Api
 
         public Iterator getResources(JXPathContext xpc)
         {
-            java.util.List iter = new java.util.ArrayList();
-            if (resourceCollection != null)
+            if (resourceCollection == null)
             {
-                List<IResource> list = resourceCollection.GetResources(new DynamicContext(xpc));
-                foreach (IResource src in list)
-                {
-                    iter.add(new ResourceWrapper(src));
-                }
+                return new net.sf.saxon.dotnet.DotNetIterator();
             }
-
-            return iter.iterator();
+            // wrap the resources as they are consumed, rather than copying the whole list first
+            List<IResource> list = resourceCollection.GetResources(new DynamicContext(xpc));
+            Iterator resources = new net.sf.saxon.dotnet.DotNetIterator(list.GetEnumerator(), new ResourceMapper());
+            if (parallelism > 1)
+            {
+                return new net.sf.saxon.dotnet.DotNetParallelResourceIterator(
+                    resources, xpc, parallelism, readAhead == 0 ? 2 * parallelism : readAhead);
+            }
+            return resources;
 
         }
 
         public Iterator getResourceURIs(JXPathContext xpc)
         {
-            java.util.List iter = new java.util.ArrayList();
-            if (resourceCollection != null)
+            if (resourceCollection == null)
             {
-                List<string> list = resourceCollection.GetResourceURIs(new DynamicContext(xpc));
-                foreach (string src in list)
-                {
-                    iter.add(src);
-                }
+                return new net.sf.saxon.dotnet.DotNetIterator();
             }
-
-            return iter.iterator();
+            List<string> list = resourceCollection.GetResourceURIs(new DynamicContext(xpc));
+            return new net.sf.saxon.dotnet.DotNetIterator(list.GetEnumerator());
         }
 
         public bool isStable(JXPathContext xpc)
@@ -1121,6 +1154,14 @@ namespace Saxon.Api
 
     }
 
+    internal class ResourceMapper : net.sf.saxon.dotnet.DotNetIterator.Mapper
+    {
+        public object convert(object obj)
+        {
+            return new ResourceWrapper((IResource)obj);
+        }
+    }
+
     internal class Mapper : net.sf.saxon.dotnet.DotNetIterator.Mapper
     {
         public object convert(object obj)
@@ -2316,6 +2316,20 @@ namespace Saxon.Api
             return null;
         }
 
+        /// <summary>
+        /// Unwraps the underlying <c>XPathNavigator</c> object from the <c>XdmValue</c>.
+        /// If the method does not wrap a node in an <c>XPathDocument</c> then a null is returned
+        /// </summary>
+        /// <returns>A new <c>XPathNavigator</c> positioned at the underlying node</returns>
+        public System.Xml.XPath.XPathNavigator getUnderlyingXPathNavigator()
+        {
+            if (value is net.sf.saxon.dotnet.DotNetXPathNodeWrapper)
+            {
+                return ((net.sf.saxon.dotnet.DotNetXPathNodeWrapper)value).getUnderlyingNode();
+            }
+            return null;
+        }
+
         /// <summary>
         /// Get the string value of the node.
         /// </summary>
@@ -0,0 +1,260 @@
+﻿using System;
+using System.IO;
+using System.Xml;
+using System.Collections.Generic;
+using System.Threading.Tasks;
+using JNodeInfo = net.sf.saxon.om.NodeInfo;
+using JReceiver = net.sf.saxon.@event.Receiver;
+using JPipelineConfiguration = net.sf.saxon.@event.PipelineConfiguration;
+using JXPathException = net.sf.saxon.trans.XPathException;
+using JDotNetParserProfile = net.sf.saxon.dotnet.DotNetParserProfile;
+using JDotNetRecordReader = net.sf.saxon.dotnet.DotNetRecordReader;
+using JRecordPath = net.sf.saxon.dotnet.DotNetRecordReader.RecordPath;
+
+namespace Saxon.Api
+{
+
+    /// <summary>
+    /// A <c>RecordStreamer</c> processes a large XML document one record at a time. The document is
+    /// read with the <c>System.Xml</c> parser; each element that matches the record path is built as
+    /// a small document of its own, a stylesheet, query, XPath expression or function is applied to it,
+    /// and the results for all the records are written, in document order, to a single destination.
+    /// </summary>
+    /// <remarks>
+    /// <para>To construct a <c>RecordStreamer</c>, use the factory method <c>NewRecordStreamer</c> on the
+    /// <see cref="Processor"/> object.</para>
+    /// <para>Memory use is governed by the size of the largest record rather than the size of the document,
+    /// so documents much larger than the available memory can be processed. The content outside the records
+    /// is not available to the processing of a record, apart from the namespaces declared on the ancestors
+    /// of the record.</para>
+    /// <para>The record path is a sequence of element name tests separated by <c>/</c> or <c>//</c>,
+    /// with the same meaning as an XSLT pattern; a path that starts with <c>/</c> is matched from the
+    /// outermost element, and any other path matches at any depth. A name test is one of <c>*</c>,
+    /// <c>*:local</c>, <c>local</c> (an element in no namespace), or <c>Q{uri}local</c>: for example
+    /// <c>/feed/entry</c> or <c>Q{http://www.w3.org/2005/Atom}entry</c>. Records are not looked for
+    /// inside other records.</para>
+    /// </remarks>
+
+    public class RecordStreamer
+    {
+
+        private Processor processor;
+        private String recordPath;
+        private JRecordPath path;
+        private int parallelism = 1;
+        private int readAhead = 0;
+
+        // internal constructor: the public interface is a factory method
+        // on the Processor object
+
+        internal RecordStreamer(Processor processor, String recordPath)
+        {
+            this.processor = processor;
+            this.recordPath = recordPath;
+            this.path = new JRecordPath(recordPath, processor.Implementation.getNamePool());
+        }
+
+        /// <summary>
+        /// The path identifying the record elements, as supplied when the <c>RecordStreamer</c> was created
+        /// </summary>
+
+        public String RecordPath
+        {
+            get { return recordPath; }
+        }
+
+        /// <summary>
+        /// The number of records that may be processed at the same time, on separate threads.
+        /// </summary>
+        /// <remarks>
+        /// <para>The default is 1, which processes each record on the calling thread before the next one is read.
+        /// With a higher value, the document is still read on the calling thread, but the records are processed
+        /// by tasks running on the thread pool, and their results are still written in document order.
+        /// The stylesheet, query or function must then be safe to run concurrently; this is the case for
+        /// the <c>Transform</c>, <c>Query</c> and <c>Evaluate</c> methods, which load a new transformer,
+        /// evaluator or selector for each record.</para>
+        /// </remarks>
+
+        public int Parallelism
+        {
+            get { return parallelism; }
+            set
+            {
+                if (value < 1)
+                {
+                    throw new ArgumentException("Parallelism must be at least 1");
+                }
+                parallelism = value;
+            }
+        }
+
+        /// <summary>
+        /// The maximum number of records that may be read ahead of the record whose result is being written,
+        /// when records are processed in parallel. This limits the memory used when one record takes much longer
+        /// to process than those that follow it.
+        /// </summary>
+        /// <remarks>
+        /// The default (zero) means twice the <c>Parallelism</c>. The value is ignored if <c>Parallelism</c> is 1.
+        /// </remarks>
+
+        public int ReadAhead
+        {
+            get { return readAhead; }
+            set
+            {
+                if (value < 0)
+                {
+                    throw new ArgumentException("ReadAhead must not be negative");
+                }
+                readAhead = value;
+            }
+        }
+
+        /// <summary>
+        /// Apply a stylesheet to each record, using <c>ApplyTemplates</c> with the document node of the record
+        /// as the selection, and write the results to a destination
+        /// </summary>
+        /// <param name="input">The <c>Stream</c> containing the XML document. Closing this stream
+        /// on completion is the responsibility of the caller.</param>
+        /// <param name="baseUri">The base URI of the document, which is also the base URI of every record</param>
+        /// <param name="stylesheet">The compiled stylesheet</param>
+        /// <param name="destination">The destination for the results of all the records</param>
+        /// <returns>The number of records processed</returns>
+
+        public int Transform(Stream input, Uri baseUri, XsltExecutable stylesheet, XmlDestination destination)
+        {
+            return Run(input, baseUri, record => stylesheet.Load30().ApplyTemplates(record), destination);
+        }
+
+        /// <summary>
+        /// Evaluate a query with each record as the context item, and write the results to a destination
+        /// </summary>
+        /// <param name="input">The <c>Stream</c> containing the XML document. Closing this stream
+        /// on completion is the responsibility of the caller.</param>
+        /// <param name="baseUri">The base URI of the document, which is also the base URI of every record</param>
+        /// <param name="query">The compiled query</param>
+        /// <param name="destination">The destination for the results of all the records</param>
+        /// <returns>The number of records processed</returns>
+
+        public int Query(Stream input, Uri baseUri, XQueryExecutable query, XmlDestination destination)
+        {
+            return Run(input, baseUri, record =>
+            {
+                XQueryEvaluator evaluator = query.Load();
+                evaluator.ContextItem = record;
+                return evaluator.Evaluate();
+            }, destination);
+        }
+
+        /// <summary>
+        /// Evaluate an XPath expression with each record as the context item, and write the results to a destination
+        /// </summary>
+        /// <param name="input">The <c>Stream</c> containing the XML document. Closing this stream
+        /// on completion is the responsibility of the caller.</param>
+        /// <param name="baseUri">The base URI of the document, which is also the base URI of every record</param>
+        /// <param name="expression">The compiled XPath expression</param>
+        /// <param name="destination">The destination for the results of all the records</param>
+        /// <returns>The number of records processed</returns>
+
+        public int Evaluate(Stream input, Uri baseUri, XPathExecutable expression, XmlDestination destination)
+        {
+            return Run(input, baseUri, record =>
+            {
+                XPathSelector selector = expression.Load();
+                selector.ContextItem = record;
+                return selector.Evaluate();
+            }, destination);
+        }
+
+        /// <summary>
+        /// Apply a function to each record, and write the results to a destination
+        /// </summary>
+        /// <param name="input">The <c>Stream</c> containing the XML document. Closing this stream
+        /// on completion is the responsibility of the caller.</param>
+        /// <param name="baseUri">The base URI of the document, which is also the base URI of every record</param>
+        /// <param name="function">The function to be applied to the document node of each record. Its result is
+        /// written to the destination; it may return null, which is treated as an empty sequence</param>
+        /// <param name="destination">The destination for the results of all the records</param>
+        /// <returns>The number of records processed</returns>
+
+        public int Run(Stream input, Uri baseUri, Func<XdmNode, XdmValue> function, XmlDestination destination)
+        {
+            if (baseUri == null)
+            {
+                throw new ArgumentException("No base URI supplied");
+            }
+            JPipelineConfiguration pipe = processor.Implementation.makePipelineConfiguration();
+            JDotNetParserProfile profile = JDotNetParserProfile.getProfile(pipe.getConfiguration());
+            XmlReaderSettings settings = profile.makeSettings(null, false);
+            if (processor.XmlResolver != null)
+            {
+                settings.XmlResolver = processor.XmlResolver;
+            }
+            XmlReader parser = XmlReader.Create(profile.prepareStream(input), settings, baseUri.ToString());
+            JDotNetRecordReader records = new JDotNetRecordReader(parser, path, pipe, baseUri.ToString());
+            JReceiver output = null;
+            Queue<Task<XdmValue>> pending = new Queue<Task<XdmValue>>();
+            int limit = readAhead == 0 ? 2 * parallelism : readAhead;
+            try
+            {
+                output = destination.GetUnderlyingDestination().getReceiver(pipe, pipe.getConfiguration().obtainDefaultSerializationProperties());
+                output.open();
+                JNodeInfo doc;
+                while ((doc = records.next()) != null)
+                {
+                    XdmNode record = (XdmNode)XdmValue.Wrap(doc);
+                    record.SetProcessor(processor);
+                    if (parallelism == 1)
+                    {
+                        Write(function(record), output);
+                    }
+                    else
+                    {
+                        if (pending.Count >= limit)
+                        {
+                            Write(pending.Dequeue().GetAwaiter().GetResult(), output);
+                        }
+                        pending.Enqueue(Task.Run(() => function(record)));
+                    }
+                }
+                while (pending.Count > 0)
+                {
+                    Write(pending.Dequeue().GetAwaiter().GetResult(), output);
+                }
+                output.close();
+                return records.getRecordCount();
+            }
+            catch (JXPathException err)
+            {
+                throw new DynamicError(err);
+            }
+            finally
+            {
+                records.close();
+                if (pending.Count > 0)
+                {
+                    // let the tasks already started finish before the caller reuses the destination
+                    try
+                    {
+                        Task.WaitAll(pending.ToArray());
+                    }
+                    catch (AggregateException)
+                    {
+                        // an earlier error is already being reported
+                    }
+                }
+            }
+        }
+
+        private static void Write(XdmValue result, JReceiver output)
+        {
+            if (result != null)
+            {
+                foreach (XdmItem item in result)
+                {
+                    output.append(item.Unwrap().head());
+                }
+            }
+        }
+    }
+}
@@ -555,6 +555,13 @@ namespace Saxon.Api
             this.executable = executable;
         }
 
+        // internal property: the underlying s9api executable
+
+        internal JXPathExecutable Implementation
+        {
+            get { return executable; }
+        }
+
         /// <summary>
         /// Get a list of external variables used by the expression. This will include both variables that were explicitly
         /// declared to the <c>XPathCompiler</c>, and (if the <c>AllowUndeclaredVariables</c> option was set) variables that
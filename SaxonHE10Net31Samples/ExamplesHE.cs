@@ -65,7 +65,13 @@ namespace SaxonHE
                 new XQueryFromXmlReader(),
                 new XQueryToSerializedSequence(),
                 new XQueryUsingParameter(),
-                new XQueryMultiModule()
+                new XQueryMultiModule(),
+                new XPathOnPromotedDom(),
+                new XQueryProjectionWithGlobalVariable(),
+                new BuildWithEventSource(),
+                new PipelinedParsing(),
+                new NativeWhitespaceStripping(),
+                new BuildFromTreeCache()
             };
 
             Boolean ask = true;
@@ -2156,6 +2162,442 @@ namespace SaxonHE
     }
 
 
+    /// <summary>
+    /// Show navigation of a wrapped DOM document after it has been promoted to a TinyTree snapshot,
+    /// checking that the nodes returned are the right DOM nodes. The document contains elements whose
+    /// only child is a text node, and adjacent text and CDATA nodes, which the snapshot holds as fewer
+    /// nodes than the DOM.
+    /// </summary>
+
+    public class XPathOnPromotedDom : Example
+    {
+
+        public override string testName
+        {
+            get { return "XPathOnPromotedDom"; }
+        }
+
+        public override void run(Uri samplesDir)
+        {
+            Processor processor = new Processor();
+
+            XmlDocument doc = new XmlDocument();
+            doc.LoadXml("<doc><a id='1'>text</a><b/><c>x<![CDATA[y]]><d/></c><e>more</e></doc>");
+
+            DocumentBuilder builder = processor.NewDocumentBuilder();
+            builder.DomPromotionThreshold = 1;
+            XdmNode input = builder.Wrap(doc);
+
+            XPathCompiler compiler = processor.NewXPathCompiler();
+            Check(compiler, input, "string-join(/doc/a/following-sibling::*/name(), ' ')", "b c e");
+            Check(compiler, input, "string-join(/doc/descendant::*/name(), ' ')", "doc a b c d e");
+            Check(compiler, input, "string-join(//text(), '|')", "text|xy|more");
+            Check(compiler, input, "string-join(/doc/e/preceding::*/name(), ' ')", "a b c d");
+            Check(compiler, input, "string-join(/doc/a/text()/following::text(), '|')", "xy|more");
+            Check(compiler, input, "string-join(/doc/a/@id/following::*/name(), ' ')", "b c d e");
+
+            // the nodes returned must wrap the original DOM nodes
+            XPathSelector selector = compiler.Compile("/doc/descendant::*[last()]").Load();
+            selector.ContextItem = input;
+            XmlNode e = ((XdmNode)selector.EvaluateSingle()).getUnderlyingXmlNode();
+            if (e != doc.DocumentElement.LastChild)
+            {
+                throw new Exception("Wrong DOM node returned: " + e.OuterXml);
+            }
+
+            // a whitespace node next to a CDATA section is a separate text node in the wrapped DOM,
+            // and must remain one however many steps are taken
+            XmlDocument spaced = new XmlDocument();
+            spaced.PreserveWhitespace = true;
+            spaced.LoadXml("<doc><c>x<![CDATA[y]]>  </c><f>z</f></doc>");
+            XdmNode spacedInput = builder.Wrap(spaced);
+            for (int i = 0; i < 3; i++)
+            {
+                Check(compiler, spacedInput, "count(/doc/c/text())", "2");
+                Check(compiler, spacedInput, "string-join(/doc/c/text(), '|')", "xy|  ");
+                Check(compiler, spacedInput, "string-join(/doc/c/text()[1]/following::text(), '|')", "  |z");
+                Check(compiler, spacedInput, "string(/doc/c)", "xy  ");
+            }
+            Console.WriteLine("All results correct");
+        }
+
+        private static void Check(XPathCompiler compiler, XdmNode input, String expression, String expected)
+        {
+            XPathSelector selector = compiler.Compile(expression).Load();
+            selector.ContextItem = input;
+            String actual = selector.EvaluateSingle().ToString();
+            Console.WriteLine(expression + " = " + actual);
+            if (actual != expected)
+            {
+                throw new Exception("Expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+
+    /// <summary>
+    /// Show document projection while parsing, using a query that reaches the document through
+    /// a global variable, and an XPath expression. The projected documents must still give the right answers.
+    /// </summary>
+
+    public class XQueryProjectionWithGlobalVariable : Example
+    {
+
+        public override string testName
+        {
+            get { return "XQueryProjectionWithGlobalVariable"; }
+        }
+
+        public override void run(Uri samplesDir)
+        {
+            Processor processor = new Processor();
+            String xml = "<LIST><ITEM><NAME>pen</NAME><COLOR>blue</COLOR></ITEM>" +
+                         "<ITEM><NAME>ink</NAME><COLOR>red</COLOR></ITEM><OTHER>x</OTHER></LIST>";
+
+            // the ITEM elements are only reached through the variable $i
+            XQueryExecutable query = processor.NewXQueryCompiler().Compile(
+                "declare variable $i := //ITEM; string-join($i/COLOR, ' ')");
+            DocumentBuilder builder = processor.NewDocumentBuilder();
+            builder.BaseUri = new Uri("http://www.example.com/list.xml");
+            builder.DocumentProjectionQuery = query;
+            XdmNode doc = builder.Build(new StringReader(xml));
+            XQueryEvaluator eval = query.Load();
+            eval.ContextItem = doc;
+            Check(eval.EvaluateSingle().ToString(), "blue red");
+
+            XPathExecutable xpath = processor.NewXPathCompiler().Compile("string-join(//ITEM[COLOR='blue']/NAME, ' ')");
+            builder.DocumentProjectionXPath = xpath;
+            doc = builder.Build(new StringReader(xml));
+            XPathSelector selector = xpath.Load();
+            selector.ContextItem = doc;
+            Check(selector.EvaluateSingle().ToString(), "pen");
+
+            // the ITEM elements are only reached through the external variable $v, so there is no projection
+            XPathCompiler compiler = processor.NewXPathCompiler();
+            QName v = new QName("v");
+            compiler.DeclareVariable(v);
+            xpath = compiler.Compile("concat(/LIST/OTHER, ':', string-join($v/COLOR, ' '))");
+            builder.DocumentProjectionXPath = xpath;
+            doc = builder.Build(new StringReader(xml));
+            selector = xpath.Load();
+            selector.ContextItem = doc;
+            XPathSelector items = processor.NewXPathCompiler().Compile("//ITEM").Load();
+            items.ContextItem = doc;
+            selector.SetVariable(v, items.Evaluate());
+            Check(selector.EvaluateSingle().ToString(), "x:blue red");
+            Console.WriteLine("All results correct");
+        }
+
+        private static void Check(String actual, String expected)
+        {
+            Console.WriteLine("Result: " + actual);
+            if (actual != expected)
+            {
+                throw new Exception("Expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+
+    /// <summary>
+    /// Show a document being built from a TextReader, which the System.Xml parser reads and passes to the
+    /// tree builder as a stream of events. The tree must be the same as one built through an XmlReader.
+    /// </summary>
+
+    public class BuildWithEventSource : Example
+    {
+
+        public override string testName
+        {
+            get { return "BuildWithEventSource"; }
+        }
+
+        public override void run(Uri samplesDir)
+        {
+            Processor processor = new Processor();
+            String xml = "<?xml-stylesheet href='s.xsl'?><doc xmlns:p='http://www.example.com/p'><!--note-->" +
+                         "<p:a id='1'>x<![CDATA[y]]>z</p:a><b xmlns='http://www.example.com/b'><c/></b><?pi data?></doc>";
+
+            DocumentBuilder builder = processor.NewDocumentBuilder();
+            builder.BaseUri = new Uri("http://www.example.com/doc.xml");
+            XdmNode doc = builder.Build(new StringReader(xml));
+
+            XPathCompiler compiler = processor.NewXPathCompiler();
+            Check(compiler, doc, "string-join(//*/name(), ' ')", "doc p:a b c");
+            Check(compiler, doc, "namespace-uri(//*:c)", "http://www.example.com/b");
+            Check(compiler, doc, "string(//@id)", "1");
+            Check(compiler, doc, "count(//*:a/text())", "1");
+            Check(compiler, doc, "string(//*:a)", "xyz");
+            Check(compiler, doc, "name(/processing-instruction())", "xml-stylesheet");
+            Check(compiler, doc, "string(/doc/comment())", "note");
+            Check(compiler, doc, "string(/doc/processing-instruction(pi))", "data");
+            Check(compiler, doc, "base-uri(/)", "http://www.example.com/doc.xml");
+
+            // the same document built through an XmlReader, which uses the pull parser
+            XdmNode pulled = builder.Build(XmlReader.Create(new StringReader(xml), new XmlReaderSettings(),
+                "http://www.example.com/doc.xml"));
+            Check(compiler, pulled, "serialize(/)", Evaluate(compiler, doc, "serialize(/)"));
+            Console.WriteLine("All results correct");
+        }
+
+        private static String Evaluate(XPathCompiler compiler, XdmNode input, String expression)
+        {
+            XPathSelector selector = compiler.Compile(expression).Load();
+            selector.ContextItem = input;
+            return selector.EvaluateSingle().ToString();
+        }
+
+        private static void Check(XPathCompiler compiler, XdmNode input, String expression, String expected)
+        {
+            String actual = Evaluate(compiler, input, expression);
+            Console.WriteLine(expression + " = " + actual);
+            if (actual != expected)
+            {
+                throw new Exception("Expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+
+    /// <summary>
+    /// Show a document being parsed on a background thread while the tree is built. The document is large
+    /// enough to be passed between the threads in several batches, and must give the same tree as a
+    /// document parsed on the calling thread.
+    /// </summary>
+
+    public class PipelinedParsing : Example
+    {
+
+        public override string testName
+        {
+            get { return "PipelinedParsing"; }
+        }
+
+        public override void run(Uri samplesDir)
+        {
+            Processor processor = new Processor();
+            StringWriter writer = new StringWriter();
+            writer.Write("<list>\n");
+            for (int i = 1; i <= 20000; i++)
+            {
+                writer.Write("  <item n='" + i + "'>item " + i + "</item>\n");
+            }
+            writer.Write("</list>");
+            String xml = writer.ToString();
+
+            DocumentBuilder builder = processor.NewDocumentBuilder();
+            builder.BaseUri = new Uri("http://www.example.com/list.xml");
+            builder.PipelinedParsing = true;
+            XdmNode doc = builder.Build(new StringReader(xml));
+
+            XPathCompiler compiler = processor.NewXPathCompiler();
+            Check(compiler, doc, "count(//item)", "20000");
+            Check(compiler, doc, "sum(//item/xs:integer(@n))", "200010000");
+            Check(compiler, doc, "string(/list/item[last()])", "item 20000");
+            Check(compiler, doc, "count(/list/text())", "20001");
+
+            builder.PipelinedParsing = false;
+            XdmNode serial = builder.Build(new StringReader(xml));
+            if (Evaluate(compiler, doc, "serialize(/)") != Evaluate(compiler, serial, "serialize(/)"))
+            {
+                throw new Exception("The pipelined and serial trees differ");
+            }
+
+            // whitespace is stripped on the calling thread
+            builder.PipelinedParsing = true;
+            builder.WhitespacePolicy = WhitespacePolicy.StripAll;
+            doc = builder.Build(new StringReader(xml));
+            Check(compiler, doc, "count(/list/text())", "0");
+            Check(compiler, doc, "count(//item)", "20000");
+
+            // an error found by the parser on the background thread is reported to the caller
+            bool failed = false;
+            try
+            {
+                builder.Build(new StringReader("<list><item></list>"));
+            }
+            catch (Exception err)
+            {
+                failed = true;
+                Console.WriteLine("Error reported: " + err.Message);
+            }
+            if (!failed)
+            {
+                throw new Exception("The parse error was not reported");
+            }
+            Console.WriteLine("All results correct");
+        }
+
+        private static String Evaluate(XPathCompiler compiler, XdmNode input, String expression)
+        {
+            XPathSelector selector = compiler.Compile(expression).Load();
+            selector.ContextItem = input;
+            return selector.EvaluateSingle().ToString();
+        }
+
+        private static void Check(XPathCompiler compiler, XdmNode input, String expression, String expected)
+        {
+            String actual = Evaluate(compiler, input, expression);
+            Console.WriteLine(expression + " = " + actual);
+            if (actual != expected)
+            {
+                throw new Exception("Expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+
+    /// <summary>
+    /// Show whitespace being stripped while a document is parsed, in each of the ways the parser can be
+    /// used. Only whole text nodes consisting entirely of whitespace are stripped: whitespace next to a
+    /// CDATA section is part of a larger text node, and is kept.
+    /// </summary>
+
+    public class NativeWhitespaceStripping : Example
+    {
+
+        public override string testName
+        {
+            get { return "NativeWhitespaceStripping"; }
+        }
+
+        public override void run(Uri samplesDir)
+        {
+            Processor processor = new Processor();
+            String xml = "<doc>\n  <a>  <![CDATA[x]]></a>\n  <b>  </b>\n  <c> <!--c--> </c>\n" +
+                         "  <d xml:space='preserve'>  </d>\n  <e>  <![CDATA[  ]]>  <f/></e>\n</doc>";
+            Uri baseUri = new Uri("http://www.example.com/doc.xml");
+
+            DocumentBuilder builder = processor.NewDocumentBuilder();
+            builder.BaseUri = baseUri;
+            builder.WhitespacePolicy = WhitespacePolicy.StripAll;
+            XPathCompiler compiler = processor.NewXPathCompiler();
+
+            for (int i = 0; i < 3; i++)
+            {
+                XdmNode doc;
+                if (i == 2)
+                {
+                    Console.WriteLine("Using an XmlReader");
+                    doc = builder.Build(XmlReader.Create(new StringReader(xml), new XmlReaderSettings(), baseUri.ToString()));
+                }
+                else
+                {
+                    builder.PipelinedParsing = i == 1;
+                    Console.WriteLine(i == 1 ? "Using a TextReader, pipelined" : "Using a TextReader");
+                    doc = builder.Build(new StringReader(xml));
+                }
+                Check(compiler, doc, "count(/doc/text())", "0");
+                Check(compiler, doc, "string(/doc/a)", "  x");
+                Check(compiler, doc, "count(/doc/a/text())", "1");
+                Check(compiler, doc, "count(/doc/b/node())", "0");
+                Check(compiler, doc, "count(/doc/c/text())", "0");
+                Check(compiler, doc, "string(/doc/d)", "  ");
+                Check(compiler, doc, "count(/doc/e/node())", "1");
+            }
+            Console.WriteLine("All results correct");
+        }
+
+        private static void Check(XPathCompiler compiler, XdmNode input, String expression, String expected)
+        {
+            XPathSelector selector = compiler.Compile(expression).Load();
+            selector.ContextItem = input;
+            String actual = selector.EvaluateSingle().ToString();
+            Console.WriteLine(expression + " = " + actual);
+            if (actual != expected)
+            {
+                throw new Exception("Expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+
+    /// <summary>
+    /// Show a document being loaded from a tree cache. The first load parses the file and writes the
+    /// cache entry; later loads replay the entry, until the file changes.
+    /// </summary>
+
+    public class BuildFromTreeCache : Example
+    {
+
+        public override string testName
+        {
+            get { return "BuildFromTreeCache"; }
+        }
+
+        public override void run(Uri samplesDir)
+        {
+            Processor processor = new Processor();
+            String dir = Path.Combine(Path.GetTempPath(), "SaxonTreeCache" + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(dir);
+            try
+            {
+                String file = Path.Combine(dir, "list.xml");
+                File.WriteAllText(file, "<list>\n  <item>pen</item>\n  <?pi data?>\n  <item>ink</item>\n</list>");
+                Uri uri = new Uri(file);
+
+                DocumentBuilder builder = processor.NewDocumentBuilder();
+                builder.TreeCacheDirectory = Path.Combine(dir, "cache");
+                XPathCompiler compiler = processor.NewXPathCompiler();
+                net.sf.saxon.dotnet.DotNetTreeCache.resetCounts();
+
+                XdmNode parsed = builder.Build(uri);
+                XdmNode cached = builder.Build(uri);
+                CheckCounts(1, 1);
+                Check(compiler, cached, "serialize(/)", Evaluate(compiler, parsed, "serialize(/)"));
+                Check(compiler, cached, "base-uri(/)", uri.ToString());
+
+                // whitespace stripping is applied to the replayed document
+                builder.WhitespacePolicy = WhitespacePolicy.StripAll;
+                XdmNode stripped = builder.Build(uri);
+                CheckCounts(2, 1);
+                Check(compiler, stripped, "count(/list/text())", "0");
+                Check(compiler, stripped, "string-join(/list/item, ' ')", "pen ink");
+
+                // a changed file is parsed again
+                File.WriteAllText(file, "<list><item>paper</item></list>");
+                File.SetLastWriteTimeUtc(file, DateTime.UtcNow.AddMinutes(1));
+                XdmNode changed = builder.Build(uri);
+                CheckCounts(2, 2);
+                Check(compiler, changed, "string-join(/list/item, ' ')", "paper");
+            }
+            finally
+            {
+                Directory.Delete(dir, true);
+            }
+            Console.WriteLine("All results correct");
+        }
+
+        private static void CheckCounts(long hits, long misses)
+        {
+            long actualHits = net.sf.saxon.dotnet.DotNetTreeCache.getHitCount();
+            long actualMisses = net.sf.saxon.dotnet.DotNetTreeCache.getMissCount();
+            Console.WriteLine("Cache hits: " + actualHits + ", misses: " + actualMisses);
+            if (actualHits != hits || actualMisses != misses)
+            {
+                throw new Exception("Expected " + hits + " hits and " + misses + " misses");
+            }
+        }
+
+        private static String Evaluate(XPathCompiler compiler, XdmNode input, String expression)
+        {
+            XPathSelector selector = compiler.Compile(expression).Load();
+            selector.ContextItem = input;
+            return selector.EvaluateSingle().ToString();
+        }
+
+        private static void Check(XPathCompiler compiler, XdmNode input, String expression, String expected)
+        {
+            String actual = Evaluate(compiler, input, expression);
+            Console.WriteLine(expression + " = " + actual);
+            if (actual != expected)
+            {
+                throw new Exception("Expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+
     public class UriConnection
     {
 